@@ -0,0 +1,72 @@
+package com.karasiq.gallerysaver.benchmarks
+
+import java.io.{ByteArrayInputStream, ObjectInputStream}
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+
+import com.karasiq.gallerysaver.mapdb.GalleryCacheCodec
+import com.karasiq.gallerysaver.scripting.resources.{FileResource, GalleryResource, LoadableResource}
+
+/**
+  * Gallery cache blob encoding: compact codec vs Java serialization.
+  * Blob sizes are printed at setup
+  */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+class GalleryCacheCodecBenchmark {
+  // Typical paged gallery: 100 images and links to next pages
+  private[this] val resources: Seq[LoadableResource] = {
+    val hierarchy = Seq("imagefap", "someuser", "Some gallery name")
+    val referrer = Some("https://www.imagefap.com/pictures/7000000/Some-Gallery")
+    val cookies = Map("PHPSESSID" → "0123456789abcdef", "lang" → "en")
+    val files = (1 to 100).map(i ⇒ FileResource("imagefap-gallery", s"https://cdn.imagefap.com/images/full/12/345/${1234567890 + i}.jpg", referrer, cookies, hierarchy, Some(s"$i.jpg")))
+    val pages = (1 to 5).map(i ⇒ GalleryResource("imagefap-gallery", s"https://www.imagefap.com/pictures/7000000/Some-Gallery?page=$i", referrer, cookies, hierarchy))
+    (files ++ pages).toVector
+  }
+
+  private[this] val javaBlob = GalleryCacheCodec.javaSerialize(resources)
+  private[this] val compactBlob = GalleryCacheCodec.encode(resources)
+  private[this] val compression = GalleryCacheCodec.Compression(threshold = 0, level = 1)
+  private[this] val deflatedBlob = GalleryCacheCodec.encode(resources, compression)
+
+  @Setup
+  def setup(): Unit = {
+    println(s"Blob size: Java serialization ${javaBlob.length} bytes, compact ${compactBlob.length} bytes, deflated ${deflatedBlob.length} bytes")
+  }
+
+  @Benchmark
+  def encodeJava(): Array[Byte] = {
+    GalleryCacheCodec.javaSerialize(resources)
+  }
+
+  @Benchmark
+  def encodeCompact(): Array[Byte] = {
+    GalleryCacheCodec.encode(resources)
+  }
+
+  @Benchmark
+  def decodeJava(): AnyRef = {
+    val ois = new ObjectInputStream(new ByteArrayInputStream(javaBlob))
+    try ois.readObject() finally ois.close()
+  }
+
+  @Benchmark
+  def decodeCompact(): AnyRef = {
+    GalleryCacheCodec.decode(compactBlob)
+  }
+
+  @Benchmark
+  def encodeDeflated(): Array[Byte] = {
+    GalleryCacheCodec.encode(resources, compression)
+  }
+
+  @Benchmark
+  def decodeDeflated(): AnyRef = {
+    GalleryCacheCodec.decode(deflatedBlob)
+  }
+}
@@ -0,0 +1,102 @@
+package com.karasiq.gallerysaver.benchmarks
+
+import java.nio.file.{Files, Path, Paths}
+import java.util.concurrent.TimeUnit
+
+import scala.collection.JavaConverters._
+
+import akka.event.NoLogging
+import com.typesafe.config.ConfigFactory
+import org.openjdk.jmh.annotations._
+import org.openjdk.jmh.infra.Blackhole
+
+import com.karasiq.gallerysaver.mapdb._
+
+object HistoryFilterBenchmark {
+  final val Rows = 5000000
+  final val Lookups = 1000
+
+  def path(i: Int): String = s"/galleries/imagefap/user$i/gallery/${i}_photo.jpg"
+}
+
+/**
+  * History lookups on a 5M rows `FD_HISTORY`, with and without bloom filter
+  */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+class HistoryFilterBenchmark {
+  import HistoryFilterBenchmark._
+
+  private[this] var directory: Path = _
+  private[this] var sql: AppSQLContext = _
+  private[this] var plain: FDHistoryStore = _
+  private[this] var filtered: FDHistoryStore = _
+
+  private[this] val random = new scala.util.Random(0)
+  private[this] val hits = Array.fill(Lookups)(path(random.nextInt(Rows)))
+  private[this] val misses = Array.fill(Lookups)(path(Rows + random.nextInt(Rows)))
+
+  @Setup
+  def setup(): Unit = {
+    // Generated database is reused by subsequent runs
+    directory = Paths.get(sys.props("java.io.tmpdir"), "gallerysaver-history-benchmark")
+    sql = new AppSQLContext(ConfigFactory.parseMap(Map(
+      "path" → directory.resolve("gallerysaver").toString,
+      "init-script" → "classpath:gallerysaver-h2-init.sql"
+    ).asJava))
+
+    val connection = sql.dataSource.getConnection
+    try {
+      val statement = connection.createStatement()
+      val rs = statement.executeQuery("SELECT COUNT(*) FROM FD_HISTORY")
+      if (!rs.next() || rs.getLong(1) != Rows) {
+        statement.executeUpdate("DELETE FROM FD_HISTORY")
+        for (from ← 0 until Rows by 50000) statement.executeUpdate("INSERT INTO FD_HISTORY (PATH, URL, SIZE, DATE) SELECT " +
+          "'/galleries/imagefap/user' || X || '/gallery/' || X || '_photo.jpg', 'https://cdn.example.com/images/' || X || '/photo.jpg', " +
+          s"100000 + X, CURRENT_TIMESTAMP() FROM SYSTEM_RANGE($from, ${(from + 50000).min(Rows) - 1})")
+      }
+    } finally connection.close()
+
+    plain = new H2FDHistoryStore(sql)
+    val filterFile = directory.resolve("history.bloom")
+    Files.deleteIfExists(filterFile)
+    val started = System.nanoTime()
+    val store = FilteredFDHistoryStore(sql, plain, HistoryFilterSettings(0.01, 1000000, filterFile), NoLogging)
+    while (!store.isReady) Thread.sleep(100)
+    filtered = store
+    println(s"Filter built in ${(System.nanoTime() - started) / 1000000} ms")
+  }
+
+  @TearDown
+  def tearDown(): Unit = {
+    sql.close()
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(Lookups)
+  def missPlain(bh: Blackhole): Unit = {
+    misses.foreach(p ⇒ bh.consume(plain.get(p)))
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(Lookups)
+  def missFiltered(bh: Blackhole): Unit = {
+    misses.foreach(p ⇒ bh.consume(filtered.get(p)))
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(Lookups)
+  def hitPlain(bh: Blackhole): Unit = {
+    hits.foreach(p ⇒ bh.consume(plain.get(p)))
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(Lookups)
+  def hitFiltered(bh: Blackhole): Unit = {
+    hits.foreach(p ⇒ bh.consume(filtered.get(p)))
+  }
+}
@@ -0,0 +1,153 @@
+package com.karasiq.gallerysaver.benchmarks
+
+import java.nio.file.{Files, Path}
+import java.time.Instant
+import java.util.concurrent.TimeUnit
+
+import scala.collection.JavaConverters._
+
+import akka.event.NoLogging
+import com.typesafe.config.ConfigFactory
+import org.apache.commons.io.FileUtils
+import org.openjdk.jmh.annotations._
+import org.openjdk.jmh.infra.Blackhole
+
+import com.karasiq.gallerysaver.mapdb._
+import com.karasiq.gallerysaver.scripting.resources.{FileResource, LoadableResource}
+
+object KVStoreBenchmark {
+  final val HistoryRows = 200000
+  final val Galleries = 2000
+  final val Operations = 1000
+
+  def path(i: Int): String = s"/galleries/imagefap/user$i/gallery/${i}_photo.jpg"
+  def url(i: Int): String = s"https://cdn.example.com/images/$i/photo.jpg"
+  def gallery(i: Int): String = s"https://www.imagefap.com/pictures/$i/Some-Gallery"
+
+  val resources: Seq[LoadableResource] = (1 to 100).map { i ⇒
+    FileResource("imagefap-gallery", s"https://cdn.imagefap.com/images/full/12/345/${1234567890 + i}.jpg",
+      Some("https://www.imagefap.com/pictures/7000000/Some-Gallery"), Map("PHPSESSID" → "0123456789abcdef"),
+      Seq("imagefap", "someuser", "Some gallery name"), Some(s"$i.jpg"))
+  }
+}
+
+/**
+  * History and gallery cache operations: H2 (Quill) stores vs MVStore maps
+  */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+class KVStoreBenchmark {
+  import KVStoreBenchmark._
+
+  private[this] var directory: Path = _
+  private[this] var sql: AppSQLContext = _
+  private[this] var kv: AppKVStore = _
+  private[this] var h2History: FDHistoryStore = _
+  private[this] var mvHistory: FDHistoryStore = _
+  private[this] var h2Cache: GalleryCacheStore = _
+  private[this] var mvCache: GalleryCacheStore = _
+
+  private[this] val random = new scala.util.Random(0)
+  private[this] val historyKeys = Array.fill(Operations)(random.nextInt(HistoryRows))
+  private[this] val galleryKeys = Array.fill(Operations)(random.nextInt(Galleries))
+  private[this] var written = 0
+
+  @Setup
+  def setup(): Unit = {
+    directory = Files.createTempDirectory("gallerysaver-kv-benchmark")
+    sql = new AppSQLContext(ConfigFactory.parseMap(Map(
+      "path" → directory.resolve("gallerysaver").toString,
+      "init-script" → "classpath:gallerysaver-h2-init.sql"
+    ).asJava))
+    kv = new AppKVStore(ConfigFactory.parseMap(Map[String, AnyRef](
+      "path" → directory.resolve("gallerysaver-kv.mv").toString,
+      "cache-size-mb" → Integer.valueOf(16)
+    ).asJava))
+
+    val connection = sql.dataSource.getConnection
+    try {
+      connection.createStatement().executeUpdate("INSERT INTO FD_HISTORY (PATH, URL, SIZE, DATE) SELECT " +
+        "'/galleries/imagefap/user' || X || '/gallery/' || X || '_photo.jpg', 'https://cdn.example.com/images/' || X || '/photo.jpg', " +
+        s"100000 + X, CURRENT_TIMESTAMP() FROM SYSTEM_RANGE(0, ${HistoryRows - 1})")
+    } finally connection.close()
+
+    h2History = new H2FDHistoryStore(sql)
+    val mvStore = new MVFDHistoryStore(kv)
+    new KVStoreMigration(sql, kv, NoLogging).history(mvStore)
+    mvHistory = mvStore
+
+    h2Cache = new H2GalleryCacheStore(sql)
+    mvCache = new MVGalleryCacheStore(kv)
+    for (i ← 0 until Galleries) {
+      h2Cache += (gallery(i) → resources)
+      mvCache += (gallery(i) → resources)
+    }
+    kv.store.commit()
+  }
+
+  @TearDown
+  def tearDown(): Unit = {
+    kv.close()
+    sql.close()
+    FileUtils.deleteDirectory(directory.toFile)
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(Operations)
+  def historyGetH2(bh: Blackhole): Unit = {
+    historyKeys.foreach(i ⇒ bh.consume(h2History.get(path(i))))
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(Operations)
+  def historyGetMVStore(bh: Blackhole): Unit = {
+    historyKeys.foreach(i ⇒ bh.consume(mvHistory.get(path(i))))
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(Operations)
+  def historyByUrlH2(bh: Blackhole): Unit = {
+    historyKeys.foreach(i ⇒ bh.consume(h2History.byUrl(url(i))))
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(Operations)
+  def historyByUrlMVStore(bh: Blackhole): Unit = {
+    historyKeys.foreach(i ⇒ bh.consume(mvHistory.byUrl(url(i))))
+  }
+
+  // New paths, table grows during the run
+  @Benchmark
+  @OperationsPerInvocation(Operations)
+  def historyPutH2(): Unit = {
+    for (_ ← 0 until Operations) put(h2History)
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(Operations)
+  def historyPutMVStore(): Unit = {
+    for (_ ← 0 until Operations) put(mvHistory)
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(Operations)
+  def cacheGetH2(bh: Blackhole): Unit = {
+    galleryKeys.foreach(i ⇒ bh.consume(h2Cache.entry(gallery(i))))
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(Operations)
+  def cacheGetMVStore(bh: Blackhole): Unit = {
+    galleryKeys.foreach(i ⇒ bh.consume(mvCache.entry(gallery(i))))
+  }
+
+  private[this] def put(store: FDHistoryStore): Unit = {
+    written += 1
+    val i = HistoryRows + written
+    store += (path(i) → FDHistoryEntry(path(i), url(i), i, Instant.now()))
+  }
+}
@@ -0,0 +1,114 @@
+package com.karasiq.gallerysaver.benchmarks
+
+import java.util.concurrent.TimeUnit
+
+import akka.stream.scaladsl.Source
+import org.openjdk.jmh.annotations._
+import org.openjdk.jmh.infra.Blackhole
+
+import com.karasiq.gallerysaver.dispatcher.LoaderRegistry
+import com.karasiq.gallerysaver.scripting.loaders.GalleryLoader
+import com.karasiq.gallerysaver.scripting.resources.LoadableResource
+
+object LoaderRegistryBenchmark {
+  final class StubLoader(val id: String, override val hosts: Set[String], predicate: String ⇒ Boolean) extends GalleryLoader {
+    override def canLoadUrl(url: String): Boolean = predicate(url)
+    override def load(url: String): GalleryResources = Source.empty
+    override def load(resource: LoadableResource): GalleryResources = Source.empty
+  }
+
+  private[this] val imageHostings = Seq("postimg.org/image/", "fotki.yandex.ru/", "imagevenue.com/img.php?", "hostingpics.net/viewer.php?",
+    "imageshack.com/i/", "vfl.ru/fotos/", "vfl.ru/i/", "imageban.ru/show/", "ifotki.info/", "imagebam.com/image/", "hostingfailov.com/photo/",
+    "piccy.info/view/", "fastpic.ru/view/", "jpegshare.net/", "saveimg.ru/show-image.php?", "ii4.ru/image-", "savepic.ru/", "radikal.ru/F/", "imgur.com")
+
+  // Mirrors routing predicates of the bundled loader scripts, in their registration order
+  def loaders(indexed: Boolean): Seq[GalleryLoader] = {
+    def loader(id: String, hosts: String*)(predicate: String ⇒ Boolean) =
+      new StubLoader(id, if (indexed) hosts.toSet else Set.empty, predicate)
+
+    def regex(r: String) = { url: String ⇒ r.r.findFirstIn(url).nonEmpty }
+
+    Seq(
+      loader("preview")(_ ⇒ true),
+      loader("image-hosting", "postimg.org", "fotki.yandex.ru", "imagevenue.com", "hostingpics.net", "imageshack.com", "vfl.ru",
+        "imageban.ru", "ifotki.info", "imagebam.com", "hostingfailov.com", "piccy.info", "fastpic.ru", "jpegshare.net", "saveimg.ru",
+        "ii4.ru", "savepic.ru", "radikal.ru", "imgur.com") { url ⇒
+        imageHostings.exists(h ⇒ url.matches("^https?://(www\\.)?" + java.util.regex.Pattern.quote(h) + ".*$"))
+      },
+      loader("ancensored-pics", "ancensored.com")(_.matches("https?://ancensored\\.com/\\w+/pics/(.*)")),
+      loader("ancensored-clip", "ancensored.com")(_.matches("https?://ancensored\\.com/clip/(.*)")),
+      loader("ancensored-videos", "ancensored.com")(_.matches("https?://ancensored\\.com/\\w+/video/(.*)")),
+      loader("ancensored-celebrity", "ancensored.com")(_.matches("https?://ancensored\\.com/celebrities/([^/]+)")),
+      loader("ancensored-sextape", "ancensored.com")(_.matches("https?://ancensored\\.com/\\w+/([^/]*)/sextape(/\\d+/?)?")),
+      loader("blogspot")(regex("""https?://([\w-]+)\.blogspot\.\w{2,4}/""")),
+      loader("deviantart-image", "deviantart.com")(_.contains("deviantart.com/art/")),
+      loader("deviantart-gallery", "deviantart.com")(_.contains("deviantart.com/gallery/")),
+      loader("flickr-gallery", "flickr.com")(_.contains("flickr.com")),
+      loader("flickr-search", "flickr.com")(url ⇒ url.contains("flickr.com/search") && url.contains("text=")),
+      loader("flickr-photo", "flickr.com")(regex("flickr.com/photos/[\\w@]+/\\d+/")),
+      loader("flickriver", "flickriver.com")(_.contains("flickriver.com/photos/")),
+      loader("imagefap-gallery", "imagefap.com")(url ⇒ url.contains("imagefap.com/pictures/") || url.contains("imagefap.com/gallery/")),
+      loader("imagefap-folder", "imagefap.com")(url ⇒ url.contains("imagefap.com") && (url.contains("/organizer/") || url.contains("folderid="))),
+      loader("imagefap-user", "imagefap.com")(url ⇒ url.contains("imagefap.com/profile/") || url.contains("imagefap.com/usergallery.php?")),
+      loader("imgsrc-user", "imgsrc.ru")(_.contains("imgsrc.ru/main/user.php")),
+      loader("imgsrc-gallery", "imgsrc.ru")(url ⇒ url.matches("""https?://imgsrc\.ru/\w+/a?\d+\.html""") || url.contains("imgsrc.ru/main/preword.php?")),
+      loader("sosach-thread")(regex("""https?://m?(2ch|2-ch)\.\w{2}/\w+/res/\d+\.html?""")),
+      loader("tumblr-post", "tumblr.com")(_.contains("tumblr.com/post/")),
+      loader("tumblr-archive", "tumblr.com")(_.contains("tumblr.com/archive")),
+      loader("yandex-fotki-photo", "fotki.yandex.ru")(url ⇒ url.contains("fotki.yandex.ru") && url.contains("/view/")),
+      loader("yandex-fotki-album", "fotki.yandex.ru")(url ⇒ url.contains("fotki.yandex.ru") && !url.contains("/view/"))
+    )
+  }
+
+  val urls: Array[String] = Array(
+    "https://www.flickr.com/photos/someuser/31415926535/",
+    "https://www.flickr.com/photos/12345678@N00/",
+    "https://www.flickr.com/search/?text=landscape",
+    "https://flickriver.com/photos/someuser/popular-interesting/",
+    "https://staff.tumblr.com/post/186000000000/summer-photos",
+    "https://staff.tumblr.com/archive",
+    "https://www.imagefap.com/pictures/7000000/Some-Gallery",
+    "https://www.imagefap.com/organizer/123456/Favorites",
+    "https://www.imagefap.com/profile/someuser/galleries",
+    "https://2ch.hk/b/res/200000000.html",
+    "https://imgsrc.ru/main/user.php?user=someuser",
+    "https://imgsrc.ru/someuser/a12345678.html",
+    "https://ancensored.com/clip/some-clip-name",
+    "https://ancensored.com/celebrities/some-celebrity",
+    "https://www.deviantart.com/someartist/art/Some-Work-123456789",
+    "https://fotki.yandex.ru/users/someuser/view/123456/",
+    "https://someblog.blogspot.com/2019/01/post.html",
+    "https://imgur.com/a/AbCdEfG",
+    "https://i.imgur.com/AbCdEfG.jpg",
+    "http://www.imagevenue.com/img.php?image=12345_photo_122_123lo.jpg",
+    "https://fastpic.ru/view/110/2019/0101/abcdef0123456789.jpg.html",
+    "https://example.com/gallery/index.html",
+    "https://cdn.example.org/images/photo-1.jpg",
+    "http://forum.example.net/showthread.php?t=123456"
+  )
+}
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+class LoaderRegistryBenchmark {
+  import LoaderRegistryBenchmark._
+
+  private[this] val indexed = loaders(indexed = true).foldLeft(LoaderRegistry())(_ register _)
+  private[this] val linear = loaders(indexed = false).foldLeft(LoaderRegistry())(_ register _)
+
+  @Benchmark
+  @OperationsPerInvocation(24)
+  def forUrlIndexed(bh: Blackhole): Unit = {
+    urls.foreach(url ⇒ bh.consume(indexed.forUrl(url)))
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(24)
+  def forUrlLinearScan(bh: Blackhole): Unit = {
+    urls.foreach(url ⇒ bh.consume(linear.forUrl(url)))
+  }
+}
@@ -0,0 +1,98 @@
+package com.karasiq.gallerysaver.benchmarks
+
+import java.nio.file.{Files, Path}
+import java.util.concurrent.TimeUnit
+
+import scala.concurrent.Await
+import scala.concurrent.duration._
+
+import akka.actor.{ActorRef, ActorSystem, Props}
+import akka.http.scaladsl.Http
+import akka.http.scaladsl.model._
+import akka.http.scaladsl.model.headers._
+import akka.http.scaladsl.server.Directives._
+import akka.pattern.ask
+import akka.stream.{ActorMaterializer, ThrottleMode}
+import akka.stream.scaladsl.Source
+import akka.util.{ByteString, Timeout}
+import org.apache.commons.io.FileUtils
+import org.openjdk.jmh.annotations._
+
+import com.karasiq.gallerysaver.downloader.{AkkaHttpDownloaderSettings, AkkaHttpFileDownloader}
+import com.karasiq.networkutils.downloader.FileToDownload
+
+object SegmentedDownloadBenchmark {
+  final val FileSize = 8 * 1024 * 1024
+  final val ChunkSize = 64 * 1024
+
+  // Single stream throughput is bound by window size / RTT: 64 KiB per 50 ms is 1.25 MiB/s
+  final val RoundTrip = 50.millis
+}
+
+/**
+  * Large file download from a local server simulating high-latency host, single stream vs parallel segments
+  */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.SingleShotTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+class SegmentedDownloadBenchmark {
+  import SegmentedDownloadBenchmark._
+
+  @Param(Array("1", "4", "8"))
+  var segments: Int = _
+
+  private[this] implicit val timeout: Timeout = Timeout(5.minutes)
+  private[this] var actorSystem: ActorSystem = _
+  private[this] var binding: Http.ServerBinding = _
+  private[this] var downloader: ActorRef = _
+  private[this] var directory: Path = _
+  private[this] var counter = 0
+
+  @Setup
+  def setup(): Unit = {
+    implicit val system: ActorSystem = ActorSystem("segmented-download-benchmark")
+    implicit val materializer: ActorMaterializer = ActorMaterializer()
+    actorSystem = system
+    val data = ByteString(Array.tabulate(FileSize)(_.toByte))
+
+    def slowEntity(bytes: ByteString) = {
+      val chunks = Source(bytes.grouped(ChunkSize).toVector)
+        .initialDelay(RoundTrip)
+        .throttle(1, RoundTrip, 1, ThrottleMode.Shaping)
+      HttpEntity(ContentTypes.`application/octet-stream`, bytes.length.toLong, chunks)
+    }
+
+    val route = path("file") {
+      optionalHeaderValueByType[Range](()) {
+        case Some(Range(_, Seq(ByteRange.Slice(first, last)))) ⇒
+          complete(HttpResponse(StatusCodes.PartialContent, List(ETag(EntityTag("file")), `Content-Range`(ContentRange(first, last, FileSize))),
+            slowEntity(data.slice(first.toInt, last.toInt + 1))))
+
+        case _ ⇒
+          complete(HttpResponse(StatusCodes.OK, List(ETag(EntityTag("file")), `Accept-Ranges`(RangeUnits.Bytes)), slowEntity(data)))
+      }
+    }
+
+    binding = Await.result(Http(actorSystem).bindAndHandle(route, "127.0.0.1", 0), 10.seconds)
+    directory = Files.createTempDirectory("segmented-download-benchmark")
+    val settings = AkkaHttpDownloaderSettings(16, 1024, 5, 0, 1.second, segments, 1024 * 1024)
+    downloader = actorSystem.actorOf(Props(new AkkaHttpFileDownloader(settings)))
+  }
+
+  @TearDown
+  def tearDown(): Unit = {
+    Await.result(binding.unbind(), 10.seconds)
+    Await.result(actorSystem.terminate(), 10.seconds)
+    FileUtils.deleteDirectory(directory.toFile)
+  }
+
+  @Benchmark
+  def download(): Any = {
+    counter += 1
+    val url = s"http://127.0.0.1:${binding.localAddress.getPort}/file"
+    Await.result(downloader ? FileToDownload(url, directory.toString, s"$counter.bin", Nil, Nil, sendReport = true), 5.minutes)
+  }
+}
@@ -45,9 +45,14 @@ class AncensoredPicsLoader extends HtmlUnitGalleryLoader with PagedSiteImageExtr
     * @return Loader can load URL
     */
   override def canLoadUrl(url: String): Boolean = {
-    url.matches(urlRegex.regex)
+    urlRegex.pattern.matcher(url).matches()
   }
 
+  /**
+    * Hosts this loader is restricted to
+    */
+  override def hosts: Set[String] = Set("ancensored.com")
+
   /**
     * Fetches resources from URL
     *
@@ -136,9 +141,14 @@ class AncensoredClipLoader extends HtmlUnitGalleryLoader {
     * @return Loader can load URL
     */
   override def canLoadUrl(url: String): Boolean = {
-    url.matches(AncensoredClipLoader.urlRegex.regex)
+    AncensoredClipLoader.urlRegex.pattern.matcher(url).matches()
   }
 
+  /**
+    * Hosts this loader is restricted to
+    */
+  override def hosts: Set[String] = Set("ancensored.com")
+
   /**
     * Fetches resources from URL
     *
@@ -176,9 +186,14 @@ class AncensoredVideosLoader extends HtmlUnitGalleryLoader with PagedSiteImageEx
     * @return Loader can load URL
     */
   override def canLoadUrl(url: String): Boolean = {
-    url.matches(urlRegex.regex)
+    urlRegex.pattern.matcher(url).matches()
   }
 
+  /**
+    * Hosts this loader is restricted to
+    */
+  override def hosts: Set[String] = Set("ancensored.com")
+
   /**
     * Fetches resources from URL
     *
@@ -229,7 +244,12 @@ class AncensoredCelebLoader extends HtmlUnitGalleryLoader {
     * @param url URL
     * @return Loader can load URL
     */
-  override def canLoadUrl(url: String) = url.matches(urlRegex.regex)
+  override def canLoadUrl(url: String) = urlRegex.pattern.matcher(url).matches()
+
+  /**
+    * Hosts this loader is restricted to
+    */
+  override def hosts: Set[String] = Set("ancensored.com")
 
   /**
     * Fetches resources from URL
@@ -274,9 +294,14 @@ class AncensoredSextapeLoader extends HtmlUnitGalleryLoader {
     * @return Loader can load URL
     */
   override def canLoadUrl(url: String): Boolean = {
-    url.matches(urlRegex.regex)
+    urlRegex.pattern.matcher(url).matches()
   }
 
+  /**
+    * Hosts this loader is restricted to
+    */
+  override def hosts: Set[String] = Set("ancensored.com")
+
   /**
     * Fetches resources from URL
     *
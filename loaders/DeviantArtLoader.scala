@@ -23,6 +23,11 @@ class DeviantArtPhotoLoader extends HtmlUnitGalleryLoader {
     url.contains("deviantart.com/art/")
   }
 
+  /**
+    * Hosts this loader is restricted to
+    */
+  override def hosts: Set[String] = Set("deviantart.com")
+
   /**
     * Fetches resources from URL
     * @param url URL
@@ -68,6 +73,11 @@ class DeviantArtGalleryLoader extends HtmlUnitGalleryLoader {
     url.contains("deviantart.com/gallery/")
   }
 
+  /**
+    * Hosts this loader is restricted to
+    */
+  override def hosts: Set[String] = Set("deviantart.com")
+
   /**
     * Fetches resources from URL
     * @param url URL
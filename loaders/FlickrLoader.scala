@@ -33,16 +33,22 @@ class FlickrPhotoLoader extends HtmlUnitGalleryLoader with FlickrWebClient {
 
   import FlickrParser.Photo
 
+  private val urlRegex = "flickr.com/photos/[\\w@]+/\\d+/".r
+
   /**
     * Is loader applicable to provided URL
     * @param url URL
     * @return Loader can load URL
     */
   override def canLoadUrl(url: String): Boolean = {
-    val regex = "flickr.com/photos/[\\w@]+/\\d+/".r
-    regex.findFirstIn(url).nonEmpty
+    urlRegex.findFirstIn(url).nonEmpty
   }
 
+  /**
+    * Hosts this loader is restricted to
+    */
+  override def hosts: Set[String] = Set("flickr.com")
+
   /**
     * Fetches resources from URL
     * @param url URL
@@ -88,6 +94,11 @@ class FlickrGalleryLoader extends HtmlUnitGalleryLoader with FlickrWebClient {
     url.contains("flickr.com")
   }
 
+  /**
+    * Hosts this loader is restricted to
+    */
+  override def hosts: Set[String] = Set("flickr.com")
+
   /**
     * Fetches resources from URL
     * @param url URL
@@ -128,6 +139,11 @@ class FlickRiverLoader extends HtmlUnitGalleryLoader with FlickrWebClient {
     url.contains("flickriver.com/photos/")
   }
 
+  /**
+    * Hosts this loader is restricted to
+    */
+  override def hosts: Set[String] = Set("flickriver.com")
+
   /**
     * Fetches resources from URL
     * @param url URL
@@ -161,6 +177,11 @@ class FlickrSearchLoader extends HtmlUnitGalleryLoader with FlickrWebClient {
     url.contains("flickr.com/search") && url.contains("text=")
   }
 
+  /**
+    * Hosts this loader is restricted to
+    */
+  override def hosts: Set[String] = Set("flickr.com")
+
   /**
     * Fetches resources from URL
     * @param url URL
@@ -207,6 +207,11 @@ class ImageFapGalleryLoader extends HtmlUnitGalleryLoader {
     url.contains("imagefap.com/pictures/") || url.contains("imagefap.com/gallery/") || url.contains("imagefap.com/gallery.php?")
   }
 
+  /**
+    * Hosts this loader is restricted to
+    */
+  override def hosts: Set[String] = Set("imagefap.com")
+
   /**
     * Fetches resources from URL
     * @param url URL
@@ -261,6 +266,11 @@ class ImageFapFolderLoader extends HtmlUnitGalleryLoader {
     url.contains("imagefap.com") && (url.contains("/organizer/") || url.contains("folderid="))
   }
 
+  /**
+    * Hosts this loader is restricted to
+    */
+  override def hosts: Set[String] = Set("imagefap.com")
+
   /**
     * Fetches resources from URL
     * @param url URL
@@ -311,6 +321,11 @@ class ImageFapUserLoader extends HtmlUnitGalleryLoader {
     url.contains("imagefap.com/profile/") || url.contains("imagefap.com/showfavorites.php?") || url.contains("imagefap.com/usergallery.php?")
   }
 
+  /**
+    * Hosts this loader is restricted to
+    */
+  override def hosts: Set[String] = Set("imagefap.com")
+
   /**
     * Fetches resources from URL
     * @param url URL
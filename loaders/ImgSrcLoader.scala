@@ -24,6 +24,11 @@ class ImgSrcUserLoader extends HtmlUnitGalleryLoader {
     url.contains("imgsrc.ru/main/user.php")
   }
 
+  /**
+    * Hosts this loader is restricted to
+    */
+  override def hosts: Set[String] = Set("imgsrc.ru")
+
   /**
     * Fetches resources from URL
     * @param url URL
@@ -49,16 +54,23 @@ class ImgSrcUserLoader extends HtmlUnitGalleryLoader {
 class ImgSrcGalleryLoader extends HtmlUnitGalleryLoader {
   import ImgSrcParser.Gallery
 
+  private val albumRegex = """https?://imgsrc\.ru/\w+/a?\d+\.html""".r
+
   /**
     * Is loader applicable to provided URL
     * @param url URL
     * @return Loader can load URL
     */
   override def canLoadUrl(url: String): Boolean = {
-    url.matches("""https?://imgsrc\.ru/\w+/a?\d+\.html""") ||
+    albumRegex.pattern.matcher(url).matches() ||
       url.contains("imgsrc.ru/main/preword.php?")
   }
 
+  /**
+    * Hosts this loader is restricted to
+    */
+  override def hosts: Set[String] = Set("imgsrc.ru")
+
   /**
     * Fetches resources from URL
     * @param url URL
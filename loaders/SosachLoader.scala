@@ -257,6 +257,7 @@ object SosachResources {
 class SosachLoader extends HtmlUnitGalleryLoader {
   import SosachParsers._
   private val log = LoaderUtils.log
+  private val threadUrlRegex = """https?://m?(2ch|2-ch)\.\w{2}/\w+/res/\d+\.html?""".r
 
   override def fileDownloader: Option[ActorRef] = Some(cfFileDownloader)
   override def webClient: WebClient = cfWebClientFactory()
@@ -272,7 +273,7 @@ class SosachLoader extends HtmlUnitGalleryLoader {
     * @return Loader can load URL
     */
   override def canLoadUrl(url: String): Boolean = {
-    """https?://m?(2ch|2-ch)\.\w{2}/\w+/res/\d+\.html?""".r.findFirstIn(url).nonEmpty
+    threadUrlRegex.findFirstIn(url).nonEmpty
   }
 
   /**
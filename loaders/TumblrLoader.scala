@@ -37,6 +37,11 @@ class TumblrPostLoader extends TumblrLoader {
     url.contains("tumblr.com/post/")
   }
 
+  /**
+    * Hosts this loader is restricted to
+    */
+  override def hosts: Set[String] = Set("tumblr.com")
+
   /**
     * Fetches resources from URL
     * @param url URL
@@ -82,6 +87,11 @@ class TumblrArchiveLoader extends TumblrLoader {
     url.contains("tumblr.com/archive")
   }
 
+  /**
+    * Hosts this loader is restricted to
+    */
+  override def hosts: Set[String] = Set("tumblr.com")
+
   /**
     * Fetches resources from URL
     * @param url URL
@@ -15,6 +15,11 @@ class YandexPhotoLoader extends HtmlUnitGalleryLoader {
     url.contains("fotki.yandex.ru") && url.contains("/view/")
   }
 
+  /**
+    * Hosts this loader is restricted to
+    */
+  override def hosts: Set[String] = Set("fotki.yandex.ru")
+
   override def load(url: String): GalleryResources = Source.single {
     YandexResources.photo(url)
   }
@@ -36,6 +41,11 @@ class YandexGalleryLoader extends HtmlUnitGalleryLoader {
     url.contains("fotki.yandex.ru") && !url.contains("/view/")
   }
 
+  /**
+    * Hosts this loader is restricted to
+    */
+  override def hosts: Set[String] = Set("fotki.yandex.ru")
+
   override def load(url: String): GalleryResources = Source.single {
     YandexResources.gallery(url)
   }
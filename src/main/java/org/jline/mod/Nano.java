@@ -1810,6 +1810,10 @@ public class Nano {
 
     public void setMessageInstant(String message) {
         setMessage(message);
+        redisplay();
+    }
+
+    public void redisplay() {
         try {
             display();
         } catch (Exception e) {
@@ -6,8 +6,84 @@ CREATE TABLE IF NOT EXISTS FD_HISTORY
     DATE TIMESTAMP           NOT NULL
 );
 
+CREATE INDEX IF NOT EXISTS FD_HISTORY_URL ON FD_HISTORY (URL);
+
+CREATE TABLE IF NOT EXISTS CONTENT
+(
+    DIGEST VARCHAR PRIMARY KEY NOT NULL,
+    SIZE   BIGINT              NOT NULL
+);
+
+ALTER TABLE FD_HISTORY ADD COLUMN IF NOT EXISTS CONTENT VARCHAR;
+
+CREATE INDEX IF NOT EXISTS FD_HISTORY_CONTENT ON FD_HISTORY (CONTENT);
+
+ALTER TABLE FD_HISTORY ADD COLUMN IF NOT EXISTS ETAG VARCHAR;
+ALTER TABLE FD_HISTORY ADD COLUMN IF NOT EXISTS LAST_MODIFIED VARCHAR;
+ALTER TABLE FD_HISTORY ADD COLUMN IF NOT EXISTS LENGTH BIGINT;
+ALTER TABLE FD_HISTORY ADD COLUMN IF NOT EXISTS CHECKED TIMESTAMP;
+
+CREATE TABLE IF NOT EXISTS HISTORY_SCAN
+(
+    PATH     VARCHAR PRIMARY KEY NOT NULL,
+    PARENT   VARCHAR,
+    MODIFIED BIGINT              NOT NULL
+);
+
 CREATE TABLE IF NOT EXISTS GALLERY_CACHE
 (
     URL       VARCHAR PRIMARY KEY NOT NULL,
     RESOURCES VARBINARY           NOT NULL
 );
+
+ALTER TABLE GALLERY_CACHE ADD COLUMN IF NOT EXISTS SIZE BIGINT;
+ALTER TABLE GALLERY_CACHE ADD COLUMN IF NOT EXISTS CREATED TIMESTAMP DEFAULT CURRENT_TIMESTAMP() NOT NULL;
+ALTER TABLE GALLERY_CACHE ADD COLUMN IF NOT EXISTS ACCESSED TIMESTAMP DEFAULT CURRENT_TIMESTAMP() NOT NULL;
+
+CREATE INDEX IF NOT EXISTS GALLERY_CACHE_ACCESSED ON GALLERY_CACHE (ACCESSED);
+
+CREATE TABLE IF NOT EXISTS CRAWL_JOB
+(
+    ID       BIGINT PRIMARY KEY NOT NULL,
+    STARTED  TIMESTAMP          NOT NULL,
+    FINISHED TIMESTAMP
+);
+
+CREATE TABLE IF NOT EXISTS CRAWL_FRONTIER
+(
+    ID       BIGINT PRIMARY KEY NOT NULL,
+    JOB      BIGINT             NOT NULL,
+    DEPTH    INT                NOT NULL,
+    URL      VARCHAR            NOT NULL,
+    RESOURCE VARBINARY
+);
+
+CREATE INDEX IF NOT EXISTS CRAWL_FRONTIER_JOB ON CRAWL_FRONTIER (JOB);
+
+CREATE SEQUENCE IF NOT EXISTS CRAWL_JOB_SEQ;
+
+CREATE SEQUENCE IF NOT EXISTS CRAWL_FRONTIER_SEQ;
+
+CREATE TABLE IF NOT EXISTS CRAWL_FRONTIER_STATUS
+(
+    ID     BIGINT PRIMARY KEY NOT NULL,
+    STATUS TINYINT            NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS DOWNLOAD_QUEUE
+(
+    ID         BIGINT PRIMARY KEY NOT NULL,
+    DOWNLOADER VARCHAR            NOT NULL,
+    FILE       VARBINARY          NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS FD_PARTIAL
+(
+    PATH          VARCHAR PRIMARY KEY NOT NULL,
+    URL           VARCHAR             NOT NULL,
+    RECEIVED      BIGINT              NOT NULL,
+    LENGTH        BIGINT,
+    ETAG          VARCHAR,
+    LAST_MODIFIED VARCHAR,
+    UPDATED       TIMESTAMP           NOT NULL
+);
@@ -3,6 +3,7 @@ package com.karasiq.gallerysaver.app
 import java.io.{Closeable, File, FileWriter, PrintWriter, Writer}
 import java.nio.file.{Path, Paths}
 import java.util
+import java.util.concurrent.TimeUnit
 import java.util.logging.Level
 
 import akka.actor.ActorSystem
@@ -11,7 +12,7 @@ import com.google.inject.name.Names
 import com.karasiq.fileutils.PathUtils._
 import com.karasiq.fileutils.pathtree.PathTreeUtils._
 import com.karasiq.gallerysaver.app.guice.{GallerySaverMainModule, GallerySaverModule}
-import com.karasiq.gallerysaver.mapdb.AppSQLContext
+import com.karasiq.gallerysaver.mapdb.{AppKVStore, AppSQLContext, CrawlFrontier, FDHistoryStore}
 import com.karasiq.gallerysaver.scripting.internal.{GallerySaverContext, LoaderUtils}
 import com.karasiq.networkutils.HtmlUnitUtils
 import javax.script.{ScriptEngine, SimpleScriptContext}
@@ -61,7 +62,14 @@ object Main extends App {
       val actorSystem = injector.instance[ActorSystem]
       actorSystem.log.info("Shutting down GallerySaver")
       Await.result(actorSystem.terminate(), Duration.Inf)
+      injector.instance[CrawlFrontier].close()
+      // Writes pending history entries and persists history filter
+      injector.instance[FDHistoryStore] match {
+        case c: AutoCloseable => c.close()
+        case _ => // Ignore
+      }
 
+      injector.instance[AppKVStore].close()
       val storage = injector.instance[AppSQLContext]
       storage match {
         case c: Closeable => c.close()
@@ -92,6 +100,11 @@ object Main extends App {
         println(s"$f not found")
     }
 
+    // Resume interrupted jobs
+    if (context.config.getBoolean("gallery-saver.crawl.frontier.resume-on-startup")) {
+      LoaderUtils.resumeJobs()
+    }
+
 
     // REPL
     val consoleContext = new SimpleScriptContext()
@@ -116,6 +129,10 @@ object Main extends App {
 
       import scala.collection.JavaConverters._
 
+      override def getTitle: String = {
+        context.stats.statusLine()
+      }
+
       override protected def doExecute(lines: util.List[String]): Boolean = {
         Try {
           val fw = new FileWriter(new File("gs-history.log"), true)
@@ -160,6 +177,8 @@ object Main extends App {
     }
     try {
       AppLogger.printF = (_, v) => nano.setMessageInstant(v.toString)
+      val statusInterval = context.config.getDuration("gallery-saver.stats.status-interval", TimeUnit.MILLISECONDS).millis
+      context.actorSystem.scheduler.schedule(statusInterval, statusInterval)(nano.redisplay())(context.executionContext)
       nano.run()
     } catch {
       case NonFatal(_) =>
@@ -7,8 +7,10 @@ import akka.actor.ActorRef
 import com.google.inject.{AbstractModule, Singleton}
 import net.codingwell.scalaguice.ScalaModule
 import com.karasiq.gallerysaver.app.guice.providers._
-import com.karasiq.gallerysaver.mapdb.{FDHistoryStore, GalleryCacheStore}
+import com.karasiq.gallerysaver.limits.{BandwidthLimiter, HostLimiterRegistry}
+import com.karasiq.gallerysaver.mapdb.{ContentStore, CrawlFrontier, FDHistoryStore, GalleryCacheStore}
 import com.karasiq.gallerysaver.scripting.internal.GallerySaverContext
+import com.karasiq.gallerysaver.stats.StatsRegistry
 
 class GallerySaverModule extends AbstractModule with ScalaModule {
   override def configure(): Unit = {
@@ -16,7 +18,12 @@ class GallerySaverModule extends AbstractModule with ScalaModule {
     bind[GallerySaverContext].toProvider[BaseGallerySaverContextProvider].in[Singleton]
     bind[ScriptEngine].annotatedWithName("scala").toProvider[ScalaScriptEngineProvider].in[Singleton]
     bind[FDHistoryStore].toProvider[FDHistoryStoreProvider].in[Singleton]
+    bind[ContentStore].toProvider[ContentStoreProvider].in[Singleton]
     bind[GalleryCacheStore].toProvider[GalleryCacheStoreProvider].in[Singleton]
+    bind[CrawlFrontier].toProvider[CrawlFrontierProvider].in[Singleton]
+    bind[HostLimiterRegistry].toProvider[HostLimiterRegistryProvider].in[Singleton]
+    bind[BandwidthLimiter].toProvider[BandwidthLimiterProvider].in[Singleton]
+    bind[StatsRegistry].in[Singleton]
     bind[ActorRef].annotatedWithName("fileDownloader").toProvider[FileDownloaderProvider].in[Singleton]
   }
 }
@@ -0,0 +1,11 @@
+package com.karasiq.gallerysaver.app.guice.providers
+
+import com.google.inject.{Inject, Provider}
+import com.karasiq.gallerysaver.mapdb.AppKVStore
+import com.typesafe.config.Config
+
+class AppKVStoreProvider @Inject()(config: Config) extends Provider[AppKVStore] {
+  override def get(): AppKVStore = {
+    new AppKVStore(config.getConfig("gallery-saver.kv-store"))
+  }
+}
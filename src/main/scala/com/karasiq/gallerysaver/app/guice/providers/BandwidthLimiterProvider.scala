@@ -0,0 +1,25 @@
+package com.karasiq.gallerysaver.app.guice.providers
+
+import akka.actor.ActorSystem
+import akka.event.Logging
+import com.google.inject.{Inject, Provider}
+import com.karasiq.gallerysaver.limits.BandwidthLimiter
+import com.typesafe.config.Config
+
+class BandwidthLimiterProvider @Inject()(config: Config, actorSystem: ActorSystem) extends Provider[BandwidthLimiter] {
+  override def get(): BandwidthLimiter = {
+    val limiter = BandwidthLimiter(config.getConfig("gallery-saver.bandwidth"))(actorSystem.scheduler)
+    val settings = limiter.settings
+    val backend = config.getString("gallery-saver.file-downloader.backend")
+
+    // Only akka-http streams are shaped
+    val log = Logging(actorSystem, "BandwidthLimiter")
+    if (backend != "akka-http" && (settings.downloads > 0 || settings.perHost > 0 || settings.hosts.nonEmpty || settings.loaders.nonEmpty)) {
+      log.warning("Download rate limits are configured, but not supported by {} file downloader backend", backend)
+    }
+    if (settings.global > 0) {
+      log.warning("HtmlUnit page loads are not limited, global rate applies to akka-http page fetches only")
+    }
+    limiter
+  }
+}
@@ -5,9 +5,11 @@ import java.nio.file.Paths
 import akka.actor.{ActorRef, ActorSystem, Props}
 import com.google.inject.{Inject, Provider}
 import com.karasiq.gallerysaver.builtin.{ImageHostingLoader, PreviewLoader}
-import com.karasiq.gallerysaver.dispatcher.{GallerySaverDispatcher, LoaderRegistry}
-import com.karasiq.gallerysaver.mapdb.{AppSQLContext, GalleryCacheStore}
+import com.karasiq.gallerysaver.dispatcher._
+import com.karasiq.gallerysaver.limits.{BandwidthLimiter, HostLimiterRegistry}
+import com.karasiq.gallerysaver.mapdb._
 import com.karasiq.gallerysaver.scripting.internal.GallerySaverContext
+import com.karasiq.gallerysaver.stats.StatsRegistry
 import com.typesafe.config.Config
 import javax.inject.Named
 
@@ -15,13 +17,21 @@ import scala.concurrent.ExecutionContext
 
 class BaseGallerySaverContextProvider @Inject()(sqlContext: AppSQLContext, config: Config,
                                                 actorSystem: ActorSystem, executionContext: ExecutionContext,
-                                                @Named("fileDownloader") fileDownloader: ActorRef, galleryCache: GalleryCacheStore) extends Provider[GallerySaverContext] {
+                                                @Named("fileDownloader") fileDownloader: ActorRef, galleryCache: GalleryCacheStore,
+                                                hostLimits: HostLimiterRegistry, bandwidth: BandwidthLimiter, crawlFrontier: CrawlFrontier,
+                                                stats: StatsRegistry, historyStore: FDHistoryStore, contentStore: ContentStore) extends Provider[GallerySaverContext] {
 
   def get(): GallerySaverContext = {
     val registry = LoaderRegistry()
-    val gallerySaverDispatcher = actorSystem.actorOf(Props(classOf[GallerySaverDispatcher], Paths.get(config.getString("gallery-saver.destination")), galleryCache, fileDownloader, registry), "gallerySaverDispatcher")
+    val downloadQueue = actorSystem.actorOf(Props(classOf[FileDownloadQueue], DownloadQueueSettings(config.getConfig("gallery-saver.download-queue")), new H2DownloadQueueStore(sqlContext), stats.global)
+      .withDispatcher("gallery-saver.blocking-dispatcher"), "downloadQueue")
+    val gallerySaverDispatcher = actorSystem.actorOf(Props(classOf[GallerySaverDispatcher], Paths.get(config.getString("gallery-saver.destination")), galleryCache, fileDownloader, downloadQueue, registry, stats.global,
+      GalleryCacheTtl(config.getConfig("gallery-saver.gallery-cache.ttl")), bandwidth), "gallerySaverDispatcher")
 
-    implicit val context = GallerySaverContext(config, sqlContext, executionContext, gallerySaverDispatcher, null, actorSystem, registry)
+    val frontier = Some(crawlFrontier).filter(_ ⇒ config.getBoolean("gallery-saver.crawl.frontier.enabled"))
+    val crawlGraph = new CrawlGraph(gallerySaverDispatcher, CrawlSettings(config.getConfig("gallery-saver.crawl")), frontier, stats)(actorSystem, executionContext)
+
+    implicit val context = GallerySaverContext(config, sqlContext, executionContext, gallerySaverDispatcher, null, actorSystem, registry, crawlGraph, hostLimits, bandwidth, stats, historyStore, contentStore)
 
     context.registry
       .register(new PreviewLoader)
@@ -0,0 +1,13 @@
+package com.karasiq.gallerysaver.app.guice.providers
+
+import akka.actor.ActorSystem
+import akka.event.Logging
+import com.google.inject.{Inject, Provider}
+import com.karasiq.gallerysaver.mapdb.{AppSQLContext, ContentStore, ContentStoreSettings}
+import com.typesafe.config.Config
+
+class ContentStoreProvider @Inject()(sql: AppSQLContext, config: Config, actorSystem: ActorSystem) extends Provider[ContentStore] {
+  override def get(): ContentStore = {
+    new ContentStore(sql, ContentStoreSettings(config.getConfig("gallery-saver.content-store")), Logging(actorSystem, "ContentStore"))
+  }
+}
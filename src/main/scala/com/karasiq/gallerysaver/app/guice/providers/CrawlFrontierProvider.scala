@@ -0,0 +1,13 @@
+package com.karasiq.gallerysaver.app.guice.providers
+
+import akka.actor.ActorSystem
+import akka.event.Logging
+import com.google.inject.{Inject, Provider}
+import com.karasiq.gallerysaver.mapdb.{AppSQLContext, CrawlFrontier, H2CrawlFrontier}
+import com.typesafe.config.Config
+
+class CrawlFrontierProvider @Inject()(sql: AppSQLContext, config: Config, actorSystem: ActorSystem) extends Provider[CrawlFrontier] {
+  override def get(): CrawlFrontier = {
+    new H2CrawlFrontier(sql, config.getConfig("gallery-saver.crawl.frontier"), Logging(actorSystem, "CrawlFrontier"))
+  }
+}
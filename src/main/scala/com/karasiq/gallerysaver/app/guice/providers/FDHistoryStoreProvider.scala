@@ -1,10 +1,45 @@
 package com.karasiq.gallerysaver.app.guice.providers
 
+import akka.actor.ActorSystem
+import akka.event.{Logging, LoggingAdapter}
 import com.google.inject.{Inject, Provider}
-import com.karasiq.gallerysaver.mapdb.{AppSQLContext, FDHistoryStore, H2FDHistoryStore}
+import com.karasiq.gallerysaver.mapdb._
+import com.typesafe.config.Config
 
-class FDHistoryStoreProvider @Inject()(sql: AppSQLContext) extends Provider[FDHistoryStore] {
+class FDHistoryStoreProvider @Inject()(sql: AppSQLContext, kv: AppKVStore, config: Config, actorSystem: ActorSystem) extends Provider[FDHistoryStore] {
   override def get(): FDHistoryStore = {
-    new H2FDHistoryStore(sql)
+    val log = Logging(actorSystem, "FDHistoryStore")
+    val kvConfig = config.getConfig("gallery-saver.kv-store")
+    val store = if (kvConfig.getString("history") == "mvstore") {
+      // MVStore lookups and writes are cheap, write-behind and filter are not used
+      val store = new MVFDHistoryStore(kv)
+      if (kvConfig.getBoolean("migrate")) new KVStoreMigration(sql, kv, log).history(store)
+      store
+    } else {
+      sqlStore(log)
+    }
+
+    val indexConfig = config.getConfig("gallery-saver.history-index")
+    if (indexConfig.getBoolean("enabled")) {
+      IndexedFDHistoryStore(store, indexConfig.getLong("min-entries"), log)
+    } else {
+      store
+    }
+  }
+
+  private[this] def sqlStore(log: LoggingAdapter): FDHistoryStore = {
+    val writerConfig = config.getConfig("gallery-saver.history-writer")
+    val store = if (writerConfig.getBoolean("enabled")) {
+      new BufferedFDHistoryStore(sql, new H2FDHistoryStore(sql), writerConfig, log)
+    } else {
+      new H2FDHistoryStore(sql)
+    }
+
+    val filterConfig = config.getConfig("gallery-saver.history-filter")
+    if (filterConfig.getBoolean("enabled")) {
+      FilteredFDHistoryStore(sql, store, HistoryFilterSettings(filterConfig), log)
+    } else {
+      store
+    }
   }
 }
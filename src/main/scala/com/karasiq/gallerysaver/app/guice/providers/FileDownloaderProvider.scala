@@ -1,19 +1,75 @@
 package com.karasiq.gallerysaver.app.guice.providers
 
+import java.nio.file.Paths
+import java.util.concurrent.TimeUnit
+
 import akka.actor.{ActorRef, ActorSystem, Props}
+import akka.event.Logging
+import akka.routing.ConsistentHashingPool
+import akka.routing.ConsistentHashingRouter.ConsistentHashMapping
 import com.google.inject.{Inject, Provider}
+import com.karasiq.gallerysaver.downloader.{AkkaHttpDownloaderSettings, AkkaHttpFileDownloader}
 import com.karasiq.gallerysaver.imageconverter.FileDownloaderImageConverter
-import com.karasiq.gallerysaver.mapdb.{FDHistoryStore, FileDownloaderHistory}
-import com.karasiq.networkutils.downloader.{FileDownloaderActor, FileDownloaderTraits, HttpClientFileDownloader}
+import com.karasiq.gallerysaver.limits.{BandwidthLimiter, HostLimitedFileDownloader, HostLimiterRegistry}
+import com.karasiq.gallerysaver.mapdb._
+import com.karasiq.gallerysaver.stats.StatsRegistry
+import com.karasiq.networkutils.downloader._
+import com.typesafe.config.Config
+
+import scala.concurrent.duration._
 
-class FileDownloaderProvider @Inject()(store: FDHistoryStore, actorSystem: ActorSystem) extends Provider[ActorRef] {
+class FileDownloaderProvider @Inject()(store: FDHistoryStore, sql: AppSQLContext, actorSystem: ActorSystem, hostLimits: HostLimiterRegistry, bandwidth: BandwidthLimiter,
+                                       contentStore: ContentStore, stats: StatsRegistry) extends Provider[ActorRef] {
   private[this] def props() = {
-    val history = new FileDownloaderHistory(store)
-    val converter = FileDownloaderImageConverter.fromConfig(actorSystem.settings.config.getConfig("gallery-saver.image-converter"))
-    Props(new HttpClientFileDownloader with FileDownloaderActor with history.WithHistory with converter.WithImageConverter with FileDownloaderTraits.CheckSize with FileDownloaderTraits.CheckModified)
+    val config = actorSystem.settings.config
+    val content = Some(contentStore).filter(_.settings.enabled)
+    val dedup = FileDownloaderHistory.Dedup(config.getConfig("gallery-saver.history-dedup"))
+    val converter = FileDownloaderImageConverter.fromConfig(config.getConfig("gallery-saver.image-converter"), stats.global, content)
+    config.getString("gallery-saver.file-downloader.backend") match {
+      case "akka-http" ⇒
+        // Existing files are checked with conditional requests and response Content-Length, no separate probes
+        val akkaHttpConfig = config.getConfig("gallery-saver.file-downloader.akka-http")
+        val partials = if (akkaHttpConfig.getBoolean("resume")) Some(new H2PartialDownloadStore(sql)) else None
+        val freshness = if (akkaHttpConfig.getBoolean("revalidation.enabled")) {
+          Some(akkaHttpConfig.getDuration("revalidation.freshness", TimeUnit.MILLISECONDS).millis)
+        } else {
+          None
+        }
+        val history = new FileDownloaderHistory(store, stats.global, dedup, content, freshness)
+        val downloader = Props(new AkkaHttpFileDownloader(AkkaHttpDownloaderSettings(akkaHttpConfig), content, partials, Some(hostLimits), Some(store), Some(bandwidth)) with history.WithHistory with converter.WithImageConverter)
+          .withDispatcher("gallery-saver.blocking-dispatcher")
+
+        // History checks, hashing, conversion and history writes are synchronous, so they are spread over instances.
+        // Files of the same path are handled by the same instance
+        ConsistentHashingPool(akkaHttpConfig.getInt("instances"), hashMapping = filePath).props(downloader)
+
+      case "http-client" ⇒
+        // Validators are recorded by akka-http backend only
+        val revalidation = "gallery-saver.file-downloader.akka-http.revalidation.enabled"
+        if (isOverridden(config, revalidation) && config.getBoolean(revalidation)) {
+          Logging(actorSystem, "FileDownloader").warning("Revalidation is enabled, but not supported by http-client file downloader backend")
+        }
+        val history = new FileDownloaderHistory(store, stats.global, dedup, content)
+        Props(new HttpClientFileDownloader with FileDownloaderActor with history.WithHistory with converter.WithImageConverter with FileDownloaderTraits.CheckSize with FileDownloaderTraits.CheckModified)
+
+      case backend ⇒
+        throw new IllegalArgumentException(s"Unknown file downloader backend: $backend")
+    }
+  }
+
+  // Set outside of reference.conf
+  private[this] def isOverridden(config: Config, path: String): Boolean = {
+    !Option(config.getValue(path).origin().resource()).contains("reference.conf")
+  }
+
+  private[this] val filePath: ConsistentHashMapping = {
+    case file: FileToDownload ⇒
+      Paths.get(file.directory, FileDownloader.fileNameFor(file.url, file.fileName)).toString
   }
 
   override def get(): ActorRef = {
-    actorSystem.actorOf(this.props(), "defaultFileDownloader")
+    val fileDownloader = actorSystem.actorOf(this.props(), "defaultFileDownloader")
+    val reportTimeout = actorSystem.settings.config.getDuration("gallery-saver.host-limits.download-report-timeout", TimeUnit.MILLISECONDS).millis
+    actorSystem.actorOf(Props(classOf[HostLimitedFileDownloader], fileDownloader, hostLimits, reportTimeout), "hostLimitedFileDownloader")
   }
 }
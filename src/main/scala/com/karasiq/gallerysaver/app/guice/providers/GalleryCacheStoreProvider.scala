@@ -1,10 +1,44 @@
 package com.karasiq.gallerysaver.app.guice.providers
 
+import akka.actor.ActorSystem
+import akka.event.Logging
 import com.google.inject.{Inject, Provider}
-import com.karasiq.gallerysaver.mapdb.{AppSQLContext, GalleryCacheStore, H2GalleryCacheStore}
+import com.karasiq.gallerysaver.mapdb._
+import com.karasiq.gallerysaver.stats.StatsRegistry
+import com.typesafe.config.Config
 
-class GalleryCacheStoreProvider @Inject()(sql: AppSQLContext) extends Provider[GalleryCacheStore] {
+import scala.util.control.NonFatal
+
+class GalleryCacheStoreProvider @Inject()(sql: AppSQLContext, kv: AppKVStore, config: Config, stats: StatsRegistry, actorSystem: ActorSystem) extends Provider[GalleryCacheStore] {
   override def get(): GalleryCacheStore = {
-    new H2GalleryCacheStore(sql)
+    val log = Logging(actorSystem, "GalleryCacheStore")
+    val kvConfig = config.getConfig("gallery-saver.kv-store")
+    val compression = GalleryCacheCodec.Compression(config.getConfig("gallery-saver.gallery-cache.compression"))
+    val mvStore = kvConfig.getString("gallery-cache") == "mvstore"
+    val store = if (mvStore) {
+      val store = new MVGalleryCacheStore(kv, compression)
+      if (kvConfig.getBoolean("migrate")) new KVStoreMigration(sql, kv, log).galleryCache(store)
+      store
+    } else {
+      new H2GalleryCacheStore(sql, compression)
+    }
+
+    val memoryConfig = config.getConfig("gallery-saver.gallery-cache.memory-tier")
+    val memory = if (memoryConfig.getBoolean("enabled")) {
+      Some(new MemoryGalleryCacheStore(store, memoryConfig.getBytes("max-size"), stats.global))
+    } else {
+      None
+    }
+
+    if (!mvStore) {
+      val evictionSettings = GalleryCacheEvictionSettings(config.getConfig("gallery-saver.gallery-cache.eviction"))
+      val evictor = new GalleryCacheEvictor(sql, evictionSettings, log, urls ⇒ memory.foreach(_.invalidate(urls)))
+      val blockingContext = actorSystem.dispatchers.lookup("gallery-saver.blocking-dispatcher")
+      actorSystem.scheduler.schedule(evictionSettings.interval, evictionSettings.interval) {
+        try evictor.run() catch { case NonFatal(exc) ⇒ log.error(exc, "Gallery cache eviction failed") }
+      }(blockingContext)
+    }
+
+    memory.getOrElse(store)
   }
 }
@@ -0,0 +1,12 @@
+package com.karasiq.gallerysaver.app.guice.providers
+
+import akka.actor.ActorSystem
+import com.google.inject.{Inject, Provider}
+import com.karasiq.gallerysaver.limits.HostLimiterRegistry
+import com.typesafe.config.Config
+
+class HostLimiterRegistryProvider @Inject()(config: Config, actorSystem: ActorSystem) extends Provider[HostLimiterRegistry] {
+  override def get(): HostLimiterRegistry = {
+    HostLimiterRegistry(config.getConfig("gallery-saver.host-limits"))(actorSystem.scheduler)
+  }
+}
@@ -24,6 +24,11 @@ class ImageHostingLoader(implicit ctx: GallerySaverContext) extends GalleryLoade
     ImageHostingExtractor.predefinedExtractors.isDefinedAt(url)
   }
 
+  /**
+    * Hosts of predefined image hosting extractors
+    */
+  override def hosts: Set[String] = ImageHostingExtractor.predefinedHosts
+
   /**
     * Fetches resources from URL
     * @param url URL
@@ -62,7 +62,16 @@ object ImageHostingExtractor {
     expandImageHostingR(Regex.quote(urlStart), getImage)
   }
 
-  def predefinedExtractors: PartialFunction[AnyRef, CapturedPage] = {
+  /**
+    * Hosts covered by predefined extractors
+    */
+  val predefinedHosts: Set[String] = Set(
+    "postimg.org", "fotki.yandex.ru", "imagevenue.com", "hostingpics.net", "imageshack.us", "imageshack.com",
+    "vfl.ru", "imageban.ru", "ifotki.info", "imagebam.com", "hostingfailov.com", "piccy.info", "fastpic.ru",
+    "jpegshare.net", "saveimg.ru", "ii4.ru", "savepic.ru", "radikal.ru", "f-picture.net", "imgur.com"
+  )
+
+  lazy val predefinedExtractors: PartialFunction[AnyRef, CapturedPage] = {
     Vector(
       expandImageHosting("postimg.org/image/",
         _.elementOption(_.getFirstByXPath[HtmlImage]("/html/body/center/img"))),
@@ -21,4 +21,25 @@ object URLUtils {
     val query = Option(parsedUrl.getQuery).fold("")("?" + _)
     new URL(parsedUrl.getProtocol, parsedUrl.getHost, fixedFile + query).toString
   }
+
+  /**
+    * Extracts lower-cased host name without parsing the whole URL
+    * @param url URL
+    * @return Host name, or `None` if URL has no authority part
+    */
+  def hostOf(url: String): Option[String] = {
+    val schemeEnd = url.indexOf("://")
+    if (schemeEnd <= 0) return None
+
+    val start = schemeEnd + 3
+    var end = start
+    while (end < url.length && "/?#".indexOf(url.charAt(end)) == -1) end += 1
+
+    val authority = url.substring(url.lastIndexOf('@', end - 1).max(start - 1) + 1, end)
+    val host = authority.lastIndexOf(':') match {
+      case portStart if portStart > authority.lastIndexOf(']') ⇒ authority.substring(0, portStart)
+      case _ ⇒ authority
+    }
+    if (host.isEmpty) None else Some(host.toLowerCase)
+  }
 }
@@ -0,0 +1,392 @@
+package com.karasiq.gallerysaver.dispatcher
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+import scala.collection.JavaConverters._
+import scala.collection.immutable
+import scala.collection.concurrent.TrieMap
+import scala.concurrent.{ExecutionContext, Future, Promise}
+import scala.concurrent.duration._
+import scala.util.Success
+import scala.util.control.NonFatal
+
+import akka.{Done, NotUsed}
+import akka.actor.{Actor, ActorRef, ActorSystem, Props}
+import akka.event.Logging
+import akka.pattern.ask
+import akka.stream.ActorMaterializer
+import akka.stream.scaladsl.{Sink, Source}
+import akka.util.Timeout
+import com.typesafe.config.Config
+
+import com.karasiq.gallerysaver.limits.AsyncSemaphore
+import com.karasiq.gallerysaver.mapdb.{CrawlFrontier, FrontierEntry}
+import com.karasiq.gallerysaver.scripting.resources.{CacheableGallery, InfiniteGallery, LoadableFile, LoadableResource}
+import com.karasiq.gallerysaver.stats.{JobStats, StatsRegistry}
+
+/**
+  * Traversal settings
+  * @param parallelism              Default simultaneously fetched resources count per hierarchy level
+  * @param depthParallelism         Per hierarchy depth overrides (root resources have depth 0)
+  * @param loaderParallelism        Simultaneously fetched resources count per loader ID
+  * @param downloadParallelism      Files awaiting file downloader acknowledgement
+  * @param handoffTimeout           Max time file waits for download queue acknowledgement
+  * @param fetchTimeout             Single resource fetch timeout
+  * @param infiniteGalleryTimeLimit Infinite galleries loading time limit
+  */
+final case class CrawlSettings(parallelism: Int, depthParallelism: Seq[Int], loaderParallelism: Map[String, Int],
+                               downloadParallelism: Int, handoffTimeout: FiniteDuration, fetchTimeout: FiniteDuration,
+                               infiniteGalleryTimeLimit: FiniteDuration) {
+
+  def parallelismFor(depth: Int): Int = {
+    depthParallelism.lift(depth).getOrElse(parallelism)
+  }
+}
+
+object CrawlSettings {
+  def apply(config: Config): CrawlSettings = {
+    val loaderParallelism = config.getConfig("loader-parallelism")
+    CrawlSettings(
+      config.getInt("parallelism"),
+      config.getIntList("depth-parallelism").asScala.map(_.intValue()).toVector,
+      loaderParallelism.root().keySet().asScala.map(id ⇒ id → loaderParallelism.getInt(id)).toMap,
+      config.getInt("download-parallelism"),
+      config.getDuration("handoff-timeout", TimeUnit.MILLISECONDS).millis,
+      config.getDuration("fetch-timeout", TimeUnit.MILLISECONDS).millis,
+      config.getDuration("infinite-gallery-time-limit", TimeUnit.MILLISECONDS).millis
+    )
+  }
+}
+
+/**
+  * Backpressured resource hierarchy traversal.
+  * Fetch concurrency is limited globally per hierarchy depth and per loader, files are pulled only as fast as dispatcher acknowledges them.
+  * Concurrent fetches of the same plain gallery are coalesced, repeated references receive the pending result patched to their hierarchy.
+  * Download jobs are recorded in crawl frontier (if provided) and can be resumed after restart,
+  * file entries are completed only when the file is downloaded or spilled to disk, not when it's accepted to download queue.
+  * Each traversal registers job statistics: fetched resources, fetch latency, dispatched files and errors
+  * @note Frontier entries are recorded on `gallery-saver.blocking-dispatcher`
+  * @param dispatcher Primary loader dispatcher
+  * @param settings   Traversal settings
+  * @param frontier   Persistent crawl state
+  * @param stats      Statistics registry
+  */
+final class CrawlGraph(dispatcher: ActorRef, settings: CrawlSettings, frontier: Option[CrawlFrontier] = None, stats: StatsRegistry = new StatsRegistry)
+                      (implicit actorSystem: ActorSystem, executionContext: ExecutionContext) {
+
+  import CrawlGraph._
+
+  private[this] implicit val materializer = ActorMaterializer()
+  private[this] implicit val timeout = Timeout(settings.fetchTimeout)
+  private[this] val log = Logging(actorSystem, "CrawlGraph")
+  private[this] val blockingContext: ExecutionContext = actorSystem.dispatchers.lookup("gallery-saver.blocking-dispatcher")
+
+  private[this] val depthLimits = TrieMap.empty[Int, AsyncSemaphore]
+  private[this] val loaderLimits = settings.loaderParallelism.map { case (id, permits) ⇒ id → new AsyncSemaphore(permits) }
+
+  // Receives persistence notifications of tracked files
+  private[this] lazy val deliveries = actorSystem.actorOf(Props(new DeliveryListener))
+
+  /**
+    * Performs full traverse and extracts all available files
+    * @param resources Root resources
+    * @return All available files
+    */
+  def files(resources: Source[LoadableResource, NotUsed]): Source[LoadableFile, NotUsed] = {
+    val traversal = new Traversal(None)
+    expand(resources.map(ResourceNode(0L, _)), 0, traversal)
+      .map(_.file)
+      .watchTermination() { (_, done) ⇒
+        done.onComplete(_ ⇒ traversal.finish())
+        NotUsed
+      }
+  }
+
+  /**
+    * Performs full traverse and passes all available files to dispatcher
+    * @param resources Root resources
+    * @return Traversal completion future
+    */
+  def download(resources: Source[LoadableResource, NotUsed]): Future[Done] = {
+    val traversal = startJob()
+    run(traversal, expand(resources.mapAsync(1)(resource ⇒ traversal.track(0, resource :: Nil)).mapConcat(identity), 0, traversal))
+  }
+
+  /**
+    * Fetches URLs, performs full traverse and passes all available files to dispatcher
+    * @param urls Resource URLs
+    * @return Traversal completion future
+    */
+  def downloadUrls(urls: Seq[String]): Future[Done] = {
+    val traversal = startJob()
+    run(traversal, expand(Source(traversal.trackUrls(urls)), 0, traversal))
+  }
+
+  /**
+    * Resumes download jobs interrupted by restart
+    * @return Resumed jobs completion future
+    */
+  def resume(): Future[Done] = frontier match {
+    case Some(frontier) ⇒
+      val jobs = Future(concurrent.blocking(frontier.unfinishedJobs))
+      jobs.flatMap { jobs ⇒
+        Future.traverse(jobs) { job ⇒
+          log.info("Resuming crawl job #{}", job)
+          val traversal = new Traversal(Some(frontier → job))
+          // Entries are read in pages as they are expanded, fetches are still limited per depth and loader
+          val files = Source.fromIterator(() ⇒ frontier.pending(job)).flatMapMerge(settings.parallelism, { entry ⇒
+            expand(Source.single(toNode(entry)), entry.depth, traversal)
+          })
+          run(traversal, files)
+        }
+      }.map(_ ⇒ Done)
+
+    case None ⇒
+      Future.successful(Done)
+  }
+
+  private[this] def startJob(): Traversal = {
+    new Traversal(frontier.map(frontier ⇒ frontier → frontier.startJob()))
+  }
+
+  // Job is finished before returned future completes, files still being downloaded are completed later.
+  // Failed traversal is finished too, its pending entries keep the job unfinished in frontier
+  private[this] def run(traversal: Traversal, files: Source[FileNode, NotUsed]): Future[Done] = {
+    files
+      .mapAsyncUnordered(settings.downloadParallelism)(dispatchFile(_, traversal))
+      .runWith(Sink.ignore)
+      .transform { result ⇒
+        traversal.finish()
+        result
+      }
+  }
+
+  private[this] def expand(nodes: Source[CrawlNode, NotUsed], depth: Int, traversal: Traversal): Source[FileNode, NotUsed] = {
+    nodes.flatMapMerge(settings.parallelismFor(depth), {
+      case UrlNode(id, url) ⇒
+        val resources = fetchUrl(url, traversal).flatMap(traversal.expanded(id, depth, _))
+        expand(Source.fromFuture(recovered(url, resources, traversal)).mapConcat(identity), depth, traversal)
+
+      case ResourceNode(id, file: LoadableFile) ⇒
+        Source.single(FileNode(id, file))
+
+      case ResourceNode(id, gallery: InfiniteGallery) ⇒
+        val resources = Source.fromFuture((dispatcher ? gallery).mapTo[LoadedResources])
+          .flatMapConcat(_.resources)
+          .takeWithin(settings.infiniteGalleryTimeLimit)
+          .mapAsync(1) { resource ⇒
+            traversal.stats.resourcesLoaded(gallery.loader)
+            traversal.track(depth + 1, resource :: Nil)
+          }
+          .mapConcat(identity)
+          .alsoTo(Sink.onComplete {
+            case Success(_) ⇒ traversal.complete(id)
+            case _ ⇒ // Retried on resume
+          })
+          .recoverWithRetries(1, { case NonFatal(exc) ⇒
+            traversal.error()
+            log.error(exc, "Error fetching resource: {}", gallery)
+            Source.empty
+          })
+        expand(resources, depth + 1, traversal)
+
+      case ResourceNode(id, cacheable: CacheableGallery) ⇒
+        val resources = fetch(cacheable, depth, traversal).flatMap(traversal.expanded(id, depth + 1, _))
+        expand(Source.fromFuture(recovered(cacheable, resources, traversal)).mapConcat(identity), depth + 1, traversal)
+
+      case ResourceNode(id, gallery) ⇒
+        val key = (gallery.loader, gallery.url)
+        val promise = Promise[immutable.Seq[LoadableResource]]()
+        val future = traversal.fetched.putIfAbsent(key, promise.future) match {
+          case Some(previous) ⇒
+            log.debug("Already fetching in this traversal: {}", gallery)
+            previous.map(GallerySaverDispatcher.patchResources(_, gallery).toVector)
+
+          case None ⇒
+            promise.completeWith(fetch(gallery, depth, traversal))
+            // Only fetches in flight are kept, completed listings are not held until the traversal ends
+            promise.future.onComplete(_ ⇒ traversal.fetched.remove(key, promise.future))
+            promise.future
+        }
+
+        val resources = future.flatMap(traversal.expanded(id, depth + 1, _))
+        expand(Source.fromFuture(recovered(gallery, resources, traversal)).mapConcat(identity), depth + 1, traversal)
+    })
+  }
+
+  private[this] def fetchUrl(url: String, traversal: Traversal): Future[immutable.Seq[LoadableResource]] = {
+    val startNanos = System.nanoTime()
+    val future = (dispatcher ? url).flatMap {
+      case LoadedResources(resources) ⇒
+        resources.completionTimeout(settings.fetchTimeout).runWith(Sink.seq)
+
+      case _ ⇒
+        Future.successful(Nil)
+    }
+    future.foreach(traversal.recordFetch(startNanos, None, _))
+    future
+  }
+
+  private[this] def fetch(resource: LoadableResource, depth: Int, traversal: Traversal): Future[immutable.Seq[LoadableResource]] = {
+    def fetchResources(): Future[immutable.Seq[LoadableResource]] = {
+      val depthLimit = depthLimits.getOrElseUpdate(depth, new AsyncSemaphore(settings.parallelismFor(depth)))
+      depthLimit.withPermit { () ⇒
+        val startNanos = System.nanoTime()
+        val future = (dispatcher ? resource)
+          .mapTo[LoadedResources]
+          .flatMap(_.resources.completionTimeout(settings.fetchTimeout).runWith(Sink.seq))
+        future.foreach(traversal.recordFetch(startNanos, Some(resource.loader), _))
+        future
+      }
+    }
+
+    loaderLimits.get(resource.loader) match {
+      case Some(loaderLimit) ⇒
+        loaderLimit.withPermit(fetchResources _)
+
+      case None ⇒
+        fetchResources()
+    }
+  }
+
+  private[this] def recovered[T](source: Any, future: Future[immutable.Seq[T]], traversal: Traversal): Future[immutable.Seq[T]] = {
+    future.recover { case NonFatal(exc) ⇒
+      traversal.error()
+      log.error(exc, "Error fetching resource: {}", source)
+      Nil
+    }
+  }
+
+  private[this] def dispatchFile(node: FileNode, traversal: Traversal): Future[Unit] = {
+    val message = if (traversal.isTracked) {
+      traversal.dispatched()
+      GallerySaverDispatcher.TrackedFile(node.file, deliveries, Delivered(() ⇒ traversal.delivered(node.id)))
+    } else {
+      node.file
+    }
+
+    (dispatcher ? message)(Timeout(settings.handoffTimeout))
+      .map(_ ⇒ traversal.stats.filesQueued.increment())
+      .recover { case NonFatal(exc) ⇒
+        // Not accepted, so never delivered
+        if (traversal.isTracked) traversal.released()
+        traversal.error()
+        log.error(exc, "Error dispatching file: {}", node.file)
+      }
+  }
+
+  // Traversal scoped state
+  private[this] final class Traversal(job: Option[(CrawlFrontier, Long)]) {
+    // Plain gallery fetches in flight by (loader ID, URL)
+    val fetched = TrieMap.empty[(String, String), Future[immutable.Seq[LoadableResource]]]
+
+    val (statsId, stats) = CrawlGraph.this.stats.startJob()
+
+    // Accepted files not downloaded yet
+    private[this] val pendingFiles = new AtomicInteger()
+    @volatile private[this] var finished = false
+
+    def isTracked: Boolean = job.nonEmpty
+
+    // Loader ID is unknown for plain URLs, resources are counted by their own loader IDs
+    def recordFetch(startNanos: Long, loader: Option[String], resources: immutable.Seq[LoadableResource]): Unit = {
+      val elapsed = System.nanoTime() - startNanos
+      stats.fetchLatency.record(elapsed)
+      CrawlGraph.this.stats.global.fetchLatency.record(elapsed)
+      loader match {
+        case Some(loader) ⇒
+          stats.resourcesLoaded(loader, resources.length)
+
+        case None ⇒
+          resources.groupBy(_.loader).foreach { case (loader, resources) ⇒ stats.resourcesLoaded(loader, resources.length) }
+      }
+    }
+
+    def error(): Unit = {
+      stats.errors.increment()
+      CrawlGraph.this.stats.global.errors.increment()
+    }
+
+    def trackUrls(urls: Seq[String]): immutable.Seq[CrawlNode] = job match {
+      case Some((frontier, job)) ⇒
+        urls.zip(frontier.addUrls(job, urls)).map { case (url, id) ⇒ UrlNode(id, url) }.toVector
+
+      case None ⇒
+        urls.map(UrlNode(0L, _)).toVector
+    }
+
+    // Resources serialization and ID allocation may query the database, so they are performed on blocking dispatcher
+    def track(depth: Int, resources: immutable.Seq[LoadableResource]): Future[immutable.Seq[CrawlNode]] = job match {
+      case Some((frontier, job)) ⇒
+        Future(concurrent.blocking {
+          resources.zip(frontier.add(job, depth, resources)).map { case (resource, id) ⇒ ResourceNode(id, resource) }
+        })(blockingContext)
+
+      case None ⇒
+        Future.successful(resources.map(ResourceNode(0L, _)))
+    }
+
+    // Children are recorded before parent is marked completed
+    def expanded(id: Long, depth: Int, resources: immutable.Seq[LoadableResource]): Future[immutable.Seq[CrawlNode]] = {
+      track(depth, resources).map { nodes ⇒
+        complete(id)
+        nodes
+      }
+    }
+
+    def complete(id: Long): Unit = {
+      job.foreach(_._1.complete(id))
+    }
+
+    def dispatched(): Unit = {
+      pendingFiles.incrementAndGet()
+    }
+
+    def released(): Unit = {
+      if (pendingFiles.decrementAndGet() == 0 && finished) finishJob()
+    }
+
+    // Job is finished again when the last file is downloaded after traversal end, failed files keep it unfinished
+    def delivered(id: Long): Unit = {
+      complete(id)
+      released()
+    }
+
+    def finish(): Unit = {
+      finished = true
+      finishJob()
+      CrawlGraph.this.stats.finishJob(statsId).foreach(log.info("Crawl job finished: {}", _))
+    }
+
+    private[this] def finishJob(): Unit = {
+      job.foreach { case (frontier, job) ⇒ frontier.finishJob(job) }
+    }
+  }
+}
+
+private object CrawlGraph {
+  sealed trait CrawlNode {
+    def id: Long
+  }
+
+  final case class UrlNode(id: Long, url: String) extends CrawlNode
+  final case class ResourceNode(id: Long, resource: LoadableResource) extends CrawlNode
+  final case class FileNode(id: Long, file: LoadableFile)
+  final case class Delivered(callback: () ⇒ Unit)
+
+  final class DeliveryListener extends Actor {
+    def receive: Receive = {
+      case Delivered(callback) ⇒
+        callback()
+    }
+  }
+
+  def toNode(entry: FrontierEntry): CrawlNode = entry.resource match {
+    case Some(resource) ⇒
+      ResourceNode(entry.id, resource)
+
+    case None ⇒
+      UrlNode(entry.id, entry.url)
+  }
+}
@@ -0,0 +1,167 @@
+package com.karasiq.gallerysaver.dispatcher
+
+import java.util.concurrent.TimeUnit
+
+import scala.collection.mutable
+import scala.concurrent.duration._
+import scala.util.{Failure, Success, Try}
+import scala.util.control.NonFatal
+
+import akka.actor.{Actor, ActorLogging, ActorRef, ActorSelection}
+import akka.pattern.ask
+import akka.util.Timeout
+import com.typesafe.config.Config
+
+import com.karasiq.gallerysaver.mapdb.DownloadQueueStore
+import com.karasiq.gallerysaver.stats.JobStats
+import com.karasiq.networkutils.downloader.FileToDownload
+
+/**
+  * Download queue settings
+  * @param maxQueued      Files held in memory, traversal is paused (or files are spilled to disk) above it
+  * @param maxInFlight    Files passed to downloaders simultaneously
+  * @param reportTimeout  Download report timeout
+  * @param spillToDisk    Store files above in-memory bound on disk instead of pausing traversal
+  * @param spillReadBatch Files read from disk at once
+  */
+final case class DownloadQueueSettings(maxQueued: Int, maxInFlight: Int, reportTimeout: FiniteDuration, spillToDisk: Boolean, spillReadBatch: Int)
+
+object DownloadQueueSettings {
+  def apply(config: Config): DownloadQueueSettings = {
+    DownloadQueueSettings(
+      config.getInt("max-queued"),
+      config.getInt("max-in-flight"),
+      config.getDuration("report-timeout", TimeUnit.MILLISECONDS).millis,
+      config.getBoolean("spill-to-disk"),
+      config.getInt("spill-read-batch")
+    )
+  }
+}
+
+object FileDownloadQueue {
+  /**
+    * Enqueues file, [[com.karasiq.gallerysaver.dispatcher.LoadedResources#empty empty resources]] are replied when the file is accepted
+    * @param downloader File downloader actor
+    * @param file       File to download
+    * @param persisted  Notification (recipient and message) sent when the file is downloaded or spilled to disk, accepted file is lost on restart until then
+    */
+  final case class Enqueue(downloader: ActorRef, file: FileToDownload, persisted: Option[(ActorRef, Any)] = None)
+
+  /**
+    * Requests [[com.karasiq.gallerysaver.dispatcher.FileDownloadQueue.QueueStats QueueStats]]
+    */
+  case object GetStats
+
+  /**
+    * Queue depth
+    * @param queued   Files in memory
+    * @param spilled  Files on disk
+    * @param inFlight Files being downloaded
+    * @param waiting  Files not accepted yet
+    */
+  final case class QueueStats(queued: Int, spilled: Long, inFlight: Int, waiting: Int)
+
+  private final case class Queued(downloader: ActorSelection, file: FileToDownload, persisted: Option[(ActorRef, Any)] = None)
+  private final case class Downloaded(queued: Queued, result: Try[Any], startNanos: Long)
+}
+
+/**
+  * Bounded handoff between dispatcher and file downloaders.
+  * Enqueue requests are acknowledged only when there is room in the queue, so traversal is slowed down to download speed.
+  * Acknowledged files are held in memory, persistence is signalled separately when the file is downloaded or spilled to disk
+  * @note Spilling blocks, actor should run on `gallery-saver.blocking-dispatcher`
+  * @param settings Queue settings
+  * @param spill    Spilled files storage
+  * @param stats    Global statistics
+  */
+final class FileDownloadQueue(settings: DownloadQueueSettings, spill: DownloadQueueStore, stats: JobStats) extends Actor with ActorLogging {
+  import FileDownloadQueue._
+  import context.dispatcher
+
+  private[this] implicit val timeout: Timeout = Timeout(settings.reportTimeout)
+
+  private[this] val queue = mutable.Queue.empty[Queued]
+  private[this] val waiting = mutable.Queue.empty[(ActorRef, Queued)]
+  private[this] var spilled = spill.size // Leftovers of previous run are downloaded first
+  private[this] var inFlight = 0
+
+  override def preStart(): Unit = {
+    super.preStart()
+    if (spilled > 0) log.info("Resuming {} spilled downloads", spilled)
+  }
+
+  override def receive: Receive = {
+    case Enqueue(downloader, file, persisted) ⇒
+      val queued = Queued(context.actorSelection(downloader.path), file, persisted)
+      stats.filesQueued.increment()
+      if (spilled == 0 && queue.length < settings.maxQueued) {
+        queue += queued
+        sender() ! LoadedResources.empty
+      } else if (settings.spillToDisk && trySpill(downloader, file)) {
+        sender() ! LoadedResources.empty
+        notifyPersisted(queued)
+      } else {
+        waiting += (sender() → queued)
+      }
+      dispatchNext()
+
+    case Downloaded(queued, result, startNanos) ⇒
+      inFlight -= 1
+      stats.downloadLatency.recordSince(startNanos)
+      result match {
+        case Success(_) ⇒
+          notifyPersisted(queued)
+
+        case Failure(exc) ⇒
+          // Not persisted, file is retried when its crawl job is resumed
+          stats.errors.increment()
+          log.warning("Download failed: {} ({})", queued.file.url, exc)
+      }
+      dispatchNext()
+
+    case GetStats ⇒
+      sender() ! QueueStats(queue.length, spilled, inFlight, waiting.length)
+  }
+
+  private[this] def dispatchNext(): Unit = {
+    while (inFlight < settings.maxInFlight && (queue.nonEmpty || spilled > 0)) {
+      if (queue.isEmpty) loadSpilled()
+      if (queue.nonEmpty) {
+        val queued @ Queued(downloader, file, _) = queue.dequeue()
+        inFlight += 1
+        val startNanos = System.nanoTime()
+        (downloader ? file.copy(sendReport = true)).onComplete(result ⇒ self ! Downloaded(queued, result, startNanos))
+      }
+    }
+
+    while (spilled == 0 && queue.length < settings.maxQueued && waiting.nonEmpty) {
+      val (sender, queued) = waiting.dequeue()
+      queue += queued
+      sender ! LoadedResources.empty
+    }
+  }
+
+  private[this] def notifyPersisted(queued: Queued): Unit = {
+    queued.persisted.foreach { case (recipient, message) ⇒ recipient ! message }
+  }
+
+  private[this] def trySpill(downloader: ActorRef, file: FileToDownload): Boolean = {
+    try {
+      spill.append(downloader.path.toStringWithoutAddress, file)
+      spilled += 1
+      true
+    } catch { case NonFatal(exc) ⇒
+      log.warning("Download can't be spilled to disk: {} ({})", file.url, exc)
+      false
+    }
+  }
+
+  private[this] def loadSpilled(): Unit = {
+    val files = try spill.take(settings.spillReadBatch) catch { case NonFatal(exc) ⇒
+      log.error(exc, "Spilled downloads read failed")
+      Nil
+    }
+    files.foreach { case (downloader, file) ⇒ queue += Queued(context.actorSelection(downloader), file) }
+    spilled = if (files.isEmpty) 0 else (spilled - files.length).max(0)
+  }
+}
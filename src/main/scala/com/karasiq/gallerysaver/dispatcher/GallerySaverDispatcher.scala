@@ -6,23 +6,63 @@ import java.nio.file.{Files, Path, Paths}
 import java.time.Instant
 import java.time.temporal.ChronoUnit
 import java.util.Date
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
 
 import akka.actor.SupervisorStrategy.Restart
 import akka.actor._
+import akka.pattern.pipe
 import akka.stream.scaladsl.{Sink, Source}
 import akka.stream.{ActorMaterializer, ActorMaterializerSettings}
+import com.karasiq.gallerysaver.limits.BandwidthLimiter
 import com.karasiq.gallerysaver.mapdb.GalleryCacheStore
 import com.karasiq.gallerysaver.scripting.loaders.GalleryLoader
 import com.karasiq.gallerysaver.scripting.resources._
+import com.karasiq.gallerysaver.stats.JobStats
 import com.karasiq.networkutils.downloader.{FileDownloader, FileToDownload}
+import com.typesafe.config.Config
 import org.apache.commons.io.IOUtils
 import org.apache.http.impl.cookie.BasicClientCookie
 
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+import scala.concurrent.duration._
+import scala.concurrent.{ExecutionContext, Future}
 import scala.language.postfixOps
 import scala.util.control.Exception
-import scala.util.{Failure, Success, Try}
+
+/**
+  * Gallery cache time to live, zero TTL never expires
+  * @param default Default TTL
+  * @param loaders Per loader ID overrides
+  */
+final case class GalleryCacheTtl(default: FiniteDuration, loaders: Map[String, FiniteDuration]) {
+  def isExpired(loader: String, created: Instant): Boolean = {
+    val ttl = loaders.getOrElse(loader, default)
+    ttl > Duration.Zero && created.plusMillis(ttl.toMillis).isBefore(Instant.now())
+  }
+}
+
+object GalleryCacheTtl {
+  def apply(config: Config): GalleryCacheTtl = {
+    val loaders = config.getConfig("loaders")
+    GalleryCacheTtl(
+      config.getDuration("default", TimeUnit.MILLISECONDS).millis,
+      loaders.root().keySet().asScala.map(id ⇒ id → loaders.getDuration(id, TimeUnit.MILLISECONDS).millis).toMap
+    )
+  }
+}
 
 object GallerySaverDispatcher {
+  private final case class PendingLoadCompleted(key: (String, String), future: Future[Seq[LoadableResource]])
+
+  /**
+    * File with persistence notification, acknowledged as plain file
+    * @param file      File resource descriptor
+    * @param recipient Notification recipient
+    * @param message   Message sent when the file is written, downloaded or spilled to disk, failed files are not notified
+    */
+  final case class TrackedFile(file: LoadableFile, recipient: ActorRef, message: Any)
+
   /**
     * Converts [[com.karasiq.gallerysaver.scripting.resources.LoadableFile LoadableFile]] to [[com.karasiq.networkutils.downloader.FileToDownload FileToDownload]]
     *
@@ -73,49 +113,64 @@ object GallerySaverDispatcher {
 /**
   * Main resource loading dispatcher
   *
+  * @note Cache lookups and generated files writing are performed on `gallery-saver.blocking-dispatcher`
+  * @note Concurrent loads of the same cacheable gallery are coalesced
+  * @note Expired cache entries are served as is and refreshed in background
   * @param rootDirectory  Destination directory
   * @param galleryCache   Cache store
   * @param fileDownloader File downloader actor
+  * @param downloadQueue  Bounded download queue, acknowledges files when they are accepted
   * @param loaders        Loaders registry
+  * @param stats          Global statistics
+  * @param cacheTtl       Gallery cache time to live
+  * @param bandwidth      Byte rate limits, files are attributed to their loaders
   */
-class GallerySaverDispatcher(rootDirectory: Path, galleryCache: GalleryCacheStore, fileDownloader: ActorRef, loaders: LoaderRegistry) extends Actor with ActorLogging {
+class GallerySaverDispatcher(rootDirectory: Path, galleryCache: GalleryCacheStore, fileDownloader: ActorRef, downloadQueue: ActorRef, loaders: LoaderRegistry, stats: JobStats,
+                             cacheTtl: GalleryCacheTtl, bandwidth: BandwidthLimiter) extends Actor with ActorLogging {
 
+  import GallerySaverDispatcher.{PendingLoadCompleted, TrackedFile}
   import context.dispatcher
 
   final implicit val materializer = ActorMaterializer(ActorMaterializerSettings(context.system))
 
+  private[this] val blockingContext: ExecutionContext = context.system.dispatchers.lookup("gallery-saver.blocking-dispatcher")
+
+  // Cacheable gallery loads by (loader ID, URL), later requesters attach to the pending result
+  private[this] val inFlight = mutable.Map.empty[(String, String), Future[Seq[LoadableResource]]]
+
+  // Background refreshes of expired entries, completed outside of actor
+  private[this] val refreshing = ConcurrentHashMap.newKeySet[(String, String)]()
+
   override def receive: Receive = {
+    case PendingLoadCompleted(key, future) ⇒
+      if (inFlight.get(key).exists(_ eq future)) inFlight -= key
+
+    case FileDownloadQueue.GetStats ⇒
+      downloadQueue.forward(FileDownloadQueue.GetStats)
+
     case url: String ⇒
       loaders.forUrl(url) match {
         case Some(loader) ⇒
           val sender = this.sender()
           log.debug("Fetching URL with {}: {}", loader.id, url)
-          sender ! LoadedResources(loader.load(url))
+          sender ! LoadedResources(counted(loader, loader.load(url)))
 
         case None ⇒
           log.warning("Loader not found for URL: {}", url)
           sender() ! None
       }
 
-    case fg: FileGenerator ⇒
-      log.debug("Generating file: {}", fg)
-      val path = Paths.get(rootDirectory.toString, fg.hierarchy: _*)
-        .resolve(FileDownloader.fileNameFor(fg.url, fg.fileName.getOrElse("")))
+    case TrackedFile(fg: FileGenerator, recipient, message) ⇒
+      generate(fg, Some(recipient → message))
 
-      Files.createDirectories(path.getParent)
-      val outputStream = new FileOutputStream(path.toFile)
-      Exception.allCatch.andFinally(IOUtils.closeQuietly(outputStream)) {
-        fg.write(outputStream)
-      }
-      sender() ! LoadedResources.empty
+    case TrackedFile(f, recipient, message) ⇒
+      enqueue(f, Some(recipient → message))
+
+    case fg: FileGenerator ⇒
+      generate(fg, None)
 
     case f: LoadableFile ⇒
-      val loader = loaders.forId(f.loader)
-        .flatMap(_.fileDownloader)
-        .getOrElse(fileDownloader)
-      log.debug("Loading file: {}", f)
-      loader ! GallerySaverDispatcher.asFileToDownload(rootDirectory, f)
-      sender() ! LoadedResources.empty
+      enqueue(f, None)
 
     case cg: CacheableGallery ⇒
       val sender = this.sender()
@@ -140,30 +195,109 @@ class GallerySaverDispatcher(rootDirectory: Path, galleryCache: GalleryCacheStor
       }
   }
 
+  private def generate(fg: FileGenerator, persisted: Option[(ActorRef, Any)]): Unit = {
+    log.debug("Generating file: {}", fg)
+    val path = Paths.get(rootDirectory.toString, fg.hierarchy: _*)
+      .resolve(FileDownloader.fileNameFor(fg.url, fg.fileName.getOrElse("")))
+
+    val future = blockingTask {
+      Files.createDirectories(path.getParent)
+      val outputStream = new FileOutputStream(path.toFile)
+      Exception.allCatch.andFinally(IOUtils.closeQuietly(outputStream)) {
+        fg.write(outputStream)
+      }
+    }
+
+    future.foreach(_ ⇒ persisted.foreach { case (recipient, message) ⇒ recipient ! message })
+    future
+      .map(_ ⇒ LoadedResources.empty)
+      .recover { case exc ⇒
+        stats.errors.increment()
+        log.error(exc, "Error generating file: {}", fg)
+        LoadedResources.empty
+      }
+      .pipeTo(sender())
+  }
+
+  private def enqueue(f: LoadableFile, persisted: Option[(ActorRef, Any)]): Unit = {
+    val loader = loaders.forId(f.loader)
+      .flatMap(_.fileDownloader)
+      .getOrElse(fileDownloader)
+    log.debug("Loading file: {}", f)
+    bandwidth.attribute(f.url, f.loader)
+    downloadQueue.forward(FileDownloadQueue.Enqueue(loader, GallerySaverDispatcher.asFileToDownload(rootDirectory, f), persisted))
+  }
+
   private def loadCached(loader: GalleryLoader, cg: CacheableGallery): Unit = {
-    val sender = this.sender()
+    val key = (loader.id, cg.url)
+    val future = inFlight.get(key) match {
+      case Some(pending) ⇒
+        log.debug("Attaching to pending load: {}", cg)
+        pending.map(resources ⇒ LoadedResources(Source(GallerySaverDispatcher.patchResources(resources, cg).toVector)))
 
-    Try(galleryCache.get(cg.url)) match {
-      case Success(Some(resources)) ⇒
-        log.debug("Found in cache: {}", cg)
-        sender ! LoadedResources(Source(GallerySaverDispatcher.patchResources(resources, cg).toVector))
-
-      case _ ⇒
-        log.debug("Caching resource: {}", cg)
-        loader.load(cg).runWith(Sink.seq).onComplete {
-          case Success(resources) ⇒
-            val result = LoadedResources(Source(resources))
-            if (resources.isEmpty) {
-              log.warning(s"No resources found for: $cg")
-            } else {
-              galleryCache += cg.url → resources
-            }
-            sender ! result
+      case None ⇒
+        val cached = blockingTask(galleryCache.entry(cg.url)).recover { case exc ⇒
+          stats.errors.increment()
+          log.error(exc, "Cache lookup failed: {}", cg)
+          None
+        }
 
-          case Failure(exc) ⇒
-            log.error(exc, "Error loading resource: {}", cg)
-            sender ! LoadedResources.empty
+        val pending = cached.flatMap {
+          case Some(entry) ⇒
+            stats.cacheHits.increment()
+            log.debug("Found in cache: {}", cg)
+            if (cacheTtl.isExpired(loader.id, entry.created)) refresh(loader, cg)
+            Future.successful(entry.resources)
+
+          case None ⇒
+            stats.cacheMisses.increment()
+            log.debug("Caching resource: {}", cg)
+            loader.load(cg).runWith(Sink.seq).map { resources ⇒
+              stats.resourcesLoaded(loader.id, resources.length)
+              if (resources.isEmpty) {
+                log.warning(s"No resources found for: $cg")
+              } else {
+                blockingTask(galleryCache += cg.url → resources)
+                  .failed.foreach { exc ⇒
+                    stats.errors.increment()
+                    log.error(exc, "Cache update failed: {}", cg)
+                  }
+              }
+              resources
+            }
         }
+
+        inFlight += key → pending
+        pending.onComplete(_ ⇒ self ! PendingLoadCompleted(key, pending))
+
+        for (fromCache ← cached.map(_.nonEmpty); resources ← pending)
+          yield LoadedResources(Source((if (fromCache) GallerySaverDispatcher.patchResources(resources, cg) else resources).toVector))
+    }
+
+    future
+      .recover { case exc ⇒
+        stats.errors.increment()
+        log.error(exc, "Error loading resource: {}", cg)
+        LoadedResources.empty
+      }
+      .pipeTo(sender())
+  }
+
+  private def refresh(loader: GalleryLoader, cg: CacheableGallery): Unit = {
+    val key = (loader.id, cg.url)
+    if (refreshing.add(key)) {
+      log.debug("Refreshing expired cache entry: {}", cg)
+      val future = loader.load(cg).runWith(Sink.seq).flatMap { resources ⇒
+        stats.resourcesLoaded(loader.id, resources.length)
+        if (resources.nonEmpty) blockingTask(galleryCache += cg.url → resources).map(_ ⇒ ())
+        else Future.successful(())
+      }
+
+      future.onComplete(_ ⇒ refreshing.remove(key))
+      future.failed.foreach { exc ⇒
+        stats.errors.increment()
+        log.error(exc, "Cache refresh failed: {}", cg)
+      }
     }
   }
 
@@ -171,7 +305,18 @@ class GallerySaverDispatcher(rootDirectory: Path, galleryCache: GalleryCacheStor
     val sender = this.sender()
 
     log.debug("Loading resource: {}", g)
-    sender ! LoadedResources(loader.load(g))
+    sender ! LoadedResources(counted(loader, loader.load(g)))
+  }
+
+  private[this] def counted(loader: GalleryLoader, resources: Source[LoadableResource, akka.NotUsed]): Source[LoadableResource, akka.NotUsed] = {
+    resources.map { resource ⇒
+      stats.resourcesLoaded(loader.id)
+      resource
+    }
+  }
+
+  private[this] def blockingTask[T](f: ⇒ T): Future[T] = {
+    Future(concurrent.blocking(f))(blockingContext)
   }
 
   override def supervisorStrategy: SupervisorStrategy = OneForOneStrategy(maxNrOfRetries = 3) {
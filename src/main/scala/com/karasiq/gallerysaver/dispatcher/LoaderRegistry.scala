@@ -1,7 +1,8 @@
 package com.karasiq.gallerysaver.dispatcher
 
-import scala.collection.mutable.ListBuffer
+import scala.collection.mutable.ArrayBuffer
 
+import com.karasiq.gallerysaver.builtin.utils.URLUtils.hostOf
 import com.karasiq.gallerysaver.scripting.loaders.GalleryLoader
 
 trait LoaderRegistry {
@@ -21,25 +22,80 @@ object LoaderRegistry {
 }
 
 private[dispatcher] final class LoaderRegistryImpl extends LoaderRegistry {
-  private[this] val loaders = ListBuffer.empty[(String, GalleryLoader)]
+  import LoaderRegistryImpl._
 
-  def register(loader: GalleryLoader): this.type = {
+  private[this] val loaders = ArrayBuffer.empty[GalleryLoader]
+
+  @volatile
+  private[this] var index = UrlIndex.empty
+
+  def register(loader: GalleryLoader): this.type = synchronized {
     require(loader.id.ne(null) && loader.id.nonEmpty, "Invalid loader ID")
-    loaders += loader.id → loader
+    loaders += loader
+    index = UrlIndex(loaders)
     this
   }
 
   def forId(id: String): Option[GalleryLoader] = {
-    loaders.reverseIterator.find(_._1 == id).map(_._2)
+    index.byId.get(id)
   }
 
   def forUrl(url: String): Option[GalleryLoader] = {
-    loaders.reverseIterator.find(_._2.canLoadUrl(url)).map(_._2)
+    val index = this.index
+    val candidates = hostOf(url).fold(index.all)(index.forHost)
+    var i = 0
+    while (i < candidates.length) {
+      if (candidates(i).canLoadUrl(url)) return Some(candidates(i))
+      i += 1
+    }
+    None
   }
 
   override def idSet: Set[String] = {
-    loaders.map(_._1).toSet
+    index.byId.keySet
   }
 }
 
+private[dispatcher] object LoaderRegistryImpl {
+  /**
+    * Immutable routing snapshot, all loader arrays are in reverse registration order (last registered wins)
+    * @param all      All registered loaders
+    * @param catchAll Loaders without declared hosts
+    * @param byHost   Candidate loaders for every declared host, including catch-all ones
+    * @param byId     Last registered loader for every ID
+    */
+  final class UrlIndex(val all: Array[GalleryLoader], val catchAll: Array[GalleryLoader],
+                       val byHost: Map[String, Array[GalleryLoader]], val byId: Map[String, GalleryLoader]) {
+
+    def forHost(host: String): Array[GalleryLoader] = {
+      // Longest declared suffix of the host wins, its bucket also covers parent domains
+      var suffix = host
+      var result: Array[GalleryLoader] = null
+      while (result.eq(null) && suffix.nonEmpty) {
+        result = byHost.getOrElse(suffix, null)
+        val dot = suffix.indexOf('.')
+        suffix = if (dot == -1) "" else suffix.substring(dot + 1)
+      }
+      if (result.eq(null)) catchAll else result
+    }
+  }
+
+  object UrlIndex {
+    val empty = new UrlIndex(Array.empty, Array.empty, Map.empty, Map.empty)
 
+    def apply(loaders: Seq[GalleryLoader]): UrlIndex = {
+      val all = loaders.reverseIterator.toArray
+      val hosts = all.map(_.hosts.map(_.toLowerCase))
+      val catchAll = all.indices.filter(hosts(_).isEmpty).map(all(_)).toArray
+
+      val byHost = hosts.flatten.distinct.map { host ⇒
+        val candidates = all.indices.filter { i ⇒
+          hosts(i).isEmpty || hosts(i).exists(d ⇒ host == d || host.endsWith("." + d))
+        }
+        host → candidates.map(all(_)).toArray
+      }
+
+      new UrlIndex(all, catchAll, byHost.toMap, loaders.map(l ⇒ l.id → l).toMap)
+    }
+  }
+}
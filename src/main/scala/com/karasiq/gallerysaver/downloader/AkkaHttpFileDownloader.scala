@@ -0,0 +1,522 @@
+package com.karasiq.gallerysaver.downloader
+
+import java.io.{IOException, RandomAccessFile}
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.{Files, OpenOption, Path, Paths, StandardCopyOption}
+import java.nio.file.StandardOpenOption._
+import java.security.MessageDigest
+import java.util.concurrent.TimeUnit
+
+import scala.concurrent.{ExecutionContext, Future, Promise}
+import scala.concurrent.duration._
+import scala.util.Try
+import scala.util.control.NonFatal
+
+import akka.NotUsed
+import akka.actor.{ActorLogging, ActorRef, Status}
+import akka.http.scaladsl.Http
+import akka.http.scaladsl.model._
+import akka.http.scaladsl.model.{HttpHeader ⇒ AkkaHttpHeader}
+import akka.http.scaladsl.model.headers._
+import akka.http.scaladsl.settings.ConnectionPoolSettings
+import akka.pattern.{after, pipe}
+import akka.stream.{ActorMaterializer, KillSwitches, Materializer}
+import akka.stream.scaladsl.{FileIO, Flow, Sink, Source}
+import akka.util.ByteString
+import com.typesafe.config.Config
+
+import com.karasiq.gallerysaver.limits.{BandwidthLimiter, HostLimiterRegistry}
+import com.karasiq.gallerysaver.mapdb._
+import com.karasiq.networkutils.HttpClientUtils.HttpClientCookie
+import com.karasiq.networkutils.downloader._
+import com.karasiq.networkutils.http.headers.HttpHeader
+
+/**
+  * Akka HTTP file downloader settings
+  * @param maxConnections  Pooled connections per host
+  * @param maxOpenRequests Requests waiting for a pooled connection, power of two
+  * @param maxRedirects    Max followed redirects
+  * @param maxRetries      Retries of failed downloads, continued from received data if possible
+  * @param retryDelay      Delay before the first retry, doubled with every attempt
+  * @param segments        Max parallel range requests per file
+  * @param segmentMinSize  Files smaller than this are loaded with a single request
+  */
+final case class AkkaHttpDownloaderSettings(maxConnections: Int, maxOpenRequests: Int, maxRedirects: Int, maxRetries: Int, retryDelay: FiniteDuration,
+                                            segments: Int = 1, segmentMinSize: Long = Long.MaxValue)
+
+object AkkaHttpDownloaderSettings {
+  def apply(config: Config): AkkaHttpDownloaderSettings = {
+    AkkaHttpDownloaderSettings(
+      config.getInt("max-connections"),
+      config.getInt("max-open-requests"),
+      config.getInt("max-redirects"),
+      config.getInt("max-retries"),
+      config.getDuration("retry-delay", TimeUnit.MILLISECONDS).millis,
+      config.getInt("segments"),
+      config.getBytes("segment-min-size")
+    )
+  }
+}
+
+object AkkaHttpFileDownloader {
+  /**
+    * File streamed to disk, or confirmed unchanged by the server
+    * @param url          File URL
+    * @param path         File path
+    * @param etag         Response ETag
+    * @param lastModified Response Last-Modified
+    * @param length       Response Content-Length
+    * @param hashed       Content hashed while written
+    */
+  final case class StreamedFile(url: String, path: Path, etag: Option[String], lastModified: Option[String], length: Option[Long],
+                                hashed: Option[(Path, ContentStore.Content)] = None)
+    extends LoadedFile with FileDownloaderHistory.Validated with ContentStore.Hashed
+
+  /**
+    * Non-successful response status
+    */
+  final class UnexpectedStatusException(val status: StatusCode, uri: Uri) extends IOException(s"Unexpected response: $status ($uri)")
+
+  private final case class Downloaded(file: FileToDownload, loaded: StreamedFile, sender: ActorRef)
+  private final case class AlreadyDownloaded(file: FileToDownload, loaded: StreamedFile, sender: ActorRef)
+  private final case class Retry(file: FileToDownload, path: Path, sender: ActorRef, attempt: Int)
+  private final case class Failed(file: FileToDownload, error: Throwable, sender: ActorRef)
+
+  // Bodies above are not read to keep the connection
+  private val MaxDrainedBytes = 64 * 1024L
+
+  // File at the destination path, with its history entry
+  private final case class ExistingFile(size: Long, entry: Option[FDHistoryEntry]) {
+    def expectedLength: Long = entry.flatMap(_.length).getOrElse(size)
+  }
+
+  /**
+    * Splits file to contiguous non-empty ranges, files shorter than segments count get a segment per byte
+    * @param length   File length
+    * @param segments Max segments count
+    * @return Start (inclusive) and end (exclusive) offsets, single empty range for empty file
+    */
+  private[gallerysaver] def segmentRanges(length: Long, segments: Int): Vector[(Long, Long)] = {
+    val count = math.max(1L, math.min(segments.toLong, length))
+    val segmentSize = (length + count - 1) / count
+    (0L until count).toVector
+      .map(i ⇒ (i * segmentSize, math.min(length, (i + 1) * segmentSize)))
+      .filter { case (start, end) ⇒ start < end || start == 0 }
+  }
+
+  private def partFile(path: Path): Path = {
+    path.resolveSibling(path.getFileName + ".part")
+  }
+
+  // Passes first bytes and completes
+  private def takeBytes(limit: Long): Flow[ByteString, ByteString, NotUsed] = {
+    Flow[ByteString]
+      .statefulMapConcat { () ⇒
+        var remaining = limit
+        chunk ⇒ {
+          val taken = if (chunk.length > remaining) chunk.take(remaining.toInt) else chunk
+          remaining -= taken.length
+          List(taken → (remaining == 0))
+        }
+      }
+      .takeWhile(!_._2, inclusive = true)
+      .map(_._1)
+  }
+}
+
+/**
+  * Streaming file downloader, entities are written to disk as they arrive through pooled Akka HTTP connections.
+  * Downloads don't take threads while waiting for data, so it isn't limited by thread pool size.
+  * Supports [[com.karasiq.networkutils.downloader.WrappedFileDownloader WrappedFileDownloader]] hooks, they are called from the actor
+  * @note File is written to `.part` sibling and moved in place when complete.
+  *       Existing file with the same size as response entity (and matching ETag or Last-Modified, if they were recorded)
+  *       is passed to `onAlreadyDownloaded` without reading the entity, so separate size probe isn't needed. Files with recorded validators are requested with `If-None-Match`/`If-Modified-Since`,
+  *       unchanged file costs a single `304` response.
+  *       Interrupted downloads are continued with `Range` requests, `If-Range` validator makes server send the whole file
+  *       if it was changed.
+  *       Large files are loaded in parallel segments if the server accepts ranges, see [[writeSegmented]]
+  * @param settings  Downloader settings
+  * @param content   Content store, files are hashed while written
+  * @param partials  Interrupted downloads store, downloads are not continued without it
+  * @param limits    Host limits, segment requests take free host slots only
+  * @param history   History store, validators of existing files are read from it
+  * @param bandwidth Byte rate limiter, response bodies are read at its rate
+  */
+class AkkaHttpFileDownloader(settings: AkkaHttpDownloaderSettings, content: Option[ContentStore] = None,
+                             partials: Option[PartialDownloadStore] = None, limits: Option[HostLimiterRegistry] = None,
+                             history: Option[FDHistoryStore] = None, bandwidth: Option[BandwidthLimiter] = None)
+  extends WrappedFileDownloader with FileDownloaderActor with ActorLogging {
+
+  import AkkaHttpFileDownloader._
+
+  private[this] implicit val materializer: Materializer = ActorMaterializer()(context)
+  private[this] implicit val executionContext: ExecutionContext = context.dispatcher
+  private[this] val scheduler = context.system.scheduler
+  private[this] val blockingContext: ExecutionContext = context.system.dispatchers.lookup("gallery-saver.blocking-dispatcher")
+  private[this] val http = Http(context.system)
+  private[this] val poolSettings = ConnectionPoolSettings(context.system)
+    .withMaxConnections(settings.maxConnections)
+    .withMaxOpenRequests(settings.maxOpenRequests)
+
+  override def receive: Receive = {
+    case file: FileToDownload ⇒
+      val path = Paths.get(file.directory, FileDownloader.fileNameFor(file.url, file.fileName))
+      val sender = this.sender()
+      try {
+        if (needLoading(file.url, file.directory, file.fileName, file.headers, file.cookies)) fetch(file, path, sender, checkExisting = true)
+        else if (file.sendReport) sender ! DownloadedFileReport(file.url, path.toString)
+      } catch { case NonFatal(exc) ⇒
+        self ! Failed(file, exc, sender)
+      }
+
+    case Downloaded(file, loaded, sender) ⇒
+      val report = DownloadedFileReport(file.url, loaded.path.toString)
+      try {
+        onSuccess(report, loaded)
+        if (file.sendReport) sender ! report
+      } catch { case NonFatal(exc) ⇒
+        self ! Failed(file, exc, sender)
+      }
+
+    case AlreadyDownloaded(file, loaded, sender) ⇒
+      if (onAlreadyDownloaded(loaded.path, file.url, loaded)) {
+        if (file.sendReport) sender ! DownloadedFileReport(file.url, loaded.path.toString)
+      } else {
+        fetch(file, loaded.path, sender, checkExisting = false)
+      }
+
+    case Retry(file, path, sender, attempt) ⇒
+      log.debug("Retrying download: {} (attempt {})", file.url, attempt)
+      fetch(file, path, sender, checkExisting = false, attempt)
+
+    case Failed(file, error, sender) ⇒
+      log.warning("Download failed: {} ({})", file.url, error)
+      if (file.sendReport) sender ! Status.Failure(error)
+  }
+
+  override protected def needLoading(url: String, directory: String, name: String, headers: Seq[HttpHeader], cookies: Traversable[HttpClientCookie]): Boolean = {
+    true
+  }
+
+  override protected def onSuccess(report: DownloadedFileReport, file: LoadedFile): Unit = {
+    // Nothing to do
+  }
+
+  override protected def onAlreadyDownloaded(path: Path, url: String, loadedFile: LoadedFile): Boolean = {
+    true
+  }
+
+  private[this] def fetch(file: FileToDownload, path: Path, sender: ActorRef, checkExisting: Boolean, attempt: Int = 0): Unit = {
+    val state = Future {
+      val existing = if (checkExisting) existingFile(file.url, path) else None
+      (existing, if (existing.isEmpty) resumePoint(file.url, path) else None)
+    }(blockingContext)
+
+    val result = state
+      .flatMap { case (existing, resume) ⇒ download(file, path, resume, existing, segmented = attempt == 0) } // Retries use single stream
+      .map { case (loaded, written) ⇒ if (written) Downloaded(file, loaded, sender) else AlreadyDownloaded(file, loaded, sender) }
+
+    result
+      .recover {
+        case exc: UnexpectedStatusException if exc.status.isInstanceOf[StatusCodes.ClientError] ⇒
+          Failed(file, exc, sender)
+
+        case NonFatal(exc) if attempt < settings.maxRetries ⇒
+          Retry(file, path, sender, attempt + 1)
+
+        case exc ⇒
+          Failed(file, exc, sender)
+      }
+      .flatMap {
+        case retry: Retry ⇒ after(settings.retryDelay * (1L << attempt), scheduler)(Future.successful(retry))
+        case message ⇒ Future.successful(message)
+      }
+      .pipeTo(self)
+  }
+
+  // Returns loaded file and false if existing file is not changed
+  private[this] def download(file: FileToDownload, path: Path, resume: Option[PartialDownload], existing: Option[ExistingFile],
+                             segmented: Boolean): Future[(StreamedFile, Boolean)] = {
+    val uri = Uri(file.url, Uri.ParsingMode.Relaxed)
+    val rangeHeaders = resume.toList.flatMap { partial ⇒
+      List(Range(ByteRange.fromOffset(partial.received)), RawHeader("If-Range", partial.validator.get))
+    }
+    val conditionalHeaders = existing.flatMap(_.entry).toList.flatMap { entry ⇒
+      entry.etag.map(RawHeader("If-None-Match", _)).toList ++ entry.lastModified.map(RawHeader("If-Modified-Since", _))
+    }
+
+    val result = request(file, uri, settings.maxRedirects, rangeHeaders ++ conditionalHeaders).flatMap { response ⇒
+      val etag = response.header[ETag].map(_.value())
+      val lastModified = response.header[`Last-Modified`].map(_.value())
+      def loaded(length: Option[Long], content: Option[ContentStore.Content] = None) = StreamedFile(file.url, path, etag, lastModified, length, content.map(path → _))
+
+      response.status match {
+        case StatusCodes.NotModified if existing.nonEmpty ⇒
+          val entry = existing.get.entry
+          skipEntity(response)
+          Future.successful(StreamedFile(file.url, path, etag.orElse(entry.flatMap(_.etag)), lastModified.orElse(entry.flatMap(_.lastModified)),
+            entry.flatMap(_.length)) → false)
+
+        case StatusCodes.PartialContent if resume.nonEmpty ⇒
+          val partial = resume.get
+          val validatorChanged = if (etag.nonEmpty) etag != partial.etag else lastModified != partial.lastModified
+          response.header[`Content-Range`].map(_.contentRange) match {
+            case Some(ContentRange.Default(first, _, length)) if first == partial.received && !validatorChanged ⇒
+              val resumed = partial.copy(length = length.orElse(partial.length))
+              write(response.entity, path, resumed).map(loaded(resumed.length, _) → true)
+
+            case _ ⇒
+              // Server ignored If-Range, or sent another range
+              skipEntity(response)
+              download(file, path, None, existing, segmented)
+          }
+
+        case _ if existing.exists(isUnchanged(_, response, etag, lastModified)) ⇒
+          skipEntity(response)
+          Future.successful(loaded(response.entity.contentLengthOption) → false)
+
+        case _ ⇒
+          val partial = PartialDownload(path.toString, file.url, 0, response.entity.contentLengthOption, etag, lastModified)
+          val acceptsRanges = response.header[`Accept-Ranges`].exists(_.rangeUnits.contains(RangeUnits.Bytes))
+          val slots = partial.length match {
+            case Some(length) if segmented && acceptsRanges && response.status == StatusCodes.OK && length >= settings.segmentMinSize ⇒
+              segmentSlots(file.url, settings.segments - 1)
+
+            case _ ⇒
+              Vector.empty
+          }
+
+          val written = if (slots.nonEmpty) writeSegmented(file, response, path, partial, slots).map(_ ⇒ None) else write(response.entity, path, partial)
+          written.map(loaded(partial.length, _) → true)
+      }
+    }
+
+    result.recoverWith {
+      case exc: UnexpectedStatusException if exc.status == StatusCodes.RequestedRangeNotSatisfiable && resume.nonEmpty ⇒
+        download(file, path, None, existing, segmented)
+    }
+  }
+
+  // Same length, and the same ETag or Last-Modified if validators were recorded.
+  // Files without recorded validators are compared by length only, as size probes did
+  private[this] def isUnchanged(existing: ExistingFile, response: HttpResponse, etag: Option[String], lastModified: Option[String]): Boolean = {
+    def validated = existing.entry.filter(entry ⇒ entry.etag.nonEmpty || entry.lastModified.nonEmpty) match {
+      case Some(entry) if entry.etag.nonEmpty && etag.nonEmpty ⇒ entry.etag == etag
+      case Some(entry) if entry.lastModified.nonEmpty && lastModified.nonEmpty ⇒ entry.lastModified == lastModified
+      case Some(_) ⇒ false
+      case None ⇒ true
+    }
+    existing.size > 0 && response.entity.contentLengthOption.contains(existing.expectedLength) && validated
+  }
+
+  // Cookies and revalidation headers are not sent to other hosts after redirect.
+  // Range is kept with its If-Range validator, so content of another version is not mixed in
+  private[this] def request(file: FileToDownload, uri: Uri, redirects: Int, extraHeaders: List[AkkaHttpHeader],
+                            sameHost: Boolean = true): Future[HttpResponse] = {
+    val cookies = if (sameHost) file.cookies.map(c ⇒ c.getName → c.getValue).toList else Nil
+    val headers = file.headers.map(h ⇒ RawHeader(h.name, h.value)).toList ++ (if (cookies.nonEmpty) List(Cookie(cookies: _*)) else Nil) ++ extraHeaders
+    http.singleRequest(HttpRequest(uri = uri, headers = headers), settings = poolSettings).flatMap { response ⇒
+      response.header[Location] match {
+        case Some(location) if response.status.isRedirection() && redirects > 0 ⇒
+          skipEntity(response)
+          val target = location.uri.resolvedAgainst(uri)
+          if (sameHost && target.authority.host == uri.authority.host) {
+            request(file, target, redirects - 1, extraHeaders)
+          } else {
+            request(file, target, redirects - 1, extraHeaders.filterNot(h ⇒ h.is("if-none-match") || h.is("if-modified-since")), sameHost = false)
+          }
+
+        case _ if response.status.isSuccess() || response.status == StatusCodes.NotModified ⇒
+          Future.successful(response)
+
+        case _ ⇒
+          skipEntity(response)
+          Future.failed(new UnexpectedStatusException(response.status, uri))
+      }
+    }
+  }
+
+  // Draining reads the whole body, so bodies of large or unknown size are cancelled, closing the connection
+  private[this] def skipEntity(response: HttpResponse): Unit = response.entity match {
+    case _: HttpEntity.Strict ⇒
+      response.discardEntityBytes()
+
+    case entity if entity.contentLengthOption.exists(_ <= MaxDrainedBytes) ⇒
+      response.discardEntityBytes()
+
+    case entity ⇒
+      entity.dataBytes.runWith(Sink.cancelled)
+  }
+
+  private[this] def dataBytes(url: String, entity: ResponseEntity): Source[ByteString, Any] = {
+    val bytes = entity.withoutSizeLimit().dataBytes
+    bandwidth.fold(bytes)(limiter ⇒ bytes.via(limiter.download(url)))
+  }
+
+  /**
+    * Streams entity to `.part` file from the received offset, moves it in place when complete
+    * @param entity  Response entity
+    * @param path    File path
+    * @param partial Download state, recorded until the file is complete
+    * @return Written file content, if it's hashed
+    */
+  private[this] def write(entity: ResponseEntity, path: Path, partial: PartialDownload): Future[Option[ContentStore.Content]] = {
+    val part = partFile(path)
+    val digest = content.map(_.newDigest())
+    val resumable = partials.nonEmpty && partial.validator.nonEmpty
+
+    val prepared = Future {
+      Files.createDirectories(path.getParent)
+      if (partial.received > 0) digest.foreach(hashPrefix(part, partial.received, _))
+      if (resumable) partials.foreach(_.update(partial))
+      else partials.foreach(_.remove(path.toString))
+    }(blockingContext)
+
+    val bytes = dataBytes(partial.url, entity)
+    val hashedBytes = digest.fold(bytes)(digest ⇒ bytes.map { chunk ⇒
+      chunk.asByteBuffers.foreach(digest.update)
+      chunk
+    })
+
+    val options: Set[OpenOption] = if (partial.received > 0) Set(WRITE, CREATE) else Set(WRITE, CREATE, TRUNCATE_EXISTING)
+    prepared
+      .flatMap(_ ⇒ hashedBytes.runWith(FileIO.toPath(part, options, partial.received)))
+      .map { result ⇒
+        result.status.get
+        Files.move(part, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        partials.foreach(_.remove(path.toString))
+        digest.map(ContentStore.contentOf(_, partial.received + result.count))
+      }(blockingContext)
+      .recoverWith { case exc ⇒
+        // Data written before the failure is kept for the next attempt
+        Future {
+          if (resumable) partials.foreach(_.update(partial.copy(received = Try(Files.size(part)).getOrElse(0L))))
+          throw exc
+        }(blockingContext)
+      }
+  }
+
+  /**
+    * Loads file in parallel segments. First segment is read from the initial response, others are requested with `Range`.
+    * Segments are written to preallocated `.part` file from their offsets
+    * @note Segmented download is not resumable and not hashed while written, content store reads complete file
+    * @param file     File to download
+    * @param response Initial response
+    * @param path     File path
+    * @param partial  Download state
+    * @param slots    Started and completion signals of extra host slots, a segment per slot
+    */
+  private[this] def writeSegmented(file: FileToDownload, response: HttpResponse, path: Path, partial: PartialDownload,
+                                   slots: Seq[(Future[Unit], Promise[Unit])]): Future[Boolean] = {
+    val part = partFile(path)
+    val length = partial.length.get
+    val ranges = segmentRanges(length, slots.length + 1)
+    slots.drop(ranges.length - 1).foreach(_._2.trySuccess(())) // Not needed for short file
+    val killSwitch = KillSwitches.shared(s"segments-${path.getFileName}")
+
+    def writeSegment(bytes: Source[ByteString, Any], range: (Long, Long)): Future[Unit] = {
+      val (start, end) = range
+      val result = bytes.via(killSwitch.flow).runWith(FileIO.toPath(part, Set(WRITE), start)).map { result ⇒
+        result.status.get
+        if (result.count != end - start) throw new IOException(s"Segment $start-$end is truncated: $path")
+      }
+      result.failed.foreach(killSwitch.abort)
+      result
+    }
+
+    def requestSegment(range: (Long, Long)): Future[Unit] = {
+      val (start, end) = range
+      val headers = Range(ByteRange(start, end - 1)) :: partial.validator.map(RawHeader("If-Range", _)).toList
+      request(file, Uri(file.url, Uri.ParsingMode.Relaxed), settings.maxRedirects, headers).flatMap { response ⇒
+        val rangeStart = response.header[`Content-Range`].map(_.contentRange).collect { case ContentRange.Default(first, _, _) ⇒ first }
+        val etag = response.header[ETag].map(_.value())
+        if (response.status == StatusCodes.PartialContent && rangeStart.contains(start) && (etag.isEmpty || etag == partial.etag)) {
+          writeSegment(dataBytes(file.url, response.entity), range)
+        } else {
+          skipEntity(response)
+          Future.failed(new IOException(s"Segment $start-$end is not served: $path"))
+        }
+      }
+    }
+
+    val prepared = Future {
+      Files.createDirectories(path.getParent)
+      partials.foreach(_.remove(path.toString))
+      val file = new RandomAccessFile(part.toFile, "rw")
+      try file.setLength(length) finally file.close()
+    }(blockingContext)
+
+    val segments = prepared.flatMap { _ ⇒
+      val first = writeSegment(dataBytes(file.url, response.entity).via(takeBytes(ranges.head._2)), ranges.head)
+      val rest = slots.zip(ranges.tail).map { case ((started, done), range) ⇒
+        val segment = started.flatMap(_ ⇒ requestSegment(range))
+        done.completeWith(segment)
+        segment
+      }
+      Future.sequence(first +: rest)
+    }
+
+    prepared.failed.foreach(_ ⇒ skipEntity(response))
+    segments.onComplete { _ ⇒
+      // Releases slots of segments not started
+      slots.foreach(_._2.trySuccess(()))
+    }
+
+    segments.map { _ ⇒
+      Files.move(part, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+      true
+    }(blockingContext)
+  }
+
+  // Extra host slots are taken without waiting, files holding a slot each can't block each other
+  private[this] def segmentSlots(url: String, count: Int): Vector[(Future[Unit], Promise[Unit])] = {
+    val limiter = limits.flatMap(_.forUrl(url))
+    val slots = Vector.newBuilder[(Future[Unit], Promise[Unit])]
+    var acquired = true
+    for (_ ← 0 until count if acquired) {
+      val started, done = Promise[Unit]()
+      acquired = limiter match {
+        case Some(limiter) ⇒
+          limiter.tryApply { started.success(()); done.future }.nonEmpty
+
+        case None ⇒
+          started.success(())
+          true
+      }
+      if (acquired) slots += started.future → done
+    }
+    slots.result()
+  }
+
+  private[this] def hashPrefix(file: Path, length: Long, digest: MessageDigest): Unit = {
+    val channel = FileChannel.open(file, READ)
+    try {
+      val buffer = ByteBuffer.allocate(65536)
+      var remaining = length
+      while (remaining > 0) {
+        buffer.clear().limit(math.min(buffer.capacity().toLong, remaining).toInt)
+        val read = channel.read(buffer)
+        if (read < 0) throw new IOException(s"Partial file is truncated: $file")
+        buffer.flip()
+        digest.update(buffer)
+        remaining -= read
+      }
+    } finally channel.close()
+  }
+
+  private[this] def existingFile(url: String, path: Path): Option[ExistingFile] = {
+    Try(Files.size(path)).toOption.map { size ⇒
+      ExistingFile(size, history.flatMap(_.get(path.toAbsolutePath.toString)).filter(_.url == url))
+    }
+  }
+
+  // Part file size is used, data is written sequentially
+  private[this] def resumePoint(url: String, path: Path): Option[PartialDownload] = {
+    for {
+      store ← partials
+      partial ← store.get(path.toString) if partial.url == url && partial.validator.nonEmpty
+      received = Try(Files.size(partFile(path))).getOrElse(0L) if received > 0
+    } yield partial.copy(received = received)
+  }
+}
@@ -1,20 +1,23 @@
 package com.karasiq.gallerysaver.imageconverter
 
-import java.nio.file.Paths
+import java.nio.file.{Files, Paths}
 
 import com.karasiq.fileutils.PathUtils._
 import com.karasiq.networkutils.HttpClientUtils.HttpClientCookie
 import com.karasiq.networkutils.downloader.{DownloadedFileReport, FileDownloader, LoadedFile, WrappedFileDownloader}
 import com.karasiq.networkutils.http.headers.HttpHeader
+import com.karasiq.gallerysaver.mapdb.ContentStore
+import com.karasiq.gallerysaver.stats.JobStats
 import com.typesafe.config.Config
 import org.apache.commons.io.FilenameUtils
 
 import scala.collection.JavaConversions._
+import scala.util.control.NonFatal
 
 
 object FileDownloaderImageConverter {
-  def fromConfig(cfg: Config): FileDownloaderImageConverter = {
-    new FileDownloaderImageConverter(new ImageIOConverter(cfg.getString("out-format")), cfg.getStringList("convert-formats").toSet, cfg.getString("suffix"))
+  def fromConfig(cfg: Config, stats: JobStats = new JobStats, content: Option[ContentStore] = None): FileDownloaderImageConverter = {
+    new FileDownloaderImageConverter(new ImageIOConverter(cfg.getString("out-format")), cfg.getStringList("convert-formats").toSet, cfg.getString("suffix"), stats, content)
   }
 }
 
@@ -23,6 +26,8 @@ object FileDownloaderImageConverter {
  * @param converter Converter implementation
  * @param extensions File extensions to convert
  * @param suffix Output file suffix
+ * @param stats Conversion statistics
+ * @param content Content store, converted images are hashed while written
  * @example {{{
  *  // Create converter
  *  val converter = new FileDownloaderImageConverter(new ImageIOConverter("jpg"), Set("png", "bmp"), "_converted")
@@ -32,7 +37,8 @@ object FileDownloaderImageConverter {
  *  download.download("http://example.com/photo.png", "images") // Will be saved as images/photo_converted.jpg
  * }}}
  */
-class FileDownloaderImageConverter(converter: ImageConverter, extensions: Set[String], suffix: String = "_c") {
+class FileDownloaderImageConverter(converter: ImageConverter, extensions: Set[String], suffix: String = "_c", stats: JobStats = new JobStats,
+                                   content: Option[ContentStore] = None) {
   private def canConvert(file: String) = {
     extensions.contains(FilenameUtils.getExtension(file))
   }
@@ -54,7 +60,9 @@ class FileDownloaderImageConverter(converter: ImageConverter, extensions: Set[St
       val originalName = FileDownloader.fileNameFor(url, name)
       if (canConvert(originalName)) {
         val path = Paths.get(directory, newName(originalName))
-        !path.exists && super.needLoading(url, directory, name, headers, cookies)
+        val exists = path.exists
+        if (exists) stats.filesSkipped.increment()
+        !exists && super.needLoading(url, directory, name, headers, cookies)
       } else super.needLoading(url, directory, name, headers, cookies)
     }
 
@@ -62,9 +70,14 @@ class FileDownloaderImageConverter(converter: ImageConverter, extensions: Set[St
       if (canConvert(report.fileName)) {
         val outputFile = newName(report.fileName) // Destination file name
         // log.info(s"Converting downloaded image: ${report.fileName} ⇒ $outputFile")
-        converter.convert(ImageSource(report.fileName), ImageDestination(outputFile)) // Create new file
+        val hashing = content.map(_.hashingStream(Files.newOutputStream(Paths.get(outputFile))))
+        val destination = hashing.fold(ImageDestination(outputFile))(ImageDestination(_, closeStream = true))
+        try converter.convert(ImageSource(report.fileName), destination) // Create new file
+        catch { case NonFatal(exc) ⇒ stats.errors.increment(); throw exc }
+        val converted = hashing.fold(file)(output ⇒ ContentStore.HashedFile(file, Paths.get(outputFile), output.content))
+        stats.conversions.increment()
         if (outputFile != report.fileName) asPath(report.fileName).deleteFile() // Remove old file
-        super.onSuccess(report.copy(fileName = outputFile), file)
+        super.onSuccess(report.copy(fileName = outputFile), converted)
       } else super.onSuccess(report, file)
     }
   }
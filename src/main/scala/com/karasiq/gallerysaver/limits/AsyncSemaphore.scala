@@ -0,0 +1,80 @@
+package com.karasiq.gallerysaver.limits
+
+import java.util
+
+import scala.concurrent.{ExecutionContext, Future, Promise}
+import scala.util.control.NonFatal
+
+/**
+  * Non-blocking semaphore, waiting acquirers are completed in FIFO order
+  * @param permits Permits count
+  */
+final class AsyncSemaphore(permits: Int) {
+  require(permits > 0, "Invalid permits count")
+
+  private[this] var available = permits
+  private[this] val waiters = new util.ArrayDeque[Promise[Unit]]()
+
+  /**
+    * Acquires permit
+    * @return Future, completed when permit is acquired
+    */
+  def acquire(): Future[Unit] = synchronized {
+    if (available > 0) {
+      available -= 1
+      Future.unit
+    } else {
+      val promise = Promise[Unit]()
+      waiters.addLast(promise)
+      promise.future
+    }
+  }
+
+  /**
+    * Acquires permit if it is available right away
+    * @return True if permit is acquired
+    */
+  def tryAcquire(): Boolean = synchronized {
+    if (available > 0) {
+      available -= 1
+      true
+    } else {
+      false
+    }
+  }
+
+  /**
+    * Releases permit, passing it to the first waiter if any
+    */
+  def release(): Unit = {
+    val next = synchronized {
+      val waiter = waiters.pollFirst()
+      if (waiter.eq(null)) available += 1
+      waiter
+    }
+    if (next.ne(null)) next.success(())
+  }
+
+  /**
+    * Runs asynchronous task holding permit until its completion
+    * @param f Task
+    * @return Task result
+    */
+  def withPermit[T](f: () ⇒ Future[T])(implicit ec: ExecutionContext): Future[T] = {
+    acquire().flatMap { _ ⇒
+      val future = try f() catch { case NonFatal(exc) ⇒ Future.failed(exc) }
+      future.onComplete(_ ⇒ release())
+      future
+    }
+  }
+
+  /**
+    * Currently available permits
+    */
+  def availablePermits: Int = synchronized(available)
+
+  /**
+    * Currently waiting acquirers
+    */
+  def queueLength: Int = synchronized(waiters.size())
+}
@@ -0,0 +1,196 @@
+package com.karasiq.gallerysaver.limits
+
+import java.util
+
+import scala.collection.JavaConverters._
+import scala.collection.concurrent.TrieMap
+import scala.concurrent.{ExecutionContext, Future}
+import scala.concurrent.duration._
+
+import akka.NotUsed
+import akka.actor.Scheduler
+import akka.pattern.after
+import akka.stream.scaladsl.Flow
+import akka.util.ByteString
+import com.typesafe.config.{Config, ConfigUtil}
+
+import com.karasiq.gallerysaver.builtin.utils.URLUtils
+
+/**
+  * Byte rate limits, in bytes per second, zero for unlimited
+  * @param global      Total rate of downloads and page fetches
+  * @param pageReserve Share of global rate reserved for page fetches, downloads are limited to the rest
+  * @param perHost     Default per host rate of downloads
+  * @param hosts       Per host overrides (subdomains included, share single budget)
+  * @param loaders     Per loader ID rates of downloads
+  */
+final case class BandwidthSettings(global: Long, pageReserve: Double, perHost: Long = 0,
+                                   hosts: Map[String, Long] = Map.empty, loaders: Map[String, Long] = Map.empty) {
+  require(pageReserve >= 0 && pageReserve < 1, "Page reserve should be in [0, 1) range")
+
+  /**
+    * @return Total rate of downloads
+    */
+  def downloads: Long = {
+    if (global > 0) math.max(1L, (global * (1 - pageReserve)).toLong) else 0L
+  }
+}
+
+object BandwidthSettings {
+  def apply(config: Config): BandwidthSettings = {
+    def rates(config: Config): Map[String, Long] = {
+      config.root().keySet().asScala.map(key ⇒ key.toLowerCase → config.getBytes(ConfigUtil.joinPath(key)).longValue()).toMap
+    }
+
+    BandwidthSettings(config.getBytes("global"), config.getDouble("page-reserve"), config.getBytes("per-host"),
+      rates(config.getConfig("hosts")), rates(config.getConfig("loaders")))
+  }
+}
+
+/**
+  * Byte rate limiter of response bodies. Chunks are delayed before they are passed downstream,
+  * so stream backpressure stops socket reads and the server is slowed by TCP flow control.
+  * Limits can be changed at runtime, running streams pick up new rates with the next chunk
+  * @param initial   Initial limits
+  * @param scheduler Delayed chunks scheduler
+  */
+final class BandwidthLimiter(initial: BandwidthSettings)(implicit scheduler: Scheduler) {
+  import BandwidthLimiter._
+
+  @volatile
+  private[this] var current = initial
+  private[this] val global = new ByteRate(initial.global)
+  private[this] val downloads = new ByteRate(initial.downloads)
+  private[this] val hosts = TrieMap.empty[String, ByteRate]
+  private[this] val loaders = TrieMap.empty[String, ByteRate]
+
+  // Loader IDs of queued files, bounded
+  private[this] val attributed = new util.LinkedHashMap[String, String](16, 0.75f, true) {
+    override def removeEldestEntry(eldest: util.Map.Entry[String, String]): Boolean = size() > MaxAttributed
+  }
+
+  /**
+    * @return Current limits
+    */
+  def settings: BandwidthSettings = current
+
+  /**
+    * Replaces limits, running downloads are affected
+    * @param settings New limits
+    */
+  def update(settings: BandwidthSettings): Unit = synchronized {
+    current = settings
+    global.setRate(settings.global)
+    downloads.setRate(settings.downloads)
+    hosts.foreach { case (key, rate) ⇒ rate.setRate(settings.hosts.getOrElse(key, settings.perHost)) }
+    loaders.foreach { case (id, rate) ⇒ rate.setRate(settings.loaders.getOrElse(id, 0L)) }
+  }
+
+  /**
+    * Records loader of the file, its download is limited by loader budget
+    * @param url    File URL
+    * @param loader Loader ID
+    */
+  def attribute(url: String, loader: String): Unit = attributed.synchronized {
+    attributed.put(url, loader)
+  }
+
+  /**
+    * Limits file download: downloads share of global rate, loader and host budgets
+    * @param url File URL
+    * @return Shaping flow
+    */
+  def download(url: String): Flow[ByteString, ByteString, NotUsed] = {
+    val loader = attributed.synchronized(Option(attributed.get(url)))
+    val host = URLUtils.hostOf(url)
+    shape(() ⇒ List(global, downloads) ++ loader.flatMap(loaderRate) ++ host.flatMap(hostRate))
+  }
+
+  /**
+    * Limits page fetch by global rate only, so it can use the reserved share
+    * @return Shaping flow
+    */
+  def page: Flow[ByteString, ByteString, NotUsed] = {
+    shape(() ⇒ List(global))
+  }
+
+  private[this] def shape(rates: () ⇒ Seq[ByteRate]): Flow[ByteString, ByteString, NotUsed] = {
+    Flow[ByteString].mapAsync(1) { chunk ⇒
+      val delay = rates().foldLeft(Duration.Zero)((delay, rate) ⇒ delay.max(rate.reserve(chunk.length)))
+      if (delay > Duration.Zero) after(delay, scheduler)(Future.successful(chunk))(SameThread)
+      else Future.successful(chunk)
+    }
+  }
+
+  // Unlimited budgets are not created until they are set
+  private[this] def loaderRate(id: String): Option[ByteRate] = {
+    loaders.get(id).orElse {
+      current.loaders.get(id).filter(_ > 0).map(rate ⇒ loaders.getOrElseUpdate(id, new ByteRate(rate)))
+    }
+  }
+
+  private[this] def hostRate(host: String): Option[ByteRate] = {
+    val settings = current
+    val key = overrideFor(settings, host).getOrElse(host)
+    hosts.get(key).orElse {
+      Some(settings.hosts.getOrElse(key, settings.perHost)).filter(_ > 0).map(rate ⇒ hosts.getOrElseUpdate(key, new ByteRate(rate)))
+    }
+  }
+
+  private[this] def overrideFor(settings: BandwidthSettings, host: String): Option[String] = {
+    var suffix = host
+    while (suffix.nonEmpty) {
+      if (settings.hosts.contains(suffix)) return Some(suffix)
+      val dot = suffix.indexOf('.')
+      suffix = if (dot == -1) "" else suffix.substring(dot + 1)
+    }
+    None
+  }
+}
+
+object BandwidthLimiter {
+  private val MaxAttributed = 100000
+
+  // Delayed chunks are passed on scheduler thread
+  private object SameThread extends ExecutionContext {
+    override def execute(runnable: Runnable): Unit = runnable.run()
+    override def reportFailure(cause: Throwable): Unit = ()
+  }
+
+  def apply(config: Config)(implicit scheduler: Scheduler): BandwidthLimiter = {
+    new BandwidthLimiter(BandwidthSettings(config))
+  }
+
+  /**
+    * Byte rate budget, bytes are reserved in advance so readers only have to wait for the returned delay
+    * @param initialRate Bytes per second, zero for unlimited
+    */
+  private final class ByteRate(initialRate: Long) {
+    private[this] var rate = initialRate
+    private[this] var available = 0.0 // Negative when reserved in advance
+    private[this] var updatedNanos = System.nanoTime()
+
+    def setRate(newRate: Long): Unit = synchronized {
+      refill()
+      rate = newRate
+      if (rate <= 0) available = 0
+    }
+
+    def reserve(bytes: Int): FiniteDuration = synchronized {
+      if (rate <= 0) {
+        Duration.Zero
+      } else {
+        refill()
+        available -= bytes
+        if (available >= 0) Duration.Zero else (-available / rate * 1e9).toLong.nanos
+      }
+    }
+
+    // Burst is limited to 100 ms of rate
+    private[this] def refill(): Unit = {
+      val now = System.nanoTime()
+      if (rate > 0) available = math.min(rate / 10.0, available + (now - updatedNanos) * rate / 1e9)
+      updatedNanos = now
+    }
+  }
+}
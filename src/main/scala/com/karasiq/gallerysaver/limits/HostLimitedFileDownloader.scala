@@ -0,0 +1,41 @@
+package com.karasiq.gallerysaver.limits
+
+import scala.concurrent.duration.FiniteDuration
+import scala.util.{Failure, Success}
+
+import akka.actor.{Actor, ActorLogging, ActorRef, Status}
+import akka.pattern.ask
+import akka.util.Timeout
+
+import com.karasiq.networkutils.downloader.FileToDownload
+
+/**
+  * Applies host limits to the wrapped file downloader
+  * @note Host slot is held until download report is received, or for `reportTimeout` at most
+  * @note Failures and report timeouts are passed to the sender as `Status.Failure`, if report is requested
+  * @param fileDownloader File downloader actor
+  * @param limits         Host limiters
+  * @param reportTimeout  Download report timeout
+  */
+final class HostLimitedFileDownloader(fileDownloader: ActorRef, limits: HostLimiterRegistry, reportTimeout: FiniteDuration) extends Actor with ActorLogging {
+  import context.dispatcher
+
+  private[this] implicit val timeout: Timeout = Timeout(reportTimeout)
+
+  override def receive: Receive = {
+    case file: FileToDownload ⇒
+      val sender = this.sender()
+      val future = limits.limit(file.url)(fileDownloader ? file.copy(sendReport = true))
+      future.onComplete {
+        case Success(report) ⇒
+          if (file.sendReport) sender ! report
+
+        case Failure(exc) ⇒
+          log.warning("Download failed: {} ({})", file.url, exc)
+          if (file.sendReport) sender ! Status.Failure(exc)
+      }
+
+    case message ⇒
+      fileDownloader.forward(message)
+  }
+}
@@ -0,0 +1,81 @@
+package com.karasiq.gallerysaver.limits
+
+import scala.concurrent.{ExecutionContext, Future}
+import scala.util.control.NonFatal
+
+import akka.actor.Scheduler
+import akka.pattern.after
+import com.typesafe.config.Config
+
+/**
+  * Per host limits
+  * @param maxConnections    Max in-flight requests
+  * @param requestsPerSecond Max request rate, zero for unlimited
+  * @param burst             Requests allowed above rate after idle period
+  */
+final case class HostLimitSettings(maxConnections: Int, requestsPerSecond: Double, burst: Int)
+
+object HostLimitSettings {
+  def apply(config: Config): HostLimitSettings = {
+    HostLimitSettings(config.getInt("max-connections"), config.getDouble("requests-per-second"), config.getInt("burst"))
+  }
+}
+
+/**
+  * Asynchronous host limiter, waiting requests don't occupy threads
+  * @param settings  Host limits
+  * @param scheduler Delayed requests scheduler
+  */
+final class HostLimiter(val settings: HostLimitSettings)(implicit scheduler: Scheduler) {
+  private[this] val connections = new AsyncSemaphore(settings.maxConnections)
+  private[this] val rate = Some(settings.requestsPerSecond)
+    .filter(_ > 0)
+    .map(new TokenBucket(_, settings.burst))
+
+  /**
+    * Runs request within host limits
+    * @param request Request function
+    * @return Request result
+    */
+  def apply[T](request: ⇒ Future[T])(implicit ec: ExecutionContext): Future[T] = {
+    connections.withPermit { () ⇒
+      rate.map(_.reserve()) match {
+        case Some(delay) if delay.length > 0 ⇒
+          after(delay, scheduler)(request)
+
+        case _ ⇒
+          request
+      }
+    }
+  }
+
+  /**
+    * Runs request within host limits if connection slot is free, never waits for it
+    * @param request Request function
+    * @return Request result, or `None` if all slots are taken
+    */
+  def tryApply[T](request: ⇒ Future[T])(implicit ec: ExecutionContext): Option[Future[T]] = {
+    if (connections.tryAcquire()) {
+      val future = try {
+        rate.map(_.reserve()) match {
+          case Some(delay) if delay.length > 0 ⇒
+            after(delay, scheduler)(request)
+
+          case _ ⇒
+            request
+        }
+      } catch { case NonFatal(exc) ⇒
+        Future.failed(exc)
+      }
+      future.onComplete(_ ⇒ connections.release())
+      Some(future)
+    } else {
+      None
+    }
+  }
+
+  /**
+    * Requests waiting for connection slot
+    */
+  def queueLength: Int = connections.queueLength
+}
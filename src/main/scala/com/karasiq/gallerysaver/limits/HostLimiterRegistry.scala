@@ -0,0 +1,75 @@
+package com.karasiq.gallerysaver.limits
+
+import scala.collection.JavaConverters._
+import scala.collection.concurrent.TrieMap
+import scala.concurrent.{ExecutionContext, Future}
+
+import akka.actor.Scheduler
+import com.typesafe.config.{Config, ConfigObject}
+
+import com.karasiq.gallerysaver.builtin.utils.URLUtils
+
+/**
+  * Host limiters registry, shared by page fetches and file downloads
+  * @param default   Default per host limits
+  * @param overrides Limits overrides by host (subdomains included, share single limiter)
+  */
+final class HostLimiterRegistry(default: HostLimitSettings, overrides: Map[String, HostLimitSettings])(implicit scheduler: Scheduler) {
+  private[this] val limiters = TrieMap.empty[String, HostLimiter]
+
+  /**
+    * Provides limiter for specified host
+    * @param host Host name
+    * @return Host limiter
+    */
+  def forHost(host: String): HostLimiter = {
+    val (key, settings) = overrideFor(host.toLowerCase).getOrElse(host.toLowerCase → default)
+    limiters.getOrElseUpdate(key, new HostLimiter(settings))
+  }
+
+  /**
+    * Provides limiter for URL host
+    * @param url URL
+    * @return Host limiter, or `None` if URL has no host
+    */
+  def forUrl(url: String): Option[HostLimiter] = {
+    URLUtils.hostOf(url).map(forHost)
+  }
+
+  /**
+    * Runs request within URL host limits
+    * @param url     Request URL
+    * @param request Request function
+    * @return Request result
+    */
+  def limit[T](url: String)(request: ⇒ Future[T])(implicit ec: ExecutionContext): Future[T] = {
+    forUrl(url) match {
+      case Some(limiter) ⇒
+        limiter(request)
+
+      case None ⇒
+        request
+    }
+  }
+
+  private[this] def overrideFor(host: String): Option[(String, HostLimitSettings)] = {
+    var suffix = host
+    while (suffix.nonEmpty) {
+      val settings = overrides.get(suffix)
+      if (settings.nonEmpty) return settings.map(suffix → _)
+      val dot = suffix.indexOf('.')
+      suffix = if (dot == -1) "" else suffix.substring(dot + 1)
+    }
+    None
+  }
+}
+
+object HostLimiterRegistry {
+  def apply(config: Config)(implicit scheduler: Scheduler): HostLimiterRegistry = {
+    val defaultConfig = config.getConfig("default")
+    val overrides = config.getObject("hosts").asScala.collect { case (host, hostConfig: ConfigObject) ⇒
+      host.toLowerCase → HostLimitSettings(hostConfig.toConfig.withFallback(defaultConfig))
+    }
+    new HostLimiterRegistry(HostLimitSettings(defaultConfig), overrides.toMap)
+  }
+}
@@ -0,0 +1,34 @@
+package com.karasiq.gallerysaver.limits
+
+import scala.concurrent.duration._
+
+/**
+  * Token bucket rate limiter, tokens are reserved in advance so callers only have to wait for the returned delay
+  * @param ratePerSecond Token refill rate
+  * @param burst         Bucket capacity
+  */
+final class TokenBucket(ratePerSecond: Double, burst: Int) {
+  require(ratePerSecond > 0 && burst > 0, "Invalid token bucket settings")
+
+  private[this] val intervalNanos = (1e9 / ratePerSecond).toLong
+  private[this] var stored = burst.toDouble
+  private[this] var nextFreeNanos = System.nanoTime()
+
+  /**
+    * Reserves one token
+    * @return Delay before the reserved token becomes available
+    */
+  def reserve(): FiniteDuration = synchronized {
+    val now = System.nanoTime()
+    if (now > nextFreeNanos) {
+      stored = math.min(burst.toDouble, stored + (now - nextFreeNanos).toDouble / intervalNanos)
+      nextFreeNanos = now
+    }
+
+    val delay = nextFreeNanos - now
+    val spent = math.min(1.0, stored)
+    stored -= spent
+    nextFreeNanos += ((1.0 - spent) * intervalNanos).toLong
+    delay.nanos
+  }
+}
@@ -0,0 +1,34 @@
+package com.karasiq.gallerysaver.mapdb
+
+import java.nio.file.{Files, Paths}
+
+import org.h2.mvstore.{MVMap, MVStore}
+
+import com.typesafe.config.Config
+
+/**
+  * MVStore key-value storage, the file is opened on first use.
+  * Changes are committed in background and on close
+  * @param config Storage config
+  */
+class AppKVStore(config: Config) extends AutoCloseable {
+  @volatile private[this] var opened = false
+
+  lazy val store: MVStore = {
+    val path = Paths.get(config.getString("path"))
+    Files.createDirectories(path.toAbsolutePath.getParent)
+    opened = true
+    new MVStore.Builder()
+      .fileName(path.toString)
+      .cacheSize(config.getInt("cache-size-mb"))
+      .open()
+  }
+
+  def openMap[V](name: String): MVMap[String, V] = {
+    store.openMap[String, V](name)
+  }
+
+  override def close(): Unit = {
+    if (opened) store.close()
+  }
+}
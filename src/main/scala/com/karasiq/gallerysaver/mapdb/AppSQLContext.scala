@@ -1,14 +1,20 @@
 package com.karasiq.gallerysaver.mapdb
 
 import java.time.Instant
-import java.util.Date
+import java.util.{Date, Properties}
 
 import com.typesafe.config.{Config, ConfigFactory}
+import com.zaxxer.hikari.{HikariConfig, HikariDataSource}
 import io.getquill.{H2JdbcContext, SnakeCase}
 
 class AppSQLContext(config: Config) extends AutoCloseable {
   val dbConfig: Config = createH2Config()
-  val context = new H2JdbcContext[SnakeCase](dbConfig)
+
+  /**
+    * Connection pool, shared with Quill context. Used directly for batched writes
+    */
+  val dataSource: HikariDataSource = createDataSource()
+  val context = new H2JdbcContext[SnakeCase](dataSource)
 
   import scala.collection.JavaConverters._
 
@@ -23,6 +29,12 @@ class AppSQLContext(config: Config) extends AutoCloseable {
     ).asJava)
   }
 
+  private[this] def createDataSource(): HikariDataSource = {
+    val properties = new Properties()
+    dbConfig.entrySet().asScala.foreach(e ⇒ properties.setProperty(e.getKey, e.getValue.unwrapped().toString))
+    new HikariDataSource(new HikariConfig(properties))
+  }
+
   trait PredefEncoders {
     import context._
     implicit val encodeInstant = MappedEncoding[Instant, Date](Date.from)
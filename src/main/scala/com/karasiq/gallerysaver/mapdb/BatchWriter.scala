@@ -0,0 +1,77 @@
+package com.karasiq.gallerysaver.mapdb
+
+import java.util
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.locks.LockSupport
+
+import scala.collection.JavaConverters._
+import scala.concurrent.duration.FiniteDuration
+import scala.util.control.NonFatal
+
+/**
+  * Write-behind queue, values are written in batches from a single background thread
+  * @param name          Writer thread name
+  * @param batchSize     Max batch size, reaching it triggers immediate write
+  * @param flushInterval Max time values stay queued
+  * @param write         Batch writer
+  * @param onError       Failed batch handler
+  */
+final class BatchWriter[T](name: String, batchSize: Int, flushInterval: FiniteDuration)
+                          (write: Seq[T] ⇒ Unit, onError: (Seq[T], Throwable) ⇒ Unit) extends AutoCloseable {
+
+  private[this] val queue = new LinkedBlockingQueue[T]()
+  private[this] val writeLock = new Object
+  @volatile private[this] var closed = false
+
+  private[this] val thread = {
+    val thread = new Thread(new Runnable {
+      override def run(): Unit = writeLoop()
+    }, name)
+    thread.setDaemon(true)
+    thread.start()
+    thread
+  }
+
+  def +=(value: T): Unit = {
+    if (closed) throw new IllegalStateException(s"Writer is closed: $name")
+    queue.add(value)
+    if (queue.size() >= batchSize) LockSupport.unpark(thread)
+  }
+
+  def ++=(values: TraversableOnce[T]): Unit = {
+    values.foreach(this += _)
+  }
+
+  /**
+    * Values awaiting write
+    */
+  def pending: Int = {
+    queue.size()
+  }
+
+  /**
+    * Synchronously writes all queued values
+    */
+  def flush(): Unit = writeLock.synchronized {
+    val batch = new util.ArrayList[T](batchSize)
+    while (queue.drainTo(batch, batchSize) > 0) {
+      val values = batch.asScala.toVector
+      batch.clear()
+      try write(values) catch { case NonFatal(exc) ⇒ onError(values, exc) }
+    }
+  }
+
+  override def close(): Unit = {
+    closed = true
+    LockSupport.unpark(thread)
+    thread.join()
+    flush()
+  }
+
+  private[this] def writeLoop(): Unit = {
+    while (!closed) {
+      if (queue.size() < batchSize) LockSupport.parkNanos(this, flushInterval.toNanos)
+      flush()
+    }
+  }
+}
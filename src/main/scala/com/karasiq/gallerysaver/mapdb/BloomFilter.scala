@@ -0,0 +1,114 @@
+package com.karasiq.gallerysaver.mapdb
+
+import java.io.{DataInputStream, DataOutputStream, IOException}
+import java.util.concurrent.atomic.{AtomicLong, AtomicLongArray}
+
+import scala.util.hashing.MurmurHash3
+
+object BloomFilter {
+  private val Magic = 0x47534246 // GSBF
+  private val Version = 2
+
+  /**
+    * Creates filter sized for provided entries count
+    * @param expectedEntries   Expected entries count
+    * @param falsePositiveRate Desired false positive probability
+    */
+  def apply(expectedEntries: Long, falsePositiveRate: Double): BloomFilter = {
+    require(falsePositiveRate > 0 && falsePositiveRate < 1, "Invalid false positive rate")
+    val entries = expectedEntries.max(1L)
+    val bits = math.ceil(-entries * math.log(falsePositiveRate) / (math.log(2) * math.log(2))).toLong.max(64L)
+    val hashes = math.round(bits.toDouble / entries * math.log(2)).toInt.max(1)
+    new BloomFilter(new AtomicLongArray(((bits + 63) / 64).toInt), hashes, entries, 0L)
+  }
+
+  /**
+    * Reads filter written by [[com.karasiq.gallerysaver.mapdb.BloomFilter#writeTo writeTo]]
+    * @param input Input stream
+    * @return Filter and attached metadata
+    */
+  def readFrom(input: DataInputStream): (BloomFilter, Long) = {
+    if (input.readInt() != Magic || input.readInt() != Version) throw new IOException("Invalid bloom filter file")
+    val metadata = input.readLong()
+    val capacity = input.readLong()
+    val count = input.readLong()
+    val hashes = input.readInt()
+    val words = new AtomicLongArray(input.readInt())
+    for (i ← 0 until words.length()) words.set(i, input.readLong())
+    (new BloomFilter(words, hashes, capacity, count), metadata)
+  }
+}
+
+/**
+  * Thread-safe bloom filter over strings, uses double hashing with two MurmurHash3 seeds
+  * @note False positive rate is kept up to capacity, filter should be rebuilt when it is exceeded
+  * @param words        Bit set
+  * @param hashes       Hash functions count
+  * @param capacity     Expected entries count
+  * @param initialCount Added keys count
+  */
+final class BloomFilter private (words: AtomicLongArray, val hashes: Int, val capacity: Long, initialCount: Long) {
+  import BloomFilter._
+
+  val bits: Long = words.length().toLong * 64
+  private[this] val added = new AtomicLong(initialCount)
+
+  /**
+    * @return Added keys count, keys which didn't set any new bit are not counted
+    */
+  def count: Long = added.get()
+
+  def isFull: Boolean = count > capacity
+
+  def add(key: String): Unit = {
+    var changed = false
+    forEachBit(key) { bit ⇒
+      val index = (bit >>> 6).toInt
+      val mask = 1L << (bit & 63)
+      var word = words.get(index)
+      while ((word & mask) == 0 && !words.compareAndSet(index, word, word | mask)) word = words.get(index)
+      if ((word & mask) == 0) changed = true
+      true
+    }
+    if (changed) added.incrementAndGet()
+  }
+
+  /**
+    * @return `false` if key was never added, `true` if it probably was
+    */
+  def mightContain(key: String): Boolean = {
+    forEachBit(key)(bit ⇒ (words.get((bit >>> 6).toInt) & (1L << (bit & 63))) != 0)
+  }
+
+  /**
+    * Writes filter contents
+    * @param output   Output stream
+    * @param metadata Value returned by [[com.karasiq.gallerysaver.mapdb.BloomFilter#readFrom readFrom]]
+    */
+  def writeTo(output: DataOutputStream, metadata: Long): Unit = {
+    output.writeInt(Magic)
+    output.writeInt(Version)
+    output.writeLong(metadata)
+    output.writeLong(capacity)
+    output.writeLong(count)
+    output.writeInt(hashes)
+    output.writeInt(words.length())
+    for (i ← 0 until words.length()) output.writeLong(words.get(i))
+  }
+
+  // Stops at first `false`
+  @inline
+  private[this] def forEachBit(key: String)(f: Long ⇒ Boolean): Boolean = {
+    val h1 = MurmurHash3.stringHash(key, 0x9747b28c).toLong
+    val h2 = MurmurHash3.stringHash(key, 0x5bd1e995).toLong
+    val hash = (h1 << 32) | (h2 & 0xffffffffL)
+    var i = 0
+    var result = true
+    while (result && i < hashes) {
+      val combined = hash + i * ((h2 << 32) | (h1 & 0xffffffffL) | 1L)
+      result = f((combined & Long.MaxValue) % bits)
+      i += 1
+    }
+    result
+  }
+}
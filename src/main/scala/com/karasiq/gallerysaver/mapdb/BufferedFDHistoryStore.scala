@@ -0,0 +1,111 @@
+package com.karasiq.gallerysaver.mapdb
+
+import java.sql.{Timestamp, Types}
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+import scala.concurrent.duration._
+import scala.util.control.NonFatal
+
+import akka.event.LoggingAdapter
+import com.typesafe.config.Config
+
+/**
+  * Write-behind history store. Entries are coalesced by path and written with batched `MERGE` in single transactions
+  * @note Pending entries are visible to reads, and written on close
+  * @param sql      App SQL context
+  * @param store    Underlying history store
+  * @param settings Writer settings
+  * @param log      Logger
+  */
+final class BufferedFDHistoryStore(sql: AppSQLContext, store: FDHistoryStore, settings: Config, log: LoggingAdapter) extends FDHistoryStore with AutoCloseable {
+  private[this] val pending = new ConcurrentHashMap[String, FDHistoryEntry]()
+
+  private[this] val writer = new BatchWriter[(String, FDHistoryEntry)]("history-writer", settings.getInt("batch-size"),
+    settings.getDuration("flush-interval", TimeUnit.MILLISECONDS).millis)(writeBatch, (batch, exc) ⇒ log.error(exc, "History write failed, {} entries lost", batch.length))
+
+  override def get(key: String): Option[FDHistoryEntry] = {
+    Option(pending.get(key)).orElse(store.get(key))
+  }
+
+  // Pending entries are scanned, there are at most a few batches of them
+  override def byUrl(url: String): Seq[FDHistoryEntry] = {
+    val pendingEntries = pending.values().asScala.filter(_.url == url).toVector
+    pendingEntries ++ store.byUrl(url).filterNot(e ⇒ pending.containsKey(e.path))
+  }
+
+  override def iterator: Iterator[(String, FDHistoryEntry)] = {
+    writer.flush()
+    store.iterator
+  }
+
+  override def keysIterator: Iterator[String] = {
+    writer.flush()
+    store.keysIterator
+  }
+
+  override def +=(kv: (String, FDHistoryEntry)): BufferedFDHistoryStore.this.type = {
+    pending.put(kv._1, kv._2)
+    writer += kv
+    this
+  }
+
+  // Queued entries are written first, so they can't overwrite the deletion
+  override def -=(key: String): BufferedFDHistoryStore.this.type = {
+    writer.flush()
+    store -= key
+    this
+  }
+
+  override def flush(): Unit = {
+    writer.flush()
+  }
+
+  override def close(): Unit = {
+    writer.close()
+  }
+
+  private[this] def writeBatch(batch: Seq[(String, FDHistoryEntry)]): Unit = {
+    // Last entry of each path wins
+    val entries = mutable.LinkedHashMap.empty[String, FDHistoryEntry]
+    batch.foreach(entries += _)
+
+    try {
+      val connection = sql.dataSource.getConnection
+      try {
+        connection.setAutoCommit(false)
+        try {
+          val merge = connection.prepareStatement("MERGE INTO FD_HISTORY (PATH, URL, SIZE, DATE, CONTENT, ETAG, LAST_MODIFIED, LENGTH, CHECKED) KEY (PATH) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)")
+          entries.foreach { case (path, entry) ⇒
+            merge.setString(1, path)
+            merge.setString(2, entry.url)
+            merge.setLong(3, entry.size)
+            merge.setTimestamp(4, Timestamp.from(entry.date))
+            entry.content match {
+              case Some(digest) ⇒ merge.setString(5, digest)
+              case None ⇒ merge.setNull(5, Types.VARCHAR)
+            }
+            merge.setString(6, entry.etag.orNull)
+            merge.setString(7, entry.lastModified.orNull)
+            entry.length match {
+              case Some(length) ⇒ merge.setLong(8, length)
+              case None ⇒ merge.setNull(8, Types.BIGINT)
+            }
+            merge.setTimestamp(9, entry.checked.map(Timestamp.from).orNull)
+            merge.addBatch()
+          }
+          merge.executeBatch()
+          merge.close()
+          connection.commit()
+        } catch { case NonFatal(exc) ⇒
+          connection.rollback()
+          throw exc
+        }
+      } finally connection.close()
+    } finally {
+      // Entries replaced while the batch was written stay pending
+      entries.foreach { case (path, entry) ⇒ pending.remove(path, entry) }
+    }
+  }
+}
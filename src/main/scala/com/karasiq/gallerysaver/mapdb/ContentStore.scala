@@ -0,0 +1,226 @@
+package com.karasiq.gallerysaver.mapdb
+
+import java.io.{FilterOutputStream, InputStream, OutputStream}
+import java.nio.file._
+import java.security.MessageDigest
+import java.sql.SQLException
+
+import scala.util.Try
+import scala.util.control.NonFatal
+
+import akka.event.LoggingAdapter
+import com.typesafe.config.Config
+import org.h2.api.ErrorCode
+
+import com.karasiq.networkutils.downloader.LoadedFile
+
+/**
+  * Content store settings
+  * @param enabled   Downloaded files are hashed and deduplicated
+  * @param directory Content-addressed store directory, should be on the same file system as downloads
+  * @param algorithm Digest algorithm
+  */
+final case class ContentStoreSettings(enabled: Boolean, directory: Path, algorithm: String)
+
+object ContentStoreSettings {
+  def apply(config: Config): ContentStoreSettings = {
+    ContentStoreSettings(
+      config.getBoolean("enabled"),
+      Paths.get(config.getString("directory")),
+      config.getString("algorithm")
+    )
+  }
+}
+
+object ContentStore {
+  /**
+    * File content descriptor
+    * @param digest Hex encoded digest
+    * @param size   Content size in bytes
+    */
+  final case class Content(digest: String, size: Long)
+
+  /**
+    * Hashes written bytes
+    */
+  final class HashingOutputStream(output: OutputStream, digest: MessageDigest) extends FilterOutputStream(output) {
+    private[this] var size = 0L
+
+    override def write(b: Int): Unit = {
+      out.write(b)
+      digest.update(b.toByte)
+      size += 1
+    }
+
+    override def write(b: Array[Byte], off: Int, len: Int): Unit = {
+      out.write(b, off, len)
+      digest.update(b, off, len)
+      size += len
+    }
+
+    /**
+      * @note Should be called once, after all bytes are written
+      */
+    def content: Content = {
+      contentOf(digest, size)
+    }
+  }
+
+  /**
+    * Loaded file hashed while written, so it is not read again by [[com.karasiq.gallerysaver.mapdb.ContentStore#add add]]
+    */
+  trait Hashed {
+    /**
+      * Written file and its content
+      */
+    def hashed: Option[(Path, Content)]
+  }
+
+  /**
+    * Loaded file with content of the file derived from it, e.g. converted image
+    * @param original Loaded file
+    * @param path     Derived file
+    * @param content  Derived file content
+    */
+  final case class HashedFile(original: LoadedFile, path: Path, content: Content) extends LoadedFile with Hashed {
+    def hashed: Option[(Path, Content)] = Some(path → content)
+  }
+
+  /**
+    * Content hashed while the file was written
+    * @param loaded Loaded file
+    * @param file   File path, digest of another path (e.g. converted file source) is not used
+    */
+  def hashedContent(loaded: LoadedFile, file: Path): Option[Content] = loaded match {
+    case hashed: Hashed ⇒
+      hashed.hashed.collect { case (path, content) if path.toAbsolutePath == file.toAbsolutePath ⇒ content }
+
+    case _ ⇒
+      None
+  }
+
+  /**
+    * Completes digest of content hashed elsewhere, e.g. in a download stream
+    * @param digest Digest updated with all content bytes
+    * @param size   Content size
+    */
+  def contentOf(digest: MessageDigest, size: Long): Content = {
+    Content(hex(digest.digest()), size)
+  }
+
+  private def hex(bytes: Array[Byte]): String = {
+    val sb = new StringBuilder(bytes.length * 2)
+    bytes.foreach(b ⇒ sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16)))
+    sb.result()
+  }
+}
+
+/**
+  * Content-addressed file store. Every distinct content is hard linked to `directory/ab/cd/abcd...`,
+  * downloaded duplicates are replaced with links to the stored file
+  * @note Digests are recorded in `CONTENT` table and linked from `FD_HISTORY.CONTENT`.
+  *       Concurrent writers of the same content are arbitrated by `CONTENT` inserts and atomic link creation,
+  *       so the store should be shared, but doesn't have to be
+  * @param sql      App SQL context
+  * @param settings Store settings
+  * @param log      Logger of files that can't be hashed or linked, they are kept as is
+  */
+final class ContentStore(sql: AppSQLContext, val settings: ContentStoreSettings, log: LoggingAdapter) {
+  import ContentStore._
+
+  def newDigest(): MessageDigest = {
+    MessageDigest.getInstance(settings.algorithm)
+  }
+
+  /**
+    * Wraps file output, its content should be passed to [[add]] when the file is closed
+    */
+  def hashingStream(output: OutputStream): HashingOutputStream = {
+    new HashingOutputStream(output, newDigest())
+  }
+
+  /**
+    * Adds file to the store, or replaces it with a link if the same content is already stored
+    * @param file   Downloaded file
+    * @param hashed Content hashed while the file was written, file is read if it's not provided or its size doesn't match
+    * @return File content, or `None` if file can't be read
+    */
+  def add(file: Path, hashed: Option[Content] = None): Option[Content] = {
+    val known = hashed.filter(content ⇒ Try(Files.size(file)).toOption.contains(content.size))
+    val content = known.orElse {
+      try Some(hash(file)) catch { case NonFatal(exc) ⇒
+        log.warning("Content of {} can't be hashed: {}", file, exc)
+        None
+      }
+    }
+
+    content.foreach { content ⇒
+      val claimed = record(content)
+      try link(file, content, claimed) catch { case NonFatal(exc) ⇒
+        log.warning("{} is not linked to content store: {}", file, exc)
+      }
+    }
+    content
+  }
+
+  private[this] def hash(file: Path): Content = {
+    val digest = newDigest()
+    val input: InputStream = Files.newInputStream(file)
+    try {
+      val buffer = new Array[Byte](65536)
+      var size = 0L
+      var read = input.read(buffer)
+      while (read != -1) {
+        digest.update(buffer, 0, read)
+        size += read
+        read = input.read(buffer)
+      }
+      Content(hex(digest.digest()), size)
+    } finally input.close()
+  }
+
+  /**
+    * Stores the file, or replaces it with a link to the stored copy.
+    * Link creation fails if the stored file exists, so of concurrent writers only one stores its file and others link to it
+    * @param claimed Content was first recorded by this call, only its writer replaces a damaged stored copy
+    */
+  private[this] def link(file: Path, content: Content, claimed: Boolean): Unit = {
+    val stored = settings.directory.resolve(content.digest.substring(0, 2)).resolve(content.digest.substring(2, 4)).resolve(content.digest)
+    def isStored = Files.isRegularFile(stored) && Files.size(stored) == content.size
+    def store() = try { Files.createLink(stored, file); true } catch { case _: FileAlreadyExistsException ⇒ false }
+
+    if (!isStored) {
+      Files.createDirectories(stored.getParent)
+      if (store()) return
+      if (!isStored) {
+        if (!claimed) throw new FileAlreadyExistsException(stored.toString, null, "Stored content size doesn't match")
+        Files.deleteIfExists(stored)
+        if (store()) return
+      }
+    }
+
+    if (!Files.isSameFile(stored, file)) {
+      val temp = file.resolveSibling(file.getFileName + ".link")
+      try {
+        Files.deleteIfExists(temp)
+        Files.createLink(temp, stored)
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+      } finally Files.deleteIfExists(temp)
+    }
+  }
+
+  /**
+    * @return True if content was not recorded before
+    */
+  private[this] def record(content: Content): Boolean = {
+    val connection = sql.dataSource.getConnection
+    try {
+      val statement = connection.prepareStatement("INSERT INTO CONTENT (DIGEST, SIZE) VALUES (?, ?)")
+      statement.setString(1, content.digest)
+      statement.setLong(2, content.size)
+      try statement.executeUpdate() == 1 catch {
+        case exc: SQLException if exc.getErrorCode == ErrorCode.DUPLICATE_KEY_1 ⇒ false
+      } finally statement.close()
+    } finally connection.close()
+  }
+}
@@ -0,0 +1,66 @@
+package com.karasiq.gallerysaver.mapdb
+
+import com.karasiq.gallerysaver.scripting.resources.LoadableResource
+
+/**
+  * Pending crawl frontier entry
+  * @param id       Entry ID
+  * @param depth    Hierarchy depth
+  * @param url      Resource URL
+  * @param resource Resource descriptor, `None` for root URLs
+  */
+final case class FrontierEntry(id: Long, depth: Int, url: String, resource: Option[LoadableResource])
+
+/**
+  * Persistent crawl state, allows interrupted jobs to be resumed
+  * @note Writes are asynchronous, but applied in call order
+  */
+trait CrawlFrontier extends AutoCloseable {
+  /**
+    * Registers new job
+    * @return Job ID
+    */
+  def startJob(): Long
+
+  /**
+    * Drops processed entries of job and marks it finished.
+    * Job with not processed entries (e.g. failed fetches) stays unfinished, so they are retried on resume
+    * @param job Job ID
+    */
+  def finishJob(job: Long): Unit
+
+  /**
+    * Adds root URLs to job frontier
+    * @param job  Job ID
+    * @param urls Resource URLs
+    * @return Entry IDs
+    */
+  def addUrls(job: Long, urls: Seq[String]): Seq[Long]
+
+  /**
+    * Adds discovered resources to job frontier
+    * @param job       Job ID
+    * @param depth     Hierarchy depth
+    * @param resources Resources
+    * @return Entry IDs, zero for resources which can't be persisted
+    */
+  def add(job: Long, depth: Int, resources: Seq[LoadableResource]): Seq[Long]
+
+  /**
+    * Marks entry processed
+    * @param id Entry ID
+    */
+  def complete(id: Long): Unit
+
+  /**
+    * Jobs not marked finished
+    */
+  def unfinishedJobs: Seq[Long]
+
+  /**
+    * Not processed entries of job, read lazily.
+    * Entries added after the call are not returned, resumed traversal expands them itself
+    * @param job Job ID
+    */
+  def pending(job: Long): Iterator[FrontierEntry]
+}
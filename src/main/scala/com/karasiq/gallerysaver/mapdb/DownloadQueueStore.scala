@@ -0,0 +1,103 @@
+package com.karasiq.gallerysaver.mapdb
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, ObjectInputStream, ObjectOutputStream}
+import java.sql.Connection
+
+import scala.collection.mutable.ArrayBuffer
+import scala.util.Try
+
+import com.karasiq.networkutils.downloader.FileToDownload
+
+/**
+  * Spilled download queue storage
+  */
+trait DownloadQueueStore {
+  /**
+    * Appends file to the queue tail
+    * @param downloader File downloader actor path
+    * @param file       File to download
+    */
+  def append(downloader: String, file: FileToDownload): Unit
+
+  /**
+    * Removes files from the queue head
+    * @param count Max files count
+    * @return Downloader actor paths and files
+    */
+  def take(count: Int): Seq[(String, FileToDownload)]
+
+  /**
+    * Queued files count
+    */
+  def size: Long
+}
+
+final class H2DownloadQueueStore(sql: AppSQLContext) extends DownloadQueueStore {
+  private[this] var lastId = withConnection { connection ⇒
+    val statement = connection.createStatement()
+    val rs = statement.executeQuery("SELECT COALESCE(MAX(ID), 0) FROM DOWNLOAD_QUEUE")
+    val max = if (rs.next()) rs.getLong(1) else 0L
+    statement.close()
+    max
+  }
+
+  override def append(downloader: String, file: FileToDownload): Unit = synchronized {
+    val bytes = serialize(file)
+    withConnection { connection ⇒
+      val statement = connection.prepareStatement("INSERT INTO DOWNLOAD_QUEUE (ID, DOWNLOADER, FILE) VALUES (?, ?, ?)")
+      statement.setLong(1, lastId + 1)
+      statement.setString(2, downloader)
+      statement.setBytes(3, bytes)
+      statement.executeUpdate()
+      statement.close()
+    }
+    lastId += 1
+  }
+
+  override def take(count: Int): Seq[(String, FileToDownload)] = synchronized {
+    withConnection { connection ⇒
+      val select = connection.prepareStatement("SELECT ID, DOWNLOADER, FILE FROM DOWNLOAD_QUEUE ORDER BY ID LIMIT ?")
+      select.setInt(1, count)
+      val rs = select.executeQuery()
+      val files = ArrayBuffer.empty[(String, FileToDownload)]
+      var maxId = 0L
+      while (rs.next()) {
+        maxId = rs.getLong(1)
+        Try(deserialize(rs.getBytes(3))).foreach(file ⇒ files += rs.getString(2) → file) // Unreadable entries are dropped
+      }
+      select.close()
+
+      val delete = connection.prepareStatement("DELETE FROM DOWNLOAD_QUEUE WHERE ID <= ?")
+      delete.setLong(1, maxId)
+      delete.executeUpdate()
+      delete.close()
+      files.toVector
+    }
+  }
+
+  override def size: Long = withConnection { connection ⇒
+    val statement = connection.createStatement()
+    val rs = statement.executeQuery("SELECT COUNT(*) FROM DOWNLOAD_QUEUE")
+    val count = if (rs.next()) rs.getLong(1) else 0L
+    statement.close()
+    count
+  }
+
+  private[this] def withConnection[T](f: Connection ⇒ T): T = {
+    val connection = sql.dataSource.getConnection
+    try f(connection) finally connection.close()
+  }
+
+  private[this] def serialize(file: FileToDownload): Array[Byte] = {
+    val bs = new ByteArrayOutputStream()
+    val obs = new ObjectOutputStream(bs)
+    obs.writeObject(file)
+    obs.close()
+    bs.toByteArray
+  }
+
+  private[this] def deserialize(bytes: Array[Byte]): FileToDownload = {
+    val ois = new ObjectInputStream(new ByteArrayInputStream(bytes))
+    ois.readObject().asInstanceOf[FileToDownload]
+  }
+}
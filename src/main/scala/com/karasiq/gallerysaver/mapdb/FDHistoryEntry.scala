@@ -2,4 +2,18 @@ package com.karasiq.gallerysaver.mapdb
 
 import java.time.Instant
 
-final case class FDHistoryEntry(path: String, url: String, size: Long, date: Instant = Instant.now())
+/**
+  * Downloaded file history entry
+  * @param path         Absolute file path
+  * @param url          File URL
+  * @param size         File size
+  * @param date         File modification date
+  * @param content      Content digest, see [[com.karasiq.gallerysaver.mapdb.ContentStore ContentStore]]
+  * @param etag         Response ETag
+  * @param lastModified Response Last-Modified
+  * @param length       Response Content-Length, differs from file size if the file was converted
+  * @param checked      Last time the file was downloaded or confirmed unchanged by the server
+  */
+final case class FDHistoryEntry(path: String, url: String, size: Long, date: Instant = Instant.now(), content: Option[String] = None,
+                                etag: Option[String] = None, lastModified: Option[String] = None, length: Option[Long] = None,
+                                checked: Option[Instant] = None)
@@ -2,7 +2,19 @@ package com.karasiq.gallerysaver.mapdb
 
 import scala.collection.mutable
 
-trait FDHistoryStore extends mutable.AbstractMap[String, FDHistoryEntry]
+trait FDHistoryStore extends mutable.AbstractMap[String, FDHistoryEntry] {
+  /**
+    * Finds files downloaded from the URL
+    * @param url File URL
+    * @return History entries
+    */
+  def byUrl(url: String): Seq[FDHistoryEntry]
+
+  /**
+    * Writes entries buffered by the store, bounds memory of bulk writes
+    */
+  def flush(): Unit = ()
+}
 
 final class H2FDHistoryStore(sql: AppSQLContext) extends FDHistoryStore {
 
@@ -20,21 +32,39 @@ final class H2FDHistoryStore(sql: AppSQLContext) extends FDHistoryStore {
     context.run(q).headOption
   }
 
+  // Paged, a single query result would hold the whole table in memory
   override def iterator: Iterator[(String, FDHistoryEntry)] = {
-    val q = quote(query[FDHistoryEntry].map(e => (e.path, e)))
-    context.run(q).iterator
+    new KeysetIterator(sql, "SELECT PATH, URL, SIZE, DATE, CONTENT, ETAG, LAST_MODIFIED, LENGTH, CHECKED FROM FD_HISTORY WHERE PATH > ? ORDER BY PATH LIMIT ?", 10000)({ rs ⇒
+      val path = rs.getString(1)
+      path → FDHistoryEntry(path, rs.getString(2), rs.getLong(3), rs.getTimestamp(4).toInstant, Option(rs.getString(5)),
+        Option(rs.getString(6)), Option(rs.getString(7)), Option(rs.getObject(8)).map(_.asInstanceOf[Number].longValue()),
+        Option(rs.getTimestamp(9)).map(_.toInstant))
+    })
+  }
+
+  override def keysIterator: Iterator[String] = {
+    new KeysetIterator(sql, "SELECT PATH FROM FD_HISTORY WHERE PATH > ? ORDER BY PATH LIMIT ?", 10000)(rs ⇒ rs.getString(1) → ())
+      .map(_._1)
+  }
+
+  // Uses FD_HISTORY_URL index
+  override def byUrl(url: String): Seq[FDHistoryEntry] = {
+    val q = quote(query[FDHistoryEntry].filter(_.url == liftQ(url)))
+    context.run(q)
   }
 
   override def +=(kv: (String, FDHistoryEntry)): H2FDHistoryStore.this.type = {
     val upd = quote {
       val path = liftQ(kv._1)
-      query[FDHistoryEntry].filter(_.path == liftQ(kv._1)).update(_.url -> liftQ(kv._2.url), _.size -> liftQ(kv._2.size), _.date -> liftQ(kv._2.date))
+      query[FDHistoryEntry].filter(_.path == liftQ(kv._1)).update(_.url -> liftQ(kv._2.url), _.size -> liftQ(kv._2.size), _.date -> liftQ(kv._2.date), _.content -> liftQ(kv._2.content),
+        _.etag -> liftQ(kv._2.etag), _.lastModified -> liftQ(kv._2.lastModified), _.length -> liftQ(kv._2.length), _.checked -> liftQ(kv._2.checked))
     }
 
     if (context.run(upd) == 0) {
       val ins = quote {
         val path = liftQ(kv._1)
-        query[FDHistoryEntry].insert(_.path -> liftQ(kv._1), _.url -> liftQ(kv._2.url), _.size -> liftQ(kv._2.size), _.date -> liftQ(kv._2.date))
+        query[FDHistoryEntry].insert(_.path -> liftQ(kv._1), _.url -> liftQ(kv._2.url), _.size -> liftQ(kv._2.size), _.date -> liftQ(kv._2.date), _.content -> liftQ(kv._2.content),
+        _.etag -> liftQ(kv._2.etag), _.lastModified -> liftQ(kv._2.lastModified), _.length -> liftQ(kv._2.length), _.checked -> liftQ(kv._2.checked))
       }
       context.run(ins)
     }
@@ -1,36 +1,201 @@
 package com.karasiq.gallerysaver.mapdb
 
-import java.nio.file.{Path, Paths}
+import java.io.IOException
+import java.nio.file.{Files, Path, Paths, StandardCopyOption}
+import java.time.Instant
 
 import com.karasiq.fileutils.PathUtils._
+import com.karasiq.gallerysaver.stats.JobStats
 import com.karasiq.networkutils.HttpClientUtils.HttpClientCookie
 import com.karasiq.networkutils.downloader._
 import com.karasiq.networkutils.http.headers.HttpHeader
+import com.typesafe.config.Config
 
+import scala.concurrent.duration.FiniteDuration
 import scala.language.postfixOps
+import scala.util.Try
+
+object FileDownloaderHistory {
+  /**
+    * Handling of URLs already downloaded to another path
+    */
+  sealed trait Dedup
+
+  object Dedup {
+    /** File is downloaded again */
+    case object Disabled extends Dedup
+
+    /** Existing file is hard linked, or copied if links are not supported */
+    case object Link extends Dedup
+
+    /** Existing file is copied */
+    case object Copy extends Dedup
+
+    def apply(config: Config): Dedup = config.getString("mode") match {
+      case "none" ⇒ Disabled
+      case "link" ⇒ Link
+      case "copy" ⇒ Copy
+      case mode ⇒ throw new IllegalArgumentException(s"Invalid dedup mode: $mode")
+    }
+  }
+
+  /**
+    * Loaded file with response validators, they are recorded in history entry for conditional requests
+    */
+  trait Validated {
+    def etag: Option[String]
+    def lastModified: Option[String]
+    def length: Option[Long]
+  }
+
+  /**
+    * Links existing file to the path, or copies it. Temporary file is moved to the path, so it's never partially written
+    * @param source Existing file
+    * @param path   Destination path
+    * @param dedup  Link or copy
+    */
+  def linkFile(source: Path, path: Path, dedup: Dedup): Unit = {
+    val temp = path.resolveSibling(path.getFileName + ".link")
+    Files.createDirectories(path.getParent)
+    Files.deleteIfExists(temp)
+    try {
+      dedup match {
+        case Dedup.Link ⇒
+          try Files.createLink(temp, source) catch { case _: IOException | _: UnsupportedOperationException ⇒
+            // Other file system, or links are not supported
+            Files.copy(source, temp, StandardCopyOption.COPY_ATTRIBUTES)
+          }
+
+        case _ ⇒
+          Files.copy(source, temp, StandardCopyOption.COPY_ATTRIBUTES)
+      }
+      Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    } finally {
+      // Left if copy or move failed
+      Try(Files.deleteIfExists(temp))
+    }
+  }
+}
+
+/**
+  * Downloaded files history provider
+  * @param store     History storage
+  * @param stats     Download statistics
+  * @param dedup     Handling of URLs already downloaded to another path
+  * @param content   Content store, downloaded files are hashed and deduplicated by content
+  * @param freshness Unchanged files are passed to file downloader again when not checked for this period,
+  *                  downloader should revalidate them with a conditional request. `None` to never check files in history.
+  *                  Entries without validators (e.g. recorded before revalidation) are not checked
+  */
+final class FileDownloaderHistory(store: FDHistoryStore, stats: JobStats = new JobStats,
+                                  dedup: FileDownloaderHistory.Dedup = FileDownloaderHistory.Dedup.Disabled,
+                                  content: Option[ContentStore] = None, freshness: Option[FiniteDuration] = None) {
+  import FileDownloaderHistory.{Dedup, Validated, linkFile}
+
+  // Paths index, checks new and unchanged files without store lookups
+  private[this] val indexed = store match {
+    case s: IndexedFDHistoryStore ⇒ Some(s)
+    case _ ⇒ None
+  }
 
-final class FileDownloaderHistory(store: FDHistoryStore) {
   trait WithHistory extends WrappedFileDownloader { this: FileDownloader with FileDownloaderActor ⇒
     abstract override protected
     def needLoading(url: String, directory: String, name: String, headers: Seq[HttpHeader], cookies: Traversable[HttpClientCookie]): Boolean = {
       val path = Paths.get(directory, FileDownloader.fileNameFor(url, name))
-      val entry = store.get(key(path))
-      (!path.exists || path.fileSize == 0 || !entry.exists(e ⇒ e.url == url && e.size == path.fileSize)) && super.needLoading(url, directory, name, headers, cookies)
+      // History is checked first, so new files don't touch file system (lookup is cheap with filtered or indexed store)
+      // Entry is read from store at most once, index answers new and unchanged files without it
+      lazy val entry = store.get(key(path))
+      val changed = indexed match {
+        case Some(index) ⇒
+          index.lookup(key(path), url) match {
+            case HistoryIndex.NotFound ⇒ true
+            case IndexedFDHistoryStore.Unknown ⇒ isChanged(path, url, entry)
+            case size ⇒ sizeChanged(path, size)
+          }
+
+        case None ⇒
+          isChanged(path, url, entry)
+      }
+      val stale = !changed && freshness.exists(isStale(entry, _))
+      if (!changed && !stale) stats.filesSkipped.increment()
+      (stale || (changed && !linkExisting(url, path))) && super.needLoading(url, directory, name, headers, cookies)
     }
 
     abstract override protected
     def onSuccess(report: DownloadedFileReport, file: LoadedFile): Unit = {
-      store += (report.fileName → report.toHistoryEntry)
+      // Duplicate is replaced with a link before its entry is created
+      val path = asPath(report.fileName)
+      val digest = content.flatMap(_.add(path, ContentStore.hashedContent(file, path))).map(_.digest)
+      val entry = withValidators(report.toHistoryEntry.copy(content = digest), file)
+      store += (report.fileName → entry)
+      stats.filesDownloaded.increment()
+      stats.bytes.add(entry.size)
       super.onSuccess(report, file)
     }
 
     abstract override protected
     def onAlreadyDownloaded(path: Path, url: String, loadedFile: LoadedFile): Boolean = {
-      store += (key(path) → FDHistoryEntry(key(path), url, path.fileSize, path.lastModified.toInstant))
+      val previous = store.get(key(path)).filter(_.url == url)
+      val entry = FDHistoryEntry(key(path), url, path.fileSize, path.lastModified.toInstant, previous.flatMap(_.content),
+        previous.flatMap(_.etag), previous.flatMap(_.lastModified), previous.flatMap(_.length))
+      store += (key(path) → withValidators(entry, loadedFile))
       super.onAlreadyDownloaded(path, url, loadedFile)
     }
   }
 
+  private[this] def isChanged(path: Path, url: String, entry: Option[FDHistoryEntry]): Boolean = {
+    entry match {
+      // Entries without URL are created by history bootstrap
+      case Some(entry) if entry.url == url || entry.url.isEmpty ⇒
+        sizeChanged(path, entry.size)
+
+      case _ ⇒
+        true
+    }
+  }
+
+  private[this] def isStale(entry: Option[FDHistoryEntry], freshness: FiniteDuration): Boolean = {
+    entry.exists { entry ⇒
+      (entry.etag.nonEmpty || entry.lastModified.nonEmpty) &&
+        entry.checked.getOrElse(entry.date).plusMillis(freshness.toMillis).isBefore(Instant.now())
+    }
+  }
+
+  private[this] def withValidators(entry: FDHistoryEntry, file: LoadedFile): FDHistoryEntry = file match {
+    case ContentStore.HashedFile(original, _, _) ⇒
+      withValidators(entry, original)
+
+    case validated: Validated ⇒
+      entry.copy(etag = validated.etag.orElse(entry.etag), lastModified = validated.lastModified.orElse(entry.lastModified),
+        length = validated.length.orElse(entry.length), checked = Some(Instant.now()))
+
+    case _ ⇒
+      entry.copy(checked = Some(Instant.now()))
+  }
+
+  private[this] def sizeChanged(path: Path, recordedSize: Long): Boolean = {
+    val size = Try(Files.size(path)).getOrElse(0L)
+    size == 0 || recordedSize != size
+  }
+
+  /**
+    * Satisfies download with the same URL downloaded to another path
+    * @return `true` if file was linked or copied
+    */
+  private[this] def linkExisting(url: String, path: Path): Boolean = dedup != Dedup.Disabled && {
+    val existing = store.byUrl(url).find { entry ⇒
+      entry.path != key(path) && Try(Files.size(Paths.get(entry.path)) == entry.size).getOrElse(false)
+    }
+
+    existing.exists { entry ⇒
+      Try {
+        linkFile(Paths.get(entry.path), path, dedup)
+        store += (key(path) → entry.copy(path = key(path)))
+        stats.filesSkipped.increment()
+      }.isSuccess
+    }
+  }
+
   private[this] implicit class FileDownloaderHistoryReport(report: DownloadedFileReport) {
     def toHistoryEntry: FDHistoryEntry = {
       val file = asPath(report.fileName)
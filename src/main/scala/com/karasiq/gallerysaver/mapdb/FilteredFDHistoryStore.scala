@@ -0,0 +1,237 @@
+package com.karasiq.gallerysaver.mapdb
+
+import java.io._
+import java.nio.file.{Files, Path, Paths, StandardCopyOption}
+import java.util.concurrent.atomic.AtomicBoolean
+
+import scala.util.control.NonFatal
+
+import akka.event.LoggingAdapter
+import com.typesafe.config.Config
+
+/**
+  * History filter settings
+  * @param falsePositiveRate Filter false positive probability
+  * @param minEntries        Min filter capacity (both paths and URLs are counted)
+  * @param file              Persisted filter file
+  */
+final case class HistoryFilterSettings(falsePositiveRate: Double, minEntries: Long, file: Path)
+
+object HistoryFilterSettings {
+  def apply(config: Config): HistoryFilterSettings = {
+    HistoryFilterSettings(
+      config.getDouble("false-positive-rate"),
+      config.getLong("min-entries"),
+      Paths.get(config.getString("file"))
+    )
+  }
+}
+
+object FilteredFDHistoryStore {
+  /**
+    * Loads persisted filter, or rebuilds it from `FD_HISTORY` in background if it is missing or outdated
+    * @param sql      App SQL context
+    * @param store    History store
+    * @param settings Filter settings
+    * @param log      Logger
+    */
+  def apply(sql: AppSQLContext, store: FDHistoryStore, settings: HistoryFilterSettings, log: LoggingAdapter): FilteredFDHistoryStore = {
+    val state = HistoryState(sql)
+    val persisted = if (Files.isRegularFile(settings.file)) {
+      try {
+        val input = new DataInputStream(new BufferedInputStream(Files.newInputStream(settings.file)))
+        try {
+          val (filter, rows) = BloomFilter.readFrom(input)
+          Some((filter, HistoryState(rows, input.readLong())))
+        } finally input.close()
+      } catch { case NonFatal(exc) ⇒
+        log.warning("History filter can't be read: {}", exc)
+        None
+      } finally {
+        // Filter is valid until the next write, it is persisted again on close
+        Files.deleteIfExists(settings.file)
+      }
+    } else {
+      None
+    }
+
+    persisted match {
+      case Some((filter, persistedState)) if persistedState == state && !filter.isFull ⇒
+        new FilteredFDHistoryStore(sql, store, filter, settings, log, ready = true)
+
+      case _ ⇒
+        val filter = BloomFilter((state.rows * 4).max(settings.minEntries), settings.falsePositiveRate)
+        val filtered = new FilteredFDHistoryStore(sql, store, filter, settings, log, ready = false)
+        filtered.build(filter, state.rows)
+        filtered
+    }
+  }
+
+  /**
+    * Persisted filter is discarded if the history is changed while it is not running
+    * @param rows     History row count
+    * @param lastDate Latest entry date, changes if entries are replaced with the same count
+    */
+  private final case class HistoryState(rows: Long, lastDate: Long)
+
+  private object HistoryState {
+    def apply(sql: AppSQLContext): HistoryState = {
+      val connection = sql.dataSource.getConnection
+      try {
+        val statement = connection.createStatement()
+        try {
+          val rs = statement.executeQuery("SELECT COUNT(*), MAX(DATE) FROM FD_HISTORY")
+          if (rs.next()) HistoryState(rs.getLong(1), Option(rs.getTimestamp(2)).fold(0L)(_.getTime)) else HistoryState(0L, 0L)
+        } finally statement.close()
+      } finally connection.close()
+    }
+  }
+
+  private def fill(sql: AppSQLContext, filter: BloomFilter): Unit = {
+    new KeysetIterator(sql, "SELECT PATH, URL FROM FD_HISTORY WHERE PATH > ? ORDER BY PATH LIMIT ?", 10000)(rs ⇒ rs.getString(1) → rs.getString(2))
+      .foreach { case (path, url) ⇒
+        filter.add(pathKey(path))
+        filter.add(urlKey(url))
+      }
+  }
+
+  private def pathKey(path: String) = "P" + path
+  private def urlKey(url: String) = "U" + url
+}
+
+/**
+  * History store with bloom filter over file paths and URLs.
+  * Lookups of paths never recorded in history don't reach the database
+  * @note Filter is persisted on close with history row count and latest entry date, and rebuilt at startup if they differ
+  *       or if the app wasn't closed. Lookups are passed to the underlying store until the rebuild is finished
+  * @note Filter is rebuilt in background when its capacity is exceeded, the full one is used meanwhile
+  * @note Underlying store is closed first
+  * @param sql      App SQL context
+  * @param store    Underlying history store
+  * @param initial  Paths and URLs filter
+  * @param settings Filter settings
+  * @param log      Logger
+  * @param ready    Filter contains all history entries
+  */
+final class FilteredFDHistoryStore(sql: AppSQLContext, store: FDHistoryStore, initial: BloomFilter, settings: HistoryFilterSettings,
+                                   log: LoggingAdapter, @volatile private var ready: Boolean) extends FDHistoryStore with AutoCloseable {
+  import FilteredFDHistoryStore._
+
+  @volatile private[this] var filter = initial
+  @volatile private[this] var building = Option.empty[BloomFilter]
+  private[this] val rebuilding = new AtomicBoolean(false)
+
+  def isReady: Boolean = ready
+
+  /**
+    * @return Current filter capacity
+    */
+  def capacity: Long = filter.capacity
+
+  /**
+    * @return `false` if URL was never downloaded
+    */
+  def mightContainUrl(url: String): Boolean = {
+    !ready || filter.mightContain(urlKey(url))
+  }
+
+  override def get(key: String): Option[FDHistoryEntry] = {
+    if (!ready || filter.mightContain(pathKey(key))) store.get(key) else None
+  }
+
+  override def byUrl(url: String): Seq[FDHistoryEntry] = {
+    if (mightContainUrl(url)) store.byUrl(url) else Nil
+  }
+
+  override def iterator: Iterator[(String, FDHistoryEntry)] = {
+    store.iterator
+  }
+
+  override def keysIterator: Iterator[String] = {
+    store.keysIterator
+  }
+
+  override def +=(kv: (String, FDHistoryEntry)): FilteredFDHistoryStore.this.type = {
+    store += kv
+    building.foreach(add(_, kv)) // Read first, new filter is set as current before it is cleared
+    add(filter, kv)
+    if (filter.isFull) rebuild()
+    this
+  }
+
+  // Removed keys stay in filter until it is rebuilt
+  override def -=(key: String): FilteredFDHistoryStore.this.type = {
+    store -= key
+    this
+  }
+
+  override def flush(): Unit = {
+    store.flush()
+  }
+
+  override def close(): Unit = {
+    store match {
+      case c: AutoCloseable ⇒ c.close()
+      case _ ⇒ // Ignore
+    }
+    if (ready) persist()
+  }
+
+  /**
+    * Fills the filter from `FD_HISTORY` in background, it replaces current one when it is filled.
+    * Writes made meanwhile are added to both filters
+    * @param target New filter
+    * @param rows   History row count
+    */
+  private def build(target: BloomFilter, rows: Long): Unit = {
+    rebuilding.set(true)
+    if (target ne filter) building = Some(target)
+    val thread = new Thread(new Runnable {
+      override def run(): Unit = {
+        log.info("Building history filter from {} entries", rows)
+        try {
+          store.flush() // Writes not added to the new filter are in the database before it is filled
+          fill(sql, target)
+          filter = target
+          ready = true
+          log.info("History filter built, capacity: {}", target.capacity)
+        } catch { case NonFatal(exc) ⇒
+          log.error(exc, "History filter build failed")
+        } finally {
+          building = None
+          rebuilding.set(false)
+        }
+        if (ready && filter.isFull) rebuild()
+      }
+    }, "history-filter-builder")
+    thread.setDaemon(true)
+    thread.start()
+  }
+
+  private[this] def rebuild(): Unit = {
+    if (ready && !rebuilding.get()) synchronized {
+      val current = filter
+      if (!rebuilding.get() && current.isFull) {
+        build(BloomFilter((current.count * 2).max(settings.minEntries), settings.falsePositiveRate), current.count / 2)
+      }
+    }
+  }
+
+  private[this] def add(filter: BloomFilter, kv: (String, FDHistoryEntry)): Unit = {
+    filter.add(pathKey(kv._1))
+    filter.add(urlKey(kv._2.url))
+  }
+
+  private[this] def persist(): Unit = {
+    val file = settings.file
+    Files.createDirectories(file.toAbsolutePath.getParent)
+    val temp = file.resolveSibling(file.getFileName + ".tmp")
+    val state = HistoryState(sql)
+    val output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))
+    try {
+      filter.writeTo(output, state.rows)
+      output.writeLong(state.lastDate)
+    } finally output.close()
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+  }
+}
@@ -0,0 +1,331 @@
+package com.karasiq.gallerysaver.mapdb
+
+import java.io._
+import java.nio.charset.StandardCharsets
+import java.util.zip.{Deflater, DeflaterOutputStream, Inflater, InflaterInputStream}
+
+import scala.collection.mutable
+
+import com.karasiq.gallerysaver.scripting.resources._
+import com.typesafe.config.Config
+
+/**
+  * Compact binary format of cached gallery resources.
+  * {{{
+  *   blob       = magic:2 version:1 codec:1 payload
+  *   payload    = dictionary resources // deflated if codec is 1
+  *   dictionary = count:varint (length:varint utf8)*
+  *   resources  = count:varint resource*
+  *   resource   = tag:1 loader:dict url referrer:dict? cookies hierarchy [fileName:string?] // standard resource types
+  *              | tag:1 length:varint bytes                                                  // Java serialized object
+  *   url        = prefix:varint suffix:string // prefix is shared with previous resource URL
+  *   cookies    = count:varint (key:dict value:dict)*
+  *   hierarchy  = count:varint dict*
+  * }}}
+  * `dict` is a dictionary index, `dict?` and `string?` are prefixed with 0 for `None`.
+  * Blobs written by `ObjectOutputStream` are recognized by stream magic and decoded as before.
+  * Version 1 blobs have no codec byte and are never compressed
+  */
+object GalleryCacheCodec {
+  private val Magic = Array[Byte]('G', 'C')
+  private val Version: Byte = 2
+  private val HeaderSize = Magic.length + 2
+
+  private object Codecs {
+    val Raw: Byte = 0
+    val Deflate: Byte = 1
+  }
+
+  private object Tags {
+    val Serialized: Byte = 0
+    val File: Byte = 1
+    val Gallery: Byte = 2
+    val CachedGallery: Byte = 3
+    val InfiniteGallery: Byte = 4
+  }
+
+  /**
+    * Decoded blob
+    * @param resources Gallery resources
+    * @param legacy    Blob was written with Java serialization and should be re-encoded
+    */
+  final case class Decoded(resources: Seq[LoadableResource], legacy: Boolean)
+
+  /**
+    * Blob compression settings
+    * @param threshold Payloads smaller than this are stored raw
+    * @param level     Deflate level, 1 is the fastest
+    */
+  final case class Compression(threshold: Int, level: Int)
+
+  object Compression {
+    val disabled = Compression(Int.MaxValue, Deflater.BEST_SPEED)
+
+    def apply(config: Config): Compression = {
+      if (config.getBoolean("enabled")) {
+        Compression(math.min(config.getBytes("threshold"), Int.MaxValue).toInt, config.getInt("level"))
+      } else {
+        disabled
+      }
+    }
+  }
+
+  def encode(resources: Seq[LoadableResource], compression: Compression = Compression.disabled): Array[Byte] = {
+    val dictionary = new Dictionary
+    val body = new Output
+    var previousUrl = ""
+
+    // Arguments are written in case class field order
+    def writeCommon(r: LoadableResource): Unit = {
+      body.writeVarInt(dictionary(r.loader))
+      val prefix = commonPrefix(previousUrl, r.url)
+      body.writeVarInt(prefix)
+      body.writeString(r.url.substring(prefix))
+      previousUrl = r.url
+      body.writeVarInt(r.referrer.fold(0)(dictionary(_) + 1))
+      body.writeVarInt(r.cookies.size)
+      r.cookies.foreach { case (key, value) ⇒
+        body.writeVarInt(dictionary(key))
+        body.writeVarInt(dictionary(value))
+      }
+      body.writeVarInt(r.hierarchy.length)
+      r.hierarchy.foreach(segment ⇒ body.writeVarInt(dictionary(segment)))
+    }
+
+    body.writeVarInt(resources.length)
+    resources.foreach {
+      case r: FileResource if r.getClass == classOf[FileResource] ⇒
+        body.write(Tags.File)
+        writeCommon(r)
+        writeOptionalString(body, r.fileName)
+
+      case r: CachedGalleryResource if r.getClass == classOf[CachedGalleryResource] ⇒
+        body.write(Tags.CachedGallery)
+        writeCommon(r)
+
+      case r: InfiniteGalleryResource if r.getClass == classOf[InfiniteGalleryResource] ⇒
+        body.write(Tags.InfiniteGallery)
+        writeCommon(r)
+
+      case r: GalleryResource if r.getClass == classOf[GalleryResource] ⇒
+        body.write(Tags.Gallery)
+        writeCommon(r)
+
+      case r ⇒ // Script defined resource types and subclasses
+        val bytes = javaSerialize(r)
+        body.write(Tags.Serialized)
+        body.writeVarInt(bytes.length)
+        body.write(bytes)
+    }
+
+    val header = new Output
+    header.writeVarInt(dictionary.strings.length)
+    dictionary.strings.foreach(header.writeString)
+
+    val output = new Output
+    output.write(Magic)
+    output.write(Version)
+    if (header.size() + body.size() >= compression.threshold) {
+      output.write(Codecs.Deflate)
+      val deflater = new Deflater(compression.level)
+      try {
+        val deflaterOutput = new DeflaterOutputStream(output, deflater, 8192)
+        header.writeTo(deflaterOutput)
+        body.writeTo(deflaterOutput)
+        deflaterOutput.finish()
+      } finally deflater.end()
+    } else {
+      output.write(Codecs.Raw)
+      header.writeTo(output)
+      body.writeTo(output)
+    }
+    output.toByteArray
+  }
+
+  def decode(bytes: Array[Byte]): Decoded = {
+    if (bytes.length > 2 && bytes(0) == Magic(0) && bytes(1) == Magic(1)) {
+      Decoded(decodeCompact(bytes), legacy = false)
+    } else {
+      Decoded(javaDeserialize(bytes).asInstanceOf[Seq[LoadableResource]], legacy = true)
+    }
+  }
+
+  /**
+    * Legacy format encoder
+    */
+  def javaSerialize(value: AnyRef): Array[Byte] = {
+    val bs = new ByteArrayOutputStream()
+    val obs = new ObjectOutputStream(bs)
+    obs.writeObject(value)
+    obs.close()
+    bs.toByteArray
+  }
+
+  private def javaDeserialize(bytes: Array[Byte]): AnyRef = {
+    val ois = new ObjectInputStream(new ByteArrayInputStream(bytes))
+    try ois.readObject() finally ois.close()
+  }
+
+  private def decodeCompact(bytes: Array[Byte]): Seq[LoadableResource] = bytes(Magic.length) match {
+    case 1 ⇒
+      decodePayload(new Input(new ByteArrayInputStream(bytes, HeaderSize - 1, bytes.length - HeaderSize + 1)))
+
+    case Version if bytes.length >= HeaderSize && bytes(HeaderSize - 1) == Codecs.Raw ⇒
+      decodePayload(new Input(new ByteArrayInputStream(bytes, HeaderSize, bytes.length - HeaderSize)))
+
+    case Version if bytes.length >= HeaderSize && bytes(HeaderSize - 1) == Codecs.Deflate ⇒
+      // Inflated straight into the decoder
+      val inflater = new Inflater()
+      try decodePayload(new Input(new InflaterInputStream(new ByteArrayInputStream(bytes, HeaderSize, bytes.length - HeaderSize), inflater, 8192)))
+      finally inflater.end()
+
+    case version ⇒
+      throw new IOException(s"Unsupported gallery cache blob version: $version")
+  }
+
+  private def decodePayload(input: Input): Seq[LoadableResource] = {
+    val dictionary = Array.fill(input.readVarInt())(input.readString())
+    def dict(): String = dictionary(input.readVarInt())
+    def optionalDict(): Option[String] = input.readVarInt() match {
+      case 0 ⇒ None
+      case index ⇒ Some(dictionary(index - 1))
+    }
+    def optionalString(): Option[String] = if (input.readByte() == 0) None else Some(input.readString())
+    var previousUrl = ""
+    def url(): String = {
+      val prefix = input.readVarInt()
+      if (prefix > previousUrl.length) throw new IOException("Malformed URL prefix")
+      previousUrl = previousUrl.substring(0, prefix) + input.readString()
+      previousUrl
+    }
+    def cookies(): Map[String, String] = Vector.fill(input.readVarInt())(dict() → dict()).toMap
+    def hierarchy(): Seq[String] = Vector.fill(input.readVarInt())(dict())
+
+    Vector.fill(input.readVarInt()) {
+      input.readByte() match {
+        case Tags.File ⇒
+          FileResource(dict(), url(), optionalDict(), cookies(), hierarchy(), optionalString())
+
+        case Tags.Gallery ⇒
+          GalleryResource(dict(), url(), optionalDict(), cookies(), hierarchy())
+
+        case Tags.CachedGallery ⇒
+          CachedGalleryResource(dict(), url(), optionalDict(), cookies(), hierarchy())
+
+        case Tags.InfiniteGallery ⇒
+          InfiniteGalleryResource(dict(), url(), optionalDict(), cookies(), hierarchy())
+
+        case Tags.Serialized ⇒
+          javaDeserialize(input.readBytes(input.readVarInt())).asInstanceOf[LoadableResource]
+
+        case tag ⇒
+          throw new IOException(s"Unknown resource tag: $tag")
+      }
+    }
+  }
+
+  private def commonPrefix(s1: String, s2: String): Int = {
+    val max = math.min(s1.length, s2.length)
+    var i = 0
+    while (i < max && s1.charAt(i) == s2.charAt(i)) i += 1
+    // Surrogate pairs are not split
+    if (i > 0 && i < s2.length && Character.isLowSurrogate(s2.charAt(i))) i - 1 else i
+  }
+
+  private def writeOptionalString(output: Output, value: Option[String]): Unit = value match {
+    case Some(string) ⇒
+      output.write(1)
+      output.writeString(string)
+
+    case None ⇒
+      output.write(0)
+  }
+
+  private final class Dictionary {
+    private[this] val indexes = mutable.AnyRefMap.empty[String, Int]
+    val strings = mutable.ArrayBuffer.empty[String]
+
+    def apply(string: String): Int = {
+      indexes.getOrElseUpdate(string, {
+        strings += string
+        strings.length - 1
+      })
+    }
+  }
+
+  private final class Output extends ByteArrayOutputStream(256) {
+    def writeVarInt(value: Int): Unit = {
+      var v = value
+      while ((v & ~0x7F) != 0) {
+        write((v & 0x7F) | 0x80)
+        v >>>= 7
+      }
+      write(v)
+    }
+
+    def writeString(string: String): Unit = {
+      val bytes = string.getBytes(StandardCharsets.UTF_8)
+      writeVarInt(bytes.length)
+      write(bytes)
+    }
+  }
+
+  // Unsynchronized buffered reader
+  private final class Input(stream: InputStream) {
+    private[this] val buffer = new Array[Byte](8192)
+    private[this] var position = 0
+    private[this] var limit = 0
+
+    private[this] def fill(): Unit = {
+      val read = stream.read(buffer)
+      if (read <= 0) throw new EOFException()
+      position = 0
+      limit = read
+    }
+
+    def readByte(): Byte = {
+      if (position >= limit) fill()
+      val b = buffer(position)
+      position += 1
+      b
+    }
+
+    def readVarInt(): Int = {
+      var result = 0
+      var shift = 0
+      var b = 0
+      do {
+        if (shift > 28) throw new IOException("Malformed varint")
+        b = readByte()
+        result |= (b & 0x7F) << shift
+        shift += 7
+      } while ((b & 0x80) != 0)
+      result
+    }
+
+    def readBytes(length: Int): Array[Byte] = {
+      if (length < 0) throw new IOException("Malformed length")
+      val result = new Array[Byte](length)
+      var offset = 0
+      while (offset < length) {
+        if (position >= limit) fill()
+        val count = math.min(length - offset, limit - position)
+        System.arraycopy(buffer, position, result, offset, count)
+        position += count
+        offset += count
+      }
+      result
+    }
+
+    def readString(): String = {
+      val length = readVarInt()
+      if (length >= 0 && length <= limit - position) {
+        val string = new String(buffer, position, length, StandardCharsets.UTF_8)
+        position += length
+        string
+      } else {
+        new String(readBytes(length), StandardCharsets.UTF_8)
+      }
+    }
+  }
+}
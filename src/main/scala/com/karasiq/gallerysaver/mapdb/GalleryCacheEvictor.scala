@@ -0,0 +1,137 @@
+package com.karasiq.gallerysaver.mapdb
+
+import java.sql.{Connection, Timestamp}
+import java.time.Instant
+import java.util.concurrent.TimeUnit
+
+import scala.collection.mutable.ArrayBuffer
+import scala.concurrent.duration._
+
+import akka.event.LoggingAdapter
+import com.typesafe.config.Config
+
+/**
+  * Gallery cache eviction settings
+  * @param interval  Eviction run interval
+  * @param batchSize Entries deleted per transaction
+  * @param maxSize   Total blobs size budget, zero to disable
+  * @param maxIdle   Max time since last access, zero to disable
+  */
+final case class GalleryCacheEvictionSettings(interval: FiniteDuration, batchSize: Int, maxSize: Long, maxIdle: FiniteDuration)
+
+object GalleryCacheEvictionSettings {
+  def apply(config: Config): GalleryCacheEvictionSettings = {
+    GalleryCacheEvictionSettings(
+      config.getDuration("interval", TimeUnit.MILLISECONDS).millis,
+      config.getInt("batch-size"),
+      config.getBytes("max-size"),
+      config.getDuration("max-idle", TimeUnit.MILLISECONDS).millis
+    )
+  }
+}
+
+/**
+  * Deletes least recently used `GALLERY_CACHE` entries, idle ones first and then until blobs fit into the size budget.
+  * Entries are deleted in small transactions, so cache reads and writes are not blocked for long
+  * @note Sizes of entries written before sizes were recorded are filled in on the first run
+  * @param sql       App SQL context
+  * @param settings  Eviction settings
+  * @param log       Logger
+  * @param onEvicted Deleted URLs handler, called after each batch is committed
+  */
+final class GalleryCacheEvictor(sql: AppSQLContext, settings: GalleryCacheEvictionSettings, log: LoggingAdapter,
+                                onEvicted: Seq[String] ⇒ Unit = _ ⇒ ()) {
+  @volatile private[this] var sizesKnown = false
+
+  def run(): Unit = synchronized {
+    if (!sizesKnown) {
+      withConnection { connection ⇒
+        val statement = connection.prepareStatement("UPDATE GALLERY_CACHE SET SIZE = LENGTH(RESOURCES) WHERE SIZE IS NULL LIMIT ?")
+        statement.setInt(1, settings.batchSize)
+        while (statement.executeUpdate() > 0) ()
+        statement.close()
+      }
+      sizesKnown = true
+    }
+
+    val idle = if (settings.maxIdle > Duration.Zero) evictIdle(Instant.now().minusMillis(settings.maxIdle.toMillis)) else 0
+    val oversize = if (settings.maxSize > 0) evictOversize() else 0
+    if (idle + oversize > 0) log.info("Gallery cache entries evicted: {} idle, {} over size limit", idle, oversize)
+  }
+
+  private[this] def evictIdle(before: Instant): Int = {
+    var evicted = 0
+    var batch = Seq.empty[(String, Long)]
+    do {
+      batch = oldest(Some(before))
+      delete(batch)
+      evicted += batch.length
+    } while (batch.length == settings.batchSize)
+    evicted
+  }
+
+  private[this] def evictOversize(): Int = {
+    var total = withConnection { connection ⇒
+      val rs = connection.createStatement().executeQuery("SELECT COALESCE(SUM(SIZE), 0) FROM GALLERY_CACHE")
+      if (rs.next()) rs.getLong(1) else 0L
+    }
+
+    var evicted = 0
+    while (total > settings.maxSize) {
+      val batch = oldest(None)
+      if (batch.isEmpty) return evicted
+
+      // Whole batch is not needed if only a few entries are over the budget
+      val excess = total - settings.maxSize
+      val needed = batch.scanLeft(0L)(_ + _._2).indexWhere(_ >= excess) match {
+        case -1 ⇒ batch
+        case count ⇒ batch.take(count)
+      }
+      delete(needed)
+      total -= needed.map(_._2).sum
+      evicted += needed.length
+    }
+    evicted
+  }
+
+  // Ordered by GALLERY_CACHE_ACCESSED index
+  private[this] def oldest(before: Option[Instant]): Seq[(String, Long)] = {
+    withConnection { connection ⇒
+      val statement = connection.prepareStatement("SELECT URL, COALESCE(SIZE, 0) FROM GALLERY_CACHE " +
+        before.fold("")(_ ⇒ "WHERE ACCESSED < ? ") + "ORDER BY ACCESSED LIMIT ?")
+      before match {
+        case Some(instant) ⇒
+          statement.setTimestamp(1, Timestamp.from(instant))
+          statement.setInt(2, settings.batchSize)
+
+        case None ⇒
+          statement.setInt(1, settings.batchSize)
+      }
+      val rs = statement.executeQuery()
+      val entries = ArrayBuffer.empty[(String, Long)]
+      while (rs.next()) entries += (rs.getString(1) → rs.getLong(2))
+      statement.close()
+      entries.toVector
+    }
+  }
+
+  private[this] def delete(entries: Seq[(String, Long)]): Unit = if (entries.nonEmpty) {
+    withConnection { connection ⇒
+      connection.setAutoCommit(false)
+      val statement = connection.prepareStatement("DELETE FROM GALLERY_CACHE WHERE URL = ?")
+      entries.foreach { case (url, _) ⇒
+        statement.setString(1, url)
+        statement.addBatch()
+      }
+      statement.executeBatch()
+      statement.close()
+      connection.commit()
+    }
+    onEvicted(entries.map(_._1))
+  }
+
+  private[this] def withConnection[T](f: Connection ⇒ T): T = {
+    val connection = sql.dataSource.getConnection
+    try f(connection) finally connection.close()
+  }
+}
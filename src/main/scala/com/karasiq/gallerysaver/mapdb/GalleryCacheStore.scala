@@ -1,43 +1,67 @@
 package com.karasiq.gallerysaver.mapdb
 
-import java.io.{ByteArrayInputStream, ByteArrayOutputStream, ObjectInputStream, ObjectOutputStream}
+import java.sql.Timestamp
+import java.time.Instant
+
+import scala.concurrent.duration._
 
 import com.karasiq.gallerysaver.scripting.resources.LoadableResource
 
-import scala.util.control.NonFatal
+/**
+  * Cached gallery
+  * @param resources Gallery resources
+  * @param created   Time resources were fetched
+  */
+final case class GalleryCacheEntry(resources: Seq[LoadableResource], created: Instant)
+
+trait GalleryCacheStore extends collection.mutable.AbstractMap[String, Seq[LoadableResource]] {
+  /**
+    * Cached gallery with its creation time, stores without timestamps treat all entries as new
+    * @param key Gallery URL
+    */
+  def entry(key: String): Option[GalleryCacheEntry] = {
+    get(key).map(GalleryCacheEntry(_, Instant.now()))
+  }
 
-trait GalleryCacheStore extends collection.mutable.AbstractMap[String, Seq[LoadableResource]]
+  /**
+    * Records access of gallery served from another tier, stores without access times ignore it
+    * @param key Gallery URL
+    */
+  def touch(key: String): Unit = ()
+}
 
-class H2GalleryCacheStore(sql: AppSQLContext) extends GalleryCacheStore {
+/**
+  * H2 gallery cache
+  * @note Resources are stored with [[com.karasiq.gallerysaver.mapdb.GalleryCacheCodec GalleryCacheCodec]], Java serialized entries are re-encoded when read
+  * @note Access times for [[com.karasiq.gallerysaver.mapdb.GalleryCacheEvictor GalleryCacheEvictor]] are written in background batches,
+  *       updates of the last second may be lost on exit
+  * @param sql         App SQL context
+  * @param compression Blob compression settings
+  */
+class H2GalleryCacheStore(sql: AppSQLContext, compression: GalleryCacheCodec.Compression = GalleryCacheCodec.Compression.disabled) extends GalleryCacheStore {
   import sql._
   import context.{lift => liftQ, _}
 
-  private[this] object Model {
-    type Resources = Seq[LoadableResource]
-    case class DBGalleryCache(url: String, resources: Resources)
+  private[this] object Model extends PredefEncoders {
+    case class DBGalleryCache(url: String, resources: Array[Byte], size: Option[Long], created: Instant, accessed: Instant)
 
     implicit val historySchemaMeta = schemaMeta[DBGalleryCache]("galleryCache")
-
-    implicit val encodeResources = MappedEncoding[Resources, Array[Byte]] { rs =>
-      val bs = new ByteArrayOutputStream()
-      val obs = new ObjectOutputStream(bs)
-      obs.writeObject(rs)
-      obs.close()
-      bs.toByteArray
-    }
-
-    implicit val decodeResources = MappedEncoding[Array[Byte], Resources] { bs =>
-      val ois = new ObjectInputStream(new ByteArrayInputStream(bs))
-      ois.readObject().asInstanceOf[Resources]
-    }
   }
 
   import Model._
 
+  private[this] val accessWriter = new BatchWriter[(String, Instant)]("gallery-cache-access-writer", 1000, 1.second)(writeAccessed, (_, _) ⇒ ())
+
   override def +=(kv: (String, Seq[LoadableResource])): H2GalleryCacheStore.this.type = {
-    val upd = quote(query[DBGalleryCache].filter(_.url == liftQ(kv._1)).update(_.resources -> liftQ(kv._2)))
+    val bytes = GalleryCacheCodec.encode(kv._2, compression)
+    val size = Option(bytes.length.toLong)
+    val now = Instant.now()
+    val upd = quote {
+      query[DBGalleryCache].filter(_.url == liftQ(kv._1))
+        .update(_.resources -> liftQ(bytes), _.size -> liftQ(size), _.created -> liftQ(now), _.accessed -> liftQ(now))
+    }
     if (context.run(upd) == 0) {
-      val ins = quote(query[DBGalleryCache].insert(_.url -> liftQ(kv._1), _.resources -> liftQ(kv._2)))
+      val ins = quote(query[DBGalleryCache].insert(_.url -> liftQ(kv._1), _.resources -> liftQ(bytes), _.size -> liftQ(size), _.created -> liftQ(now), _.accessed -> liftQ(now)))
       context.run(ins)
     }
     this
@@ -50,12 +74,51 @@ class H2GalleryCacheStore(sql: AppSQLContext) extends GalleryCacheStore {
   }
 
   override def get(key: String): Option[Seq[LoadableResource]] = {
-    val q = quote(query[DBGalleryCache].filter(_.url == liftQ(key)).map(_.resources))
-    context.run(q).headOption
+    entry(key).map(_.resources)
   }
 
+  override def entry(key: String): Option[GalleryCacheEntry] = {
+    val q = quote(query[DBGalleryCache].filter(_.url == liftQ(key)).map(e => (e.resources, e.created)))
+    context.run(q).headOption.map { case (bytes, created) ⇒
+      touch(key)
+      GalleryCacheEntry(decode(key, bytes), created)
+    }
+  }
+
+  override def touch(key: String): Unit = {
+    accessWriter += (key → Instant.now())
+  }
+
+  // Paged by URL, blobs are decoded when their entry is reached
   override def iterator: Iterator[(String, Seq[LoadableResource])] = {
-    val q = quote(query[DBGalleryCache].map(e => (e.url, e.resources)))
-    context.run(q).iterator
+    new KeysetIterator(sql, "SELECT URL, RESOURCES FROM GALLERY_CACHE WHERE URL > ? ORDER BY URL LIMIT ?", 100)(rs ⇒ rs.getString(1) → rs.getBytes(2))
+      .map { case (url, bytes) ⇒ url → decode(url, bytes) }
+  }
+
+  // Blobs are not read
+  override def keysIterator: Iterator[String] = {
+    new KeysetIterator(sql, "SELECT URL FROM GALLERY_CACHE WHERE URL > ? ORDER BY URL LIMIT ?", 10000)(rs ⇒ rs.getString(1) → ())
+      .map(_._1)
+  }
+
+  // Access times are only used for eviction order, failed batches are ignored
+  private[this] def writeAccessed(batch: Seq[(String, Instant)]): Unit = {
+    val connection = sql.dataSource.getConnection
+    try {
+      val statement = connection.prepareStatement("UPDATE GALLERY_CACHE SET ACCESSED = ? WHERE URL = ?")
+      batch.toMap.foreach { case (url, accessed) ⇒
+        statement.setTimestamp(1, Timestamp.from(accessed))
+        statement.setString(2, url)
+        statement.addBatch()
+      }
+      statement.executeBatch()
+      statement.close()
+    } finally connection.close()
+  }
+
+  private[this] def decode(url: String, bytes: Array[Byte]): Seq[LoadableResource] = {
+    val decoded = GalleryCacheCodec.decode(bytes)
+    if (decoded.legacy) this += (url → decoded.resources)
+    decoded.resources
   }
 }
@@ -0,0 +1,264 @@
+package com.karasiq.gallerysaver.mapdb
+
+import java.io._
+import java.sql.{Connection, Timestamp, Types}
+import java.util.concurrent.TimeUnit
+
+import scala.collection.mutable.ArrayBuffer
+import scala.concurrent.duration._
+import scala.util.control.NonFatal
+
+import akka.event.LoggingAdapter
+import com.typesafe.config.Config
+
+import com.karasiq.gallerysaver.scripting.resources.LoadableResource
+
+/**
+  * H2 crawl frontier. Entries and their status changes are only appended (status updates in place are ~3x slower),
+  * writes are batched in single transactions, operations of a failed batch are retried one by one.
+  * IDs are allocated in blocks from sequences, so they are not reused after entries of finished jobs are deleted
+  * @param sql      App SQL context
+  * @param settings Frontier settings
+  * @param log      Logger
+  */
+final class H2CrawlFrontier(sql: AppSQLContext, settings: Config, log: LoggingAdapter) extends CrawlFrontier {
+  import H2CrawlFrontier._
+
+  private[this] val jobIds = new IdBlocks("CRAWL_JOB_SEQ", "CRAWL_JOB", 1)
+  private[this] val entryIds = new IdBlocks("CRAWL_FRONTIER_SEQ", "CRAWL_FRONTIER", IdBlockSize)
+
+  private[this] val writer = new BatchWriter[Operation]("crawl-frontier-writer", settings.getInt("batch-size"),
+    settings.getDuration("flush-interval", TimeUnit.MILLISECONDS).millis)(write, (batch, exc) ⇒ log.error(exc, "Frontier write failed, {} operations lost", batch.length))
+
+  override def startJob(): Long = {
+    val job = jobIds.next()
+    writer += StartJob(job, System.currentTimeMillis())
+    job
+  }
+
+  override def finishJob(job: Long): Unit = {
+    writer += FinishJob(job, System.currentTimeMillis())
+  }
+
+  override def addUrls(job: Long, urls: Seq[String]): Seq[Long] = {
+    urls.map { url ⇒
+      val id = entryIds.next()
+      writer += Insert(id, job, 0, url, null)
+      id
+    }
+  }
+
+  override def add(job: Long, depth: Int, resources: Seq[LoadableResource]): Seq[Long] = {
+    resources.map { resource ⇒
+      serialize(resource) match {
+        case Some(bytes) ⇒
+          val id = entryIds.next()
+          writer += Insert(id, job, depth, resource.url, bytes)
+          id
+
+        case None ⇒
+          0L
+      }
+    }
+  }
+
+  override def complete(id: Long): Unit = {
+    if (id != 0) writer += Complete(id)
+  }
+
+  override def unfinishedJobs: Seq[Long] = {
+    withConnection { connection ⇒
+      val statement = connection.prepareStatement("SELECT ID FROM CRAWL_JOB WHERE FINISHED IS NULL ORDER BY ID")
+      val rs = statement.executeQuery()
+      val jobs = ArrayBuffer.empty[Long]
+      while (rs.next()) jobs += rs.getLong(1)
+      statement.close()
+      jobs.toVector
+    }
+  }
+
+  // Paged by ID, only one page is held in memory. New entries have higher IDs, so they are cut off by the last ID
+  override def pending(job: Long): Iterator[FrontierEntry] = {
+    writer.flush()
+    val lastId = withConnection { connection ⇒
+      val statement = connection.prepareStatement("SELECT COALESCE(MAX(ID), 0) FROM CRAWL_FRONTIER WHERE JOB = ?")
+      statement.setLong(1, job)
+      val rs = statement.executeQuery()
+      rs.next()
+      val lastId = rs.getLong(1)
+      statement.close()
+      lastId
+    }
+    Iterator.iterate(pendingPage(job, 0L, lastId))(page ⇒ if (page.length < PageSize) Vector.empty else pendingPage(job, page.last.id, lastId))
+      .takeWhile(_.nonEmpty)
+      .flatMap(_.iterator)
+      .flatMap {
+        case Row(id, depth, url, null) ⇒
+          Some(FrontierEntry(id, depth, url, None))
+
+        case Row(id, depth, url, bytes) ⇒
+          deserialize(bytes).map(resource ⇒ FrontierEntry(id, depth, url, Some(resource)))
+      }
+  }
+
+  override def close(): Unit = {
+    writer.close()
+  }
+
+  private[this] def pendingPage(job: Long, afterId: Long, lastId: Long): Vector[Row] = {
+    withConnection { connection ⇒
+      val statement = connection.prepareStatement("SELECT F.ID, F.DEPTH, F.URL, F.RESOURCE FROM CRAWL_FRONTIER F " +
+        "LEFT JOIN CRAWL_FRONTIER_STATUS S ON S.ID = F.ID WHERE F.JOB = ? AND F.ID > ? AND F.ID <= ? AND S.ID IS NULL ORDER BY F.ID LIMIT ?")
+      statement.setLong(1, job)
+      statement.setLong(2, afterId)
+      statement.setLong(3, lastId)
+      statement.setInt(4, PageSize)
+      val rs = statement.executeQuery()
+      val rows = ArrayBuffer.empty[Row]
+      while (rs.next()) rows += Row(rs.getLong(1), rs.getInt(2), rs.getString(3), rs.getBytes(4))
+      statement.close()
+      rows.toVector
+    }
+  }
+
+  private[this] def write(batch: Seq[Operation]): Unit = {
+    try writeBatch(batch) catch { case NonFatal(exc) if batch.length > 1 ⇒
+      log.warning("Frontier batch write failed, retrying {} operations one by one: {}", batch.length, exc)
+      batch.foreach { operation ⇒
+        try writeBatch(operation :: Nil) catch { case NonFatal(exc) ⇒ log.error(exc, "Frontier operation lost: {}", operation) }
+      }
+    }
+  }
+
+  private[this] def writeBatch(batch: Seq[Operation]): Unit = {
+    withConnection { connection ⇒
+      connection.setAutoCommit(false)
+      try {
+        val startJob = connection.prepareStatement("INSERT INTO CRAWL_JOB (ID, STARTED) VALUES (?, ?)")
+        val insert = connection.prepareStatement("INSERT INTO CRAWL_FRONTIER (ID, JOB, DEPTH, URL, RESOURCE) VALUES (?, ?, ?, ?, ?)")
+        val complete = connection.prepareStatement(s"INSERT INTO CRAWL_FRONTIER_STATUS (ID, STATUS) VALUES (?, $StatusCompleted)")
+        // Not processed entries are kept, job with them stays unfinished
+        val deleteEntries = connection.prepareStatement("DELETE FROM CRAWL_FRONTIER F WHERE F.JOB = ? AND EXISTS (SELECT 1 FROM CRAWL_FRONTIER_STATUS S WHERE S.ID = F.ID)")
+        val deleteStatuses = connection.prepareStatement("DELETE FROM CRAWL_FRONTIER_STATUS S WHERE NOT EXISTS (SELECT 1 FROM CRAWL_FRONTIER F WHERE F.ID = S.ID)")
+        val finishJob = connection.prepareStatement("UPDATE CRAWL_JOB SET FINISHED = ? WHERE ID = ? AND NOT EXISTS (SELECT 1 FROM CRAWL_FRONTIER WHERE JOB = ?)")
+
+        // Entries are inserted before completion flags and job finish, so order within batch is preserved
+        batch.foreach {
+          case StartJob(job, started) ⇒
+            startJob.setLong(1, job)
+            startJob.setTimestamp(2, new Timestamp(started))
+            startJob.addBatch()
+
+          case Insert(id, job, depth, url, resource) ⇒
+            insert.setLong(1, id)
+            insert.setLong(2, job)
+            insert.setInt(3, depth)
+            insert.setString(4, url)
+            if (resource == null) insert.setNull(5, Types.VARBINARY) else insert.setBytes(5, resource)
+            insert.addBatch()
+
+          case Complete(id) ⇒
+            complete.setLong(1, id)
+            complete.addBatch()
+
+          case FinishJob(job, finished) ⇒
+            deleteEntries.setLong(1, job)
+            deleteEntries.addBatch()
+            deleteStatuses.addBatch()
+            finishJob.setTimestamp(1, new Timestamp(finished))
+            finishJob.setLong(2, job)
+            finishJob.setLong(3, job)
+            finishJob.addBatch()
+        }
+
+        Seq(startJob, insert, complete, deleteEntries, deleteStatuses, finishJob).foreach { statement ⇒
+          statement.executeBatch()
+          statement.close()
+        }
+        connection.commit()
+      } catch { case NonFatal(exc) ⇒
+        connection.rollback()
+        throw exc
+      }
+    }
+  }
+
+  /**
+    * IDs allocator, each sequence value reserves a block of IDs
+    * @param sequence  Sequence name
+    * @param table     Table with IDs allocated before the sequence was created
+    * @param blockSize IDs per sequence value
+    */
+  private[this] final class IdBlocks(sequence: String, table: String, blockSize: Long) {
+    private[this] var nextId, blockEnd = 0L
+
+    // Sequence is moved past existing IDs
+    withConnection { connection ⇒
+      val statement = connection.createStatement()
+      val rs = statement.executeQuery(s"SELECT COALESCE(MAX(ID), 0) / $blockSize + 1, " +
+        s"(SELECT CURRENT_VALUE FROM INFORMATION_SCHEMA.SEQUENCES WHERE SEQUENCE_NAME = '$sequence') FROM $table")
+      rs.next()
+      val (required, current) = (rs.getLong(1), rs.getLong(2))
+      if (current + 1 < required) statement.executeUpdate(s"ALTER SEQUENCE $sequence RESTART WITH $required")
+      statement.close()
+    }
+
+    def next(): Long = synchronized {
+      if (nextId == blockEnd) {
+        nextId = withConnection { connection ⇒
+          val statement = connection.createStatement()
+          val rs = statement.executeQuery(s"SELECT NEXT VALUE FOR $sequence")
+          rs.next()
+          val value = rs.getLong(1)
+          statement.close()
+          value * blockSize
+        }
+        blockEnd = nextId + blockSize
+      }
+      nextId += 1
+      nextId - 1
+    }
+  }
+
+  private[this] def withConnection[T](f: Connection ⇒ T): T = {
+    val connection = sql.dataSource.getConnection
+    try f(connection) finally connection.close()
+  }
+
+  private[this] def serialize(resource: LoadableResource): Option[Array[Byte]] = {
+    try {
+      val bs = new ByteArrayOutputStream()
+      val obs = new ObjectOutputStream(bs)
+      obs.writeObject(resource)
+      obs.close()
+      Some(bs.toByteArray)
+    } catch { case exc: NotSerializableException ⇒
+      log.debug("Resource can't be persisted: {} ({})", resource, exc)
+      None
+    }
+  }
+
+  private[this] def deserialize(bytes: Array[Byte]): Option[LoadableResource] = {
+    try {
+      val ois = new ObjectInputStream(new ByteArrayInputStream(bytes))
+      Some(ois.readObject().asInstanceOf[LoadableResource])
+    } catch { case NonFatal(exc) ⇒
+      log.warning("Frontier entry can't be restored: {}", exc)
+      None
+    }
+  }
+}
+
+private object H2CrawlFrontier {
+  val StatusCompleted = 1
+  val IdBlockSize = 1000L
+  val PageSize = 1000
+
+  final case class Row(id: Long, depth: Int, url: String, resource: Array[Byte])
+
+  sealed trait Operation
+  final case class StartJob(job: Long, started: Long) extends Operation
+  final case class FinishJob(job: Long, finished: Long) extends Operation
+  final case class Insert(id: Long, job: Long, depth: Int, url: String, resource: Array[Byte]) extends Operation
+  final case class Complete(id: Long) extends Operation
+}
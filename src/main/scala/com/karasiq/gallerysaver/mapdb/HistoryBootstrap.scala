@@ -0,0 +1,195 @@
+package com.karasiq.gallerysaver.mapdb
+
+import java.io.IOException
+import java.nio.file.attribute.BasicFileAttributes
+import java.nio.file.{Files, LinkOption, Path}
+import java.sql.Connection
+import java.util.concurrent._
+import java.util.concurrent.atomic.AtomicLong
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+import scala.concurrent.duration._
+
+import akka.event.LoggingAdapter
+import com.typesafe.config.Config
+
+/**
+  * History bootstrap settings
+  * @param parallelism      Folders scanned simultaneously
+  * @param batchSize        Entries written per transaction
+  * @param progressInterval Progress logging interval
+  */
+final case class HistoryBootstrapSettings(parallelism: Int, batchSize: Int, progressInterval: FiniteDuration)
+
+object HistoryBootstrapSettings {
+  def apply(config: Config): HistoryBootstrapSettings = {
+    HistoryBootstrapSettings(
+      config.getInt("parallelism"),
+      config.getInt("batch-size"),
+      config.getDuration("progress-interval", TimeUnit.MILLISECONDS).millis
+    )
+  }
+}
+
+object HistoryBootstrap {
+  /**
+    * Bootstrap progress
+    * @param directories Scanned folders
+    * @param unchanged   Folders not changed since previous scan, their files are not listed
+    * @param files       Found files
+    * @param added       New history entries
+    */
+  final case class Progress(directories: Long, unchanged: Long, files: Long, added: Long)
+
+  // Temporary files of file downloaders, history and converters
+  private val IgnoredSuffixes = Seq(".tmp", ".link", ".part")
+
+  private final case class ScannedDirectory(path: String, parent: String, modified: Long)
+}
+
+/**
+  * Rebuilds download history from files in destination folder. Folders are scanned in parallel (fork-join over subfolders),
+  * entries are written in large batches by a single writer. Entries have no URL, history check compares file size only.
+  * Existing entries are not replaced
+  * @note Folder modification times are recorded in `HISTORY_SCAN`, incremental scan doesn't list files of unchanged folders
+  * @param sql      App SQL context
+  * @param store    History store
+  * @param settings Bootstrap settings
+  * @param log      Logger
+  */
+final class HistoryBootstrap(sql: AppSQLContext, store: FDHistoryStore, settings: HistoryBootstrapSettings, log: LoggingAdapter) {
+  import HistoryBootstrap._
+
+  private[this] val directories = new AtomicLong()
+  private[this] val unchanged = new AtomicLong()
+  private[this] val files = new AtomicLong()
+  private[this] val added = new AtomicLong()
+
+  def progress: Progress = {
+    Progress(directories.get(), unchanged.get(), files.get(), added.get())
+  }
+
+  /**
+    * Scans folder and writes found files to history, blocks until finished
+    * @param root        Destination folder
+    * @param incremental Skip files of folders not changed since previous scan
+    * @return Scan result
+    */
+  def run(root: Path, incremental: Boolean = true): Progress = synchronized {
+    Seq(directories, unchanged, files, added).foreach(_.set(0))
+    val known = if (incremental) readScanned() else Map.empty[String, ScannedDirectory]
+    val children = known.values.groupBy(_.parent).mapValues(_.map(_.path).toVector)
+    val queue = new ArrayBlockingQueue[FDHistoryEntry](settings.batchSize * 4)
+    val scanned = new ConcurrentLinkedQueue[ScannedDirectory]()
+
+    final class DirectoryTask(directory: Path, parent: String) extends RecursiveAction {
+      override def compute(): Unit = {
+        val modified = try Files.getLastModifiedTime(directory, LinkOption.NOFOLLOW_LINKS).toMillis catch { case _: IOException ⇒ return }
+        val key = directory.toAbsolutePath.toString
+        directories.incrementAndGet()
+        val subdirectories = if (known.get(key).exists(_.modified == modified)) {
+          unchanged.incrementAndGet()
+          children.getOrElse(key, Vector.empty).map(directory.getFileSystem.getPath(_))
+        } else {
+          list()
+        }
+        scanned.add(ScannedDirectory(key, parent, modified))
+        ForkJoinTask.invokeAll(subdirectories.map(new DirectoryTask(_, key)).asJava)
+      }
+
+      // Returns subfolders
+      private[this] def list(): Vector[Path] = {
+        val subdirectories = Vector.newBuilder[Path]
+        val stream = try Files.newDirectoryStream(directory) catch { case _: IOException ⇒ return Vector.empty }
+        try {
+          stream.asScala.foreach { path ⇒
+            val attributes = try Files.readAttributes(path, classOf[BasicFileAttributes], LinkOption.NOFOLLOW_LINKS) catch { case _: IOException ⇒ null }
+            if (attributes == null) {
+              // Removed while scanning
+            } else if (attributes.isDirectory) {
+              subdirectories += path
+            } else if (attributes.isRegularFile && attributes.size() > 0 && !IgnoredSuffixes.exists(path.toString.endsWith)) {
+              files.incrementAndGet()
+              queue.put(FDHistoryEntry(path.toAbsolutePath.toString, "", attributes.size(), attributes.lastModifiedTime().toInstant))
+            }
+          }
+        } finally stream.close()
+        subdirectories.result()
+      }
+    }
+
+    log.info("Bootstrapping history from {}", root)
+    val pool = new ForkJoinPool(settings.parallelism)
+    try {
+      val scan = pool.submit(new DirectoryTask(root, null))
+      val batch = new java.util.ArrayList[FDHistoryEntry](settings.batchSize)
+      var lastReport = System.nanoTime()
+      while (!scan.isDone || !queue.isEmpty) {
+        val entry = queue.poll(100, TimeUnit.MILLISECONDS)
+        if (entry != null) {
+          batch.add(entry)
+          queue.drainTo(batch, settings.batchSize - batch.size())
+        }
+
+        if (batch.size() >= settings.batchSize || (entry == null && !batch.isEmpty)) {
+          write(batch.asScala)
+          batch.clear()
+        }
+
+        if (System.nanoTime() - lastReport > settings.progressInterval.toNanos) {
+          val p = progress
+          log.info("History bootstrap: {} folders ({} unchanged), {} files, {} entries added", p.directories, p.unchanged, p.files, p.added)
+          lastReport = System.nanoTime()
+        }
+      }
+      write(batch.asScala)
+      scan.get()
+    } finally pool.shutdownNow()
+
+    // Folders are recorded after their files, so interrupted scan is repeated
+    writeScanned(scanned.asScala.toVector)
+    val result = progress
+    log.info("History bootstrap finished: {} folders ({} unchanged), {} files, {} entries added", result.directories, result.unchanged, result.files, result.added)
+    result
+  }
+
+  private[this] def write(entries: Seq[FDHistoryEntry]): Unit = if (entries.nonEmpty) {
+    val newEntries = entries.filterNot(e ⇒ store.contains(e.path))
+    newEntries.foreach(e ⇒ store += (e.path → e))
+    store.flush()
+    added.addAndGet(newEntries.length)
+  }
+
+  private[this] def readScanned(): Map[String, ScannedDirectory] = {
+    withConnection { connection ⇒
+      val rs = connection.createStatement().executeQuery("SELECT PATH, PARENT, MODIFIED FROM HISTORY_SCAN")
+      val result = mutable.Map.empty[String, ScannedDirectory]
+      while (rs.next()) result += rs.getString(1) → ScannedDirectory(rs.getString(1), rs.getString(2), rs.getLong(3))
+      result.toMap
+    }
+  }
+
+  private[this] def writeScanned(scanned: Seq[ScannedDirectory]): Unit = {
+    scanned.grouped(settings.batchSize).foreach { batch ⇒
+      withConnection { connection ⇒
+        connection.setAutoCommit(false)
+        val merge = connection.prepareStatement("MERGE INTO HISTORY_SCAN (PATH, PARENT, MODIFIED) KEY (PATH) VALUES (?, ?, ?)")
+        batch.foreach { directory ⇒
+          merge.setString(1, directory.path)
+          merge.setString(2, directory.parent)
+          merge.setLong(3, directory.modified)
+          merge.addBatch()
+        }
+        merge.executeBatch()
+        merge.close()
+        connection.commit()
+      }
+    }
+  }
+
+  private[this] def withConnection[T](f: Connection ⇒ T): T = {
+    val connection = sql.dataSource.getConnection
+    try f(connection) finally connection.close()
+  }
+}
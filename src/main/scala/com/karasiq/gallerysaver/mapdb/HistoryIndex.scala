@@ -0,0 +1,195 @@
+package com.karasiq.gallerysaver.mapdb
+
+import java.nio.ByteBuffer
+
+import scala.util.hashing.MurmurHash3
+
+object HistoryIndex {
+  /** [[com.karasiq.gallerysaver.mapdb.HistoryIndex#get get]] result for paths not in the index */
+  final val NotFound = -1L
+
+  private val SlotSize = 16
+  private val MaxLoad = 0.75
+  private val MaxSlots = 1 << 26 // Buffer offsets are ints
+  private val SizeBits = 40
+  private val MaxSize = (1L << SizeBits) - 1
+  private val UrlHashMask = (1L << (64 - SizeBits)) - 1
+
+  /**
+    * Creates index sized for provided entries count
+    * @param expectedEntries Expected entries count
+    * @param maxEntries      Index doesn't grow above this entries count
+    */
+  def apply(expectedEntries: Long, maxEntries: Long = (MaxSlots * MaxLoad).toLong): HistoryIndex = {
+    new HistoryIndex(slotsFor(expectedEntries), slotsFor(maxEntries))
+  }
+
+  /**
+    * @return Off-heap memory taken by the index with provided entries count, e.g. 256 MiB for 10M entries
+    */
+  def memoryFor(entries: Long): Long = {
+    slotsFor(entries).toLong * SlotSize
+  }
+
+  def pathHash(path: String): Long = {
+    val hash = (MurmurHash3.stringHash(path, 0x9747b28c).toLong << 32) | (MurmurHash3.stringHash(path, 0x5bd1e995) & 0xffffffffL)
+    if (hash == 0) 1 else hash // Zero marks empty slot
+  }
+
+  def urlHash(url: String): Long = {
+    MurmurHash3.stringHash(url) & UrlHashMask
+  }
+
+  /**
+    * @param value Value returned by [[com.karasiq.gallerysaver.mapdb.HistoryIndex#get get]]
+    * @return File size, or -1 if it doesn't fit the index
+    */
+  def sizeOf(value: Long): Long = {
+    val size = value >>> (64 - SizeBits)
+    if (size == MaxSize) -1 else size
+  }
+
+  /**
+    * @param value Value returned by [[com.karasiq.gallerysaver.mapdb.HistoryIndex#get get]]
+    * @return URL hash, compared with [[com.karasiq.gallerysaver.mapdb.HistoryIndex#urlHash urlHash]]
+    */
+  def urlHashOf(value: Long): Long = {
+    value & UrlHashMask
+  }
+
+  private def slotsFor(entries: Long): Int = {
+    val required = math.ceil(entries.max(16L) / MaxLoad).toLong
+    require(required <= MaxSlots, s"History index can't hold $entries entries")
+    java.lang.Long.highestOneBit(required - 1).toInt << 1
+  }
+
+  private def pack(size: Long, urlHash: Long): Long = {
+    (size.max(0L).min(MaxSize) << (64 - SizeBits)) | (urlHash & UrlHashMask)
+  }
+}
+
+/**
+  * Off-heap open addressing (linear probing) hash table from 64-bit path hash to file size and 24-bit URL hash.
+  * Slot takes 16 bytes, slots count is a power of two at most 75% full: 10M entries take 16M slots (256 MiB),
+  * twice as much while the table grows. Max capacity is 50M entries, or less if limited on creation.
+  * Lookups don't allocate and take an uncontended lock
+  * @note Paths are not stored, so a match is only probable. Sizes up to 1 TiB are stored.
+  *       New paths are rejected when the index is full
+  * @param initialSlots Initial slots count, power of two
+  * @param maxSlots     Max slots count, power of two
+  */
+final class HistoryIndex private (initialSlots: Int, maxSlots: Int) {
+  import HistoryIndex._
+
+  private[this] var table = ByteBuffer.allocateDirect(initialSlots * SlotSize)
+  private[this] var mask = initialSlots - 1
+  private[this] var count = 0
+
+  def size: Int = synchronized(count)
+
+  def memoryUsage: Long = synchronized(table.capacity().toLong)
+
+  /**
+    * @return Packed size and URL hash, or [[com.karasiq.gallerysaver.mapdb.HistoryIndex.NotFound NotFound]]
+    */
+  def get(path: String): Long = synchronized {
+    val hash = pathHash(path)
+    var slot = indexFor(hash)
+    var result = NotFound
+    var key = table.getLong(slot * SlotSize)
+    while (key != 0 && result == NotFound) {
+      if (key == hash) result = table.getLong(slot * SlotSize + 8)
+      slot = (slot + 1) & mask
+      key = table.getLong(slot * SlotSize)
+    }
+    result
+  }
+
+  /**
+    * @return False if the index is full and entry is not added
+    */
+  def put(path: String, size: Long, url: String): Boolean = synchronized {
+    insert(pathHash(path), pack(size, urlHash(url)), replace = true)
+  }
+
+  /**
+    * Adds entry unless path is already indexed, used for bulk loading alongside updates
+    * @return False if the index is full and entry is not added
+    */
+  def putIfAbsent(path: String, size: Long, url: String): Boolean = synchronized {
+    insert(pathHash(path), pack(size, urlHash(url)), replace = false)
+  }
+
+  // Backward shift deletion, probe sequences stay without gaps
+  def remove(path: String): Unit = synchronized {
+    val hash = pathHash(path)
+    var slot = indexFor(hash)
+    var key = table.getLong(slot * SlotSize)
+    while (key != 0 && key != hash) {
+      slot = (slot + 1) & mask
+      key = table.getLong(slot * SlotSize)
+    }
+
+    if (key != 0) {
+      var hole = slot
+      var next = (hole + 1) & mask
+      key = table.getLong(next * SlotSize)
+      while (key != 0) {
+        val home = indexFor(key)
+        // Entry can fill the hole if its home slot isn't between the hole and its current slot
+        if (((next - home) & mask) >= ((next - hole) & mask)) {
+          table.putLong(hole * SlotSize, key)
+          table.putLong(hole * SlotSize + 8, table.getLong(next * SlotSize + 8))
+          hole = next
+        }
+        next = (next + 1) & mask
+        key = table.getLong(next * SlotSize)
+      }
+      table.putLong(hole * SlotSize, 0L)
+      table.putLong(hole * SlotSize + 8, 0L)
+      count -= 1
+    }
+  }
+
+  // Indexed paths are updated even when the index is full
+  private[this] def insert(hash: Long, value: Long, replace: Boolean): Boolean = {
+    var slot = indexFor(hash)
+    var key = table.getLong(slot * SlotSize)
+    while (key != 0 && key != hash) {
+      slot = (slot + 1) & mask
+      key = table.getLong(slot * SlotSize)
+    }
+
+    if (key == hash) {
+      if (replace) table.putLong(slot * SlotSize + 8, value)
+      true
+    } else if (count + 1 > (mask + 1) * MaxLoad) {
+      grow() && insert(hash, value, replace)
+    } else {
+      table.putLong(slot * SlotSize, hash)
+      table.putLong(slot * SlotSize + 8, value)
+      count += 1
+      true
+    }
+  }
+
+  // Returns false if the index can't grow
+  private[this] def grow(): Boolean = {
+    val slots = mask + 1
+    if (slots >= maxSlots) return false
+    val old = table
+    table = ByteBuffer.allocateDirect(slots * 2 * SlotSize)
+    mask = slots * 2 - 1
+    count = 0
+    for (slot ← 0 until slots) {
+      val key = old.getLong(slot * SlotSize)
+      if (key != 0) insert(key, old.getLong(slot * SlotSize + 8), replace = true)
+    }
+    true
+  }
+
+  @inline
+  private[this] def indexFor(hash: Long): Int = {
+    (java.lang.Long.rotateLeft(hash * 0x9e3779b97f4a7c15L, 32) & mask).toInt
+  }
+}
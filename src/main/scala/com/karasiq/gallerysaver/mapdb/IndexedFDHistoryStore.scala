@@ -0,0 +1,146 @@
+package com.karasiq.gallerysaver.mapdb
+
+import scala.collection.mutable
+import scala.util.control.NonFatal
+
+import akka.event.LoggingAdapter
+
+object IndexedFDHistoryStore {
+  /** [[com.karasiq.gallerysaver.mapdb.IndexedFDHistoryStore#lookup lookup]] result when the store should be checked */
+  final val Unknown = -2L
+
+  /**
+    * Loads index from the store in background, lookups are passed to the store until it is loaded
+    * @param store      History store
+    * @param minEntries Initial index capacity, index grows when it is full
+    * @param log        Logger
+    */
+  def apply(store: FDHistoryStore, minEntries: Long, log: LoggingAdapter): IndexedFDHistoryStore = {
+    val index = HistoryIndex(minEntries)
+    val indexed = new IndexedFDHistoryStore(store, index, ready = false, log)
+    val thread = new Thread(new Runnable {
+      override def run(): Unit = {
+        log.info("Loading history index")
+        try {
+          store.iterator.takeWhile(_ ⇒ !indexed.isFull).foreach { case (path, entry) ⇒ indexed.load(path, entry) }
+          if (indexed.loaded()) log.info("History index loaded: {} entries, {} MiB", index.size, index.memoryUsage / 1048576)
+        } catch { case NonFatal(exc) ⇒
+          log.error(exc, "History index loading failed")
+        }
+      }
+    }, "history-index-loader")
+    thread.setDaemon(true)
+    thread.start()
+    indexed
+  }
+}
+
+/**
+  * History store with off-heap index of paths, see [[com.karasiq.gallerysaver.mapdb.HistoryIndex HistoryIndex]].
+  * Index is updated with every write, file checks use it through [[com.karasiq.gallerysaver.mapdb.IndexedFDHistoryStore#lookup lookup]]
+  * @note Underlying store is closed on close. Index is turned off if it gets full, lookups are passed to the store then
+  * @param store Underlying history store
+  * @param index Paths index
+  * @param ready Index contains all history entries
+  * @param log   Logger
+  */
+final class IndexedFDHistoryStore(store: FDHistoryStore, val index: HistoryIndex,
+                                  @volatile private var ready: Boolean, log: LoggingAdapter) extends FDHistoryStore with AutoCloseable {
+  @volatile private[this] var full = false
+
+  // Paths removed while the index is loaded, stale entries of pages read before removal are not loaded
+  private[this] val removed = mutable.HashSet.empty[String]
+
+  def isReady: Boolean = ready
+  def isFull: Boolean = full
+
+  /**
+    * Checks history entry with the index only, doesn't allocate
+    * @param path File path
+    * @param url  File URL
+    * @return Recorded file size if path is indexed with the same URL, [[com.karasiq.gallerysaver.mapdb.HistoryIndex.NotFound NotFound]]
+    *         if path was never recorded, [[com.karasiq.gallerysaver.mapdb.IndexedFDHistoryStore.Unknown Unknown]]
+    *         if the index can't tell (URL or size mismatch, possible hash collision)
+    */
+  def lookup(path: String, url: String): Long = {
+    if (!ready) {
+      IndexedFDHistoryStore.Unknown
+    } else {
+      val value = index.get(path)
+      if (value == HistoryIndex.NotFound) {
+        HistoryIndex.NotFound
+      } else {
+        val size = HistoryIndex.sizeOf(value)
+        if (size >= 0 && HistoryIndex.urlHashOf(value) == HistoryIndex.urlHash(url)) size else IndexedFDHistoryStore.Unknown
+      }
+    }
+  }
+
+  override def get(key: String): Option[FDHistoryEntry] = {
+    if (ready && index.get(key) == HistoryIndex.NotFound) None else store.get(key)
+  }
+
+  override def size: Int = {
+    store.size
+  }
+
+  override def byUrl(url: String): Seq[FDHistoryEntry] = {
+    store.byUrl(url)
+  }
+
+  override def iterator: Iterator[(String, FDHistoryEntry)] = {
+    store.iterator
+  }
+
+  override def keysIterator: Iterator[String] = {
+    store.keysIterator
+  }
+
+  override def +=(kv: (String, FDHistoryEntry)): IndexedFDHistoryStore.this.type = {
+    store += kv
+    removed.synchronized {
+      removed -= kv._1
+      indexed(index.put(kv._1, kv._2.size, kv._2.url))
+    }
+    this
+  }
+
+  override def -=(key: String): IndexedFDHistoryStore.this.type = {
+    store -= key
+    removed.synchronized {
+      if (!ready && !full) removed += key
+      index.remove(key)
+    }
+    this
+  }
+
+  override def flush(): Unit = {
+    store.flush()
+  }
+
+  private def load(path: String, entry: FDHistoryEntry): Unit = removed.synchronized {
+    if (!removed.contains(path)) indexed(index.putIfAbsent(path, entry.size, entry.url))
+  }
+
+  // Returns false if the index was turned off while loading
+  private def loaded(): Boolean = removed.synchronized {
+    removed.clear()
+    ready = !full
+    ready
+  }
+
+  private[this] def indexed(added: Boolean): Unit = {
+    if (!added && !full) {
+      full = true
+      ready = false
+      log.warning("History index is full ({} entries), it is turned off", index.size)
+    }
+  }
+
+  override def close(): Unit = {
+    store match {
+      case c: AutoCloseable ⇒ c.close()
+      case _ ⇒ // Ignore
+    }
+  }
+}
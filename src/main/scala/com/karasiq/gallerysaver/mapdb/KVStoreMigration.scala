@@ -0,0 +1,48 @@
+package com.karasiq.gallerysaver.mapdb
+
+import java.time.Instant
+
+import akka.event.LoggingAdapter
+
+/**
+  * One-shot copy of H2 tables to MVStore maps. Completed migrations are recorded in `migrations` map,
+  * interrupted ones are started over (entries are overwritten)
+  * @note SQL tables are left intact, so switching back to `sql` backend returns to the state before migration
+  * @param sql App SQL context
+  * @param kv  Key-value storage
+  * @param log Logger
+  */
+final class KVStoreMigration(sql: AppSQLContext, kv: AppKVStore, log: LoggingAdapter) {
+  private[this] val migrations = kv.openMap[java.lang.Long]("migrations")
+
+  def history(target: MVFDHistoryStore): Unit = {
+    migrate("FD_HISTORY") {
+      new H2FDHistoryStore(sql).iterator.foldLeft(0) { case (count, kv) ⇒
+        target += kv
+        count + 1
+      }
+    }
+  }
+
+  // Blobs are copied without decoding
+  def galleryCache(target: MVGalleryCacheStore): Unit = {
+    migrate("GALLERY_CACHE") {
+      new KeysetIterator(sql, "SELECT URL, RESOURCES, CREATED FROM GALLERY_CACHE WHERE URL > ? ORDER BY URL LIMIT ?", 100)(rs ⇒
+        rs.getString(1) → (rs.getBytes(2), rs.getTimestamp(3).toInstant)
+      ).foldLeft(0) { case (count, (url, (blob, created))) ⇒
+        target.put(url, blob, created)
+        count + 1
+      }
+    }
+  }
+
+  private[this] def migrate(table: String)(copy: ⇒ Int): Unit = synchronized {
+    if (!migrations.containsKey(table)) {
+      log.info("Migrating {} to key-value store", table)
+      val count = copy
+      migrations.put(table, Instant.now().toEpochMilli)
+      kv.store.commit()
+      log.info("{} migrated: {} entries", table, count)
+    }
+  }
+}
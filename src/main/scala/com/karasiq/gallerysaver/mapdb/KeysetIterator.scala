@@ -0,0 +1,51 @@
+package com.karasiq.gallerysaver.mapdb
+
+import java.sql.ResultSet
+
+import scala.collection.AbstractIterator
+import scala.collection.mutable.ArrayBuffer
+
+/**
+  * Pages through table by its string primary key, only one page is held in memory.
+  * Each page is read with a short-lived connection, so abandoned iterators don't leak resources
+  * @note Keyset paging is much faster than a single large result in H2
+  * @param sql      App SQL context
+  * @param query    Page query with key and limit parameters, e.g. `SELECT PATH, URL FROM FD_HISTORY WHERE PATH > ? ORDER BY PATH LIMIT ?`
+  * @param pageSize Rows per page
+  * @param read     Row reader, returns row key and value
+  */
+private[gallerysaver] final class KeysetIterator[T](sql: AppSQLContext, query: String, pageSize: Int)(read: ResultSet ⇒ (String, T))
+  extends AbstractIterator[(String, T)] {
+
+  private[this] var page: Iterator[(String, T)] = Iterator.empty
+  private[this] var lastKey = ""
+  private[this] var exhausted = false
+
+  override def hasNext: Boolean = {
+    if (!page.hasNext && !exhausted) fetch()
+    page.hasNext
+  }
+
+  override def next(): (String, T) = {
+    if (!hasNext) throw new NoSuchElementException("Keyset iterator is exhausted")
+    page.next()
+  }
+
+  private[this] def fetch(): Unit = {
+    val rows = new ArrayBuffer[(String, T)](pageSize)
+    val connection = sql.dataSource.getConnection
+    try {
+      val statement = connection.prepareStatement(query)
+      try {
+        statement.setString(1, lastKey)
+        statement.setInt(2, pageSize)
+        val rs = statement.executeQuery()
+        while (rs.next()) rows += read(rs)
+      } finally statement.close()
+    } finally connection.close()
+
+    if (rows.nonEmpty) lastKey = rows.last._1
+    exhausted = rows.length < pageSize
+    page = rows.iterator
+  }
+}
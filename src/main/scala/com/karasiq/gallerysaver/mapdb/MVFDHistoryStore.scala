@@ -0,0 +1,146 @@
+package com.karasiq.gallerysaver.mapdb
+
+import java.io._
+import java.nio.charset.StandardCharsets
+import java.time.Instant
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ArrayBuffer
+
+object MVFDHistoryStore {
+  private val UrlSeparator = '\u0000'
+
+  // Entries written with modified UTF-8 strings (64 KB max) start with the size, so their first byte is zero
+  private val Version = 1
+
+  private[mapdb] def encode(entry: FDHistoryEntry): Array[Byte] = {
+    val bytes = new ByteArrayOutputStream(64 + entry.url.length)
+    val output = new DataOutputStream(bytes)
+    output.writeByte(Version)
+    output.writeLong(entry.size)
+    output.writeLong(entry.date.toEpochMilli)
+    writeString(output, entry.url)
+    writeOption(output, entry.content)(writeString(output, _))
+    writeOption(output, entry.etag)(writeString(output, _))
+    writeOption(output, entry.lastModified)(writeString(output, _))
+    writeOption(output, entry.length)(output.writeLong)
+    writeOption(output, entry.checked.map(_.toEpochMilli))(output.writeLong)
+    output.flush()
+    bytes.toByteArray
+  }
+
+  private[mapdb] def decode(path: String, bytes: Array[Byte]): FDHistoryEntry = {
+    val input = new DataInputStream(new ByteArrayInputStream(bytes))
+    if (bytes.nonEmpty && bytes(0) == Version) {
+      input.readByte()
+      val size = input.readLong()
+      val date = Instant.ofEpochMilli(input.readLong())
+      val url = readString(input)
+      val content = readOption(input)(readString(input))
+      val etag = readOption(input)(readString(input))
+      val lastModified = readOption(input)(readString(input))
+      val length = readOption(input)(input.readLong())
+      val checked = readOption(input)(input.readLong()).map(Instant.ofEpochMilli)
+      FDHistoryEntry(path, url, size, date, content, etag, lastModified, length, checked)
+    } else {
+      decodeLegacy(path, input)
+    }
+  }
+
+  private def decodeLegacy(path: String, input: DataInputStream): FDHistoryEntry = {
+    val size = input.readLong()
+    val date = Instant.ofEpochMilli(input.readLong())
+    val url = input.readUTF()
+    val content = if (input.readBoolean()) Some(input.readUTF()) else None
+    if (input.available() > 0) {
+      val etag = readOption(input)(input.readUTF())
+      val lastModified = readOption(input)(input.readUTF())
+      val length = readOption(input)(input.readLong())
+      val checked = readOption(input)(input.readLong()).map(Instant.ofEpochMilli)
+      FDHistoryEntry(path, url, size, date, content, etag, lastModified, length, checked)
+    } else {
+      FDHistoryEntry(path, url, size, date, content)
+    }
+  }
+
+  // Length-prefixed UTF-8, not limited to 64 KB
+  private def writeString(output: DataOutputStream, value: String): Unit = {
+    val bytes = value.getBytes(StandardCharsets.UTF_8)
+    output.writeInt(bytes.length)
+    output.write(bytes)
+  }
+
+  private def readString(input: DataInputStream): String = {
+    val bytes = new Array[Byte](input.readInt())
+    input.readFully(bytes)
+    new String(bytes, StandardCharsets.UTF_8)
+  }
+
+  private def writeOption[T](output: DataOutputStream, value: Option[T])(write: T ⇒ Unit): Unit = {
+    output.writeBoolean(value.isDefined)
+    value.foreach(write)
+  }
+
+  private def readOption[T](input: DataInputStream)(read: ⇒ T): Option[T] = {
+    if (input.readBoolean()) Some(read) else None
+  }
+
+  private def urlKey(url: String, path: String): String = {
+    url + UrlSeparator + path
+  }
+}
+
+/**
+  * MVStore file downloader history.
+  * Lookups are served from MVStore page cache and writes are committed in background, so no write-behind or filter is needed
+  * @note URLs are indexed in a separate map, keys are `url + '\u0000' + path`
+  * @param kv Key-value storage
+  */
+final class MVFDHistoryStore(kv: AppKVStore) extends FDHistoryStore {
+  import MVFDHistoryStore._
+
+  private[this] val entries = kv.openMap[Array[Byte]]("fdHistory")
+  private[this] val urls = kv.openMap[Array[Byte]]("fdHistoryUrl")
+
+  override def get(key: String): Option[FDHistoryEntry] = {
+    Option(entries.get(key)).map(decode(key, _))
+  }
+
+  override def size: Int = {
+    entries.size()
+  }
+
+  override def iterator: Iterator[(String, FDHistoryEntry)] = {
+    entries.entrySet().iterator().asScala.map(e ⇒ e.getKey → decode(e.getKey, e.getValue))
+  }
+
+  override def keysIterator: Iterator[String] = {
+    entries.keyIterator(null).asScala
+  }
+
+  override def byUrl(url: String): Seq[FDHistoryEntry] = {
+    val prefix = urlKey(url, "")
+    val result = ArrayBuffer.empty[FDHistoryEntry]
+    val keys = urls.keyIterator(prefix)
+    var key = if (keys.hasNext) keys.next() else null
+    while (key != null && key.startsWith(prefix)) {
+      result ++= get(key.substring(prefix.length))
+      key = if (keys.hasNext) keys.next() else null
+    }
+    result
+  }
+
+  override def +=(kv: (String, FDHistoryEntry)): MVFDHistoryStore.this.type = synchronized {
+    val (path, entry) = kv
+    val previous = entries.put(path, encode(entry))
+    if (previous != null) urls.remove(urlKey(decode(path, previous).url, path))
+    urls.put(urlKey(entry.url, path), Array.emptyByteArray)
+    this
+  }
+
+  override def -=(key: String): MVFDHistoryStore.this.type = synchronized {
+    val previous = entries.remove(key)
+    if (previous != null) urls.remove(urlKey(decode(key, previous).url, key))
+    this
+  }
+}
@@ -0,0 +1,74 @@
+package com.karasiq.gallerysaver.mapdb
+
+import java.nio.ByteBuffer
+import java.time.Instant
+
+import scala.collection.JavaConverters._
+
+import com.karasiq.gallerysaver.scripting.resources.LoadableResource
+
+/**
+  * MVStore gallery cache, values are creation time followed by [[com.karasiq.gallerysaver.mapdb.GalleryCacheCodec GalleryCacheCodec]] blob
+  * @note Access times are not recorded, so [[com.karasiq.gallerysaver.mapdb.GalleryCacheEvictor GalleryCacheEvictor]] doesn't apply
+  * @param kv          Key-value storage
+  * @param compression Blob compression settings
+  */
+final class MVGalleryCacheStore(kv: AppKVStore, compression: GalleryCacheCodec.Compression = GalleryCacheCodec.Compression.disabled) extends GalleryCacheStore {
+  private[this] val entries = kv.openMap[Array[Byte]]("galleryCache")
+
+  override def +=(kv: (String, Seq[LoadableResource])): MVGalleryCacheStore.this.type = {
+    put(kv._1, GalleryCacheCodec.encode(kv._2, compression), Instant.now())
+    this
+  }
+
+  override def -=(key: String): MVGalleryCacheStore.this.type = {
+    entries.remove(key)
+    this
+  }
+
+  override def get(key: String): Option[Seq[LoadableResource]] = {
+    entry(key).map(_.resources)
+  }
+
+  override def entry(key: String): Option[GalleryCacheEntry] = {
+    Option(entries.get(key)).map { value ⇒
+      val buffer = ByteBuffer.wrap(value)
+      val created = Instant.ofEpochMilli(buffer.getLong)
+      GalleryCacheEntry(decode(key, value.drop(8), created), created)
+    }
+  }
+
+  override def size: Int = {
+    entries.size()
+  }
+
+  // Blobs are decoded when their entry is reached
+  override def iterator: Iterator[(String, Seq[LoadableResource])] = {
+    entries.entrySet().iterator().asScala.map { e ⇒
+      val created = Instant.ofEpochMilli(ByteBuffer.wrap(e.getValue).getLong)
+      e.getKey → decode(e.getKey, e.getValue.drop(8), created)
+    }
+  }
+
+  override def keysIterator: Iterator[String] = {
+    entries.keyIterator(null).asScala
+  }
+
+  /**
+    * Stores encoded blob as is
+    * @param key     Gallery URL
+    * @param blob    Encoded resources
+    * @param created Time resources were fetched
+    */
+  def put(key: String, blob: Array[Byte], created: Instant): Unit = {
+    val value = ByteBuffer.allocate(8 + blob.length)
+    value.putLong(created.toEpochMilli).put(blob)
+    entries.put(key, value.array())
+  }
+
+  private[this] def decode(url: String, bytes: Array[Byte], created: Instant): Seq[LoadableResource] = {
+    val decoded = GalleryCacheCodec.decode(bytes)
+    if (decoded.legacy) put(url, GalleryCacheCodec.encode(decoded.resources, compression), created)
+    decoded.resources
+  }
+}
@@ -0,0 +1,142 @@
+package com.karasiq.gallerysaver.mapdb
+
+import java.time.Instant
+import java.util
+
+import com.karasiq.gallerysaver.scripting.resources.{LoadableFile, LoadableResource}
+import com.karasiq.gallerysaver.stats.JobStats
+
+object MemoryGalleryCacheStore {
+  private val Segments = 16
+
+  /**
+    * Approximate heap size of cached resources
+    * @param url       Gallery URL
+    * @param resources Gallery resources
+    * @return Estimated size in bytes
+    */
+  def estimateSize(url: String, resources: Seq[LoadableResource]): Long = {
+    def string(s: String): Long = 40 + 2L * s.length
+    def resource(r: LoadableResource): Long = {
+      val fileName = r match {
+        case f: LoadableFile ⇒ f.fileName.fold(0L)(string)
+        case _ ⇒ 0L
+      }
+      48 + string(r.loader) + string(r.url) + r.referrer.fold(0L)(string) +
+        r.cookies.foldLeft(0L) { case (size, (k, v)) ⇒ size + 32 + string(k) + string(v) } +
+        r.hierarchy.foldLeft(32L)(_ + 16 + string(_)) + fileName
+    }
+    64 + string(url) + resources.foldLeft(32L)(_ + 16 + resource(_))
+  }
+
+  private final class Segment(maxBytes: Long) {
+    private[this] val entries = new util.LinkedHashMap[String, (GalleryCacheEntry, Long)](16, 0.75f, true)
+    private[this] var bytes = 0L
+
+    def get(key: String): Option[GalleryCacheEntry] = synchronized {
+      Option(entries.get(key)).map(_._1)
+    }
+
+    // Returns evicted entries count
+    def put(key: String, value: GalleryCacheEntry, size: Long): Int = synchronized {
+      remove(key)
+      if (size > maxBytes) {
+        0
+      } else {
+        entries.put(key, (value, size))
+        bytes += size
+        var evicted = 0
+        val iterator = entries.values().iterator()
+        while (bytes > maxBytes && iterator.hasNext) {
+          bytes -= iterator.next()._2
+          iterator.remove()
+          evicted += 1
+        }
+        evicted
+      }
+    }
+
+    def remove(key: String): Unit = synchronized {
+      val previous = entries.remove(key)
+      if (previous != null) bytes -= previous._2
+    }
+
+    def size: Int = synchronized(entries.size())
+    def sizeInBytes: Long = synchronized(bytes)
+  }
+}
+
+/**
+  * In-memory LRU tier in front of another cache store, writes go through to the underlying store.
+  * Memory is bounded by estimated entry size, entries are split between segments by URL hash to reduce lock contention
+  * @note Reads served from memory are passed to the underlying store with [[GalleryCacheStore.touch]],
+  *       entries deleted from the underlying store by eviction should be dropped with [[invalidate]]
+  * @param store    Underlying cache store
+  * @param maxBytes Memory limit
+  * @param stats    Memory tier hit/miss/eviction counters
+  */
+final class MemoryGalleryCacheStore(store: GalleryCacheStore, maxBytes: Long, stats: JobStats = new JobStats) extends GalleryCacheStore {
+  import MemoryGalleryCacheStore._
+
+  private[this] val segments = Array.fill(Segments)(new Segment(maxBytes / Segments))
+
+  def entries: Int = segments.map(_.size).sum
+  def sizeInBytes: Long = segments.map(_.sizeInBytes).sum
+
+  override def get(key: String): Option[Seq[LoadableResource]] = {
+    entry(key).map(_.resources)
+  }
+
+  override def entry(key: String): Option[GalleryCacheEntry] = {
+    segmentFor(key).get(key) match {
+      case found @ Some(_) ⇒
+        stats.memoryCacheHits.increment()
+        store.touch(key)
+        found
+
+      case None ⇒
+        stats.memoryCacheMisses.increment()
+        val result = store.entry(key)
+        result.foreach(cache(key, _))
+        result
+    }
+  }
+
+  override def iterator: Iterator[(String, Seq[LoadableResource])] = {
+    store.iterator
+  }
+
+  override def keysIterator: Iterator[String] = {
+    store.keysIterator
+  }
+
+  override def +=(kv: (String, Seq[LoadableResource])): MemoryGalleryCacheStore.this.type = {
+    store += kv
+    cache(kv._1, GalleryCacheEntry(kv._2, Instant.now()))
+    this
+  }
+
+  override def -=(key: String): MemoryGalleryCacheStore.this.type = {
+    segmentFor(key).remove(key)
+    store -= key
+    this
+  }
+
+  /**
+    * Drops entries from memory only
+    * @param keys Gallery URLs
+    */
+  def invalidate(keys: Seq[String]): Unit = {
+    keys.foreach(key ⇒ segmentFor(key).remove(key))
+  }
+
+  private[this] def cache(key: String, entry: GalleryCacheEntry): Unit = {
+    val evicted = segmentFor(key).put(key, entry, estimateSize(key, entry.resources))
+    if (evicted > 0) stats.memoryCacheEvictions.add(evicted)
+  }
+
+  @inline
+  private[this] def segmentFor(key: String): Segment = {
+    segments((key.hashCode & Int.MaxValue) % Segments)
+  }
+}
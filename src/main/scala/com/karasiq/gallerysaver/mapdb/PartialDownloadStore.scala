@@ -0,0 +1,76 @@
+package com.karasiq.gallerysaver.mapdb
+
+import java.sql.{Connection, Timestamp, Types}
+
+/**
+  * Interrupted download state
+  * @param path         Final file path, data is in `.part` sibling
+  * @param url          File URL
+  * @param received     Bytes written when the download was interrupted
+  * @param length       Full file size, if known
+  * @param etag         Response ETag
+  * @param lastModified Response Last-Modified
+  */
+final case class PartialDownload(path: String, url: String, received: Long, length: Option[Long], etag: Option[String], lastModified: Option[String]) {
+  /**
+    * @return Value of `If-Range` header, weak ETags can't be used
+    */
+  def validator: Option[String] = {
+    etag.filterNot(_.startsWith("W/")).orElse(lastModified)
+  }
+}
+
+/**
+  * Interrupted downloads storage, kept alongside file downloader history
+  */
+trait PartialDownloadStore {
+  def get(path: String): Option[PartialDownload]
+
+  def update(partial: PartialDownload): Unit
+
+  def remove(path: String): Unit
+}
+
+final class H2PartialDownloadStore(sql: AppSQLContext) extends PartialDownloadStore {
+  override def get(path: String): Option[PartialDownload] = withConnection { connection ⇒
+    val select = connection.prepareStatement("SELECT URL, RECEIVED, LENGTH, ETAG, LAST_MODIFIED FROM FD_PARTIAL WHERE PATH = ?")
+    select.setString(1, path)
+    val rs = select.executeQuery()
+    val result = if (rs.next()) {
+      val length = Option(rs.getObject(3)).map(_.asInstanceOf[Number].longValue())
+      Some(PartialDownload(path, rs.getString(1), rs.getLong(2), length, Option(rs.getString(4)), Option(rs.getString(5))))
+    } else {
+      None
+    }
+    select.close()
+    result
+  }
+
+  override def update(partial: PartialDownload): Unit = withConnection { connection ⇒
+    val merge = connection.prepareStatement("MERGE INTO FD_PARTIAL (PATH, URL, RECEIVED, LENGTH, ETAG, LAST_MODIFIED, UPDATED) KEY (PATH) VALUES (?, ?, ?, ?, ?, ?, ?)")
+    merge.setString(1, partial.path)
+    merge.setString(2, partial.url)
+    merge.setLong(3, partial.received)
+    partial.length match {
+      case Some(length) ⇒ merge.setLong(4, length)
+      case None ⇒ merge.setNull(4, Types.BIGINT)
+    }
+    merge.setString(5, partial.etag.orNull)
+    merge.setString(6, partial.lastModified.orNull)
+    merge.setTimestamp(7, new Timestamp(System.currentTimeMillis()))
+    merge.executeUpdate()
+    merge.close()
+  }
+
+  override def remove(path: String): Unit = withConnection { connection ⇒
+    val delete = connection.prepareStatement("DELETE FROM FD_PARTIAL WHERE PATH = ?")
+    delete.setString(1, path)
+    delete.executeUpdate()
+    delete.close()
+  }
+
+  private[this] def withConnection[T](f: Connection ⇒ T): T = {
+    val connection = sql.dataSource.getConnection
+    try f(connection) finally connection.close()
+  }
+}
@@ -0,0 +1,24 @@
+package com.karasiq.gallerysaver.mapdb
+
+import akka.NotUsed
+import akka.stream.ActorAttributes
+import akka.stream.scaladsl.Source
+
+/**
+  * Streams of store contents. Iterators of H2 stores are paged, so memory use doesn't depend on table size
+  * @note Stores are read on `gallery-saver.blocking-dispatcher`
+  * @example {{{
+  *   StoreSource.keys(galleryCache).runForeach(println) // Cached URLs, blobs are not read
+  * }}}
+  */
+object StoreSource {
+  private val BlockingDispatcher = ActorAttributes.dispatcher("gallery-saver.blocking-dispatcher")
+
+  def apply[K, V](store: collection.Map[K, V]): Source[(K, V), NotUsed] = {
+    Source.fromIterator(() ⇒ store.iterator).withAttributes(BlockingDispatcher)
+  }
+
+  def keys[K](store: collection.Map[K, _]): Source[K, NotUsed] = {
+    Source.fromIterator(() ⇒ store.keysIterator).withAttributes(BlockingDispatcher)
+  }
+}
@@ -1,6 +1,7 @@
 package com.karasiq.gallerysaver.scripting.internal
 
 import akka.http.scaladsl.Http
+import akka.stream.scaladsl.{Sink, Source}
 import akka.http.scaladsl.model.headers.{Accept, Cookie, CustomHeader, `User-Agent`}
 import akka.http.scaladsl.model.{HttpRequest, MediaRange, MediaTypes}
 import com.gargoylesoftware.htmlunit.WebClient
@@ -51,9 +52,15 @@ object AkkaHttpUtils {
   def execRequest(request: HttpRequest)(implicit ctx: GallerySaverContext) = {
     import scala.concurrent.duration._, ctx.materializer, materializer.executionContext
 
-    Http()(ctx.actorSystem)
-      .singleRequest(request)
-      .flatMap(resp => resp.entity.toStrict(10 seconds))
+    // Page is read within the deadline at network speed, its bytes are charged to bandwidth budget afterwards,
+    // so shaping delay of large pages doesn't count towards the deadline
+    ctx.hostLimits.limit(request.uri.toString()) {
+      Http()(ctx.actorSystem)
+        .singleRequest(request)
+        .flatMap(resp => resp.entity.toStrict(10 seconds))
+    }.flatMap { entity =>
+      Source.single(entity.data).via(ctx.bandwidth.page).runWith(Sink.ignore).map(_ => entity)
+    }
   }
 
   def execRequestToString(request: HttpRequest)(implicit ctx: GallerySaverContext) = {
@@ -3,8 +3,10 @@ package com.karasiq.gallerysaver.scripting.internal
 import akka.actor.{ActorRef, ActorSystem}
 import akka.event.Logging
 import akka.stream.{ActorMaterializer, Materializer}
-import com.karasiq.gallerysaver.dispatcher.LoaderRegistry
-import com.karasiq.gallerysaver.mapdb.AppSQLContext
+import com.karasiq.gallerysaver.dispatcher.{CrawlGraph, LoaderRegistry}
+import com.karasiq.gallerysaver.limits.{BandwidthLimiter, HostLimiterRegistry}
+import com.karasiq.gallerysaver.mapdb.{AppSQLContext, ContentStore, FDHistoryStore}
+import com.karasiq.gallerysaver.stats.StatsRegistry
 import com.typesafe.config.Config
 import javax.script.ScriptEngine
 
@@ -18,10 +20,20 @@ import scala.concurrent.ExecutionContext
   * @param executionContext       Execution context
   * @param gallerySaverDispatcher Primary loader dispatcher
   * @param scriptEngine           Scripting engine
+  * @param actorSystem            Actor system
+  * @param registry               Loaders registry
+  * @param crawlGraph             Resource hierarchy traversal
+  * @param hostLimits             Per host request limits
+  * @param bandwidth              Byte rate limits, adjustable at runtime
+  * @param stats                  Job statistics
+  * @param historyStore           Downloaded files history
+  * @param contentStore           Content-addressed store, used if enabled in config
   */
 final case class GallerySaverContext(config: Config, sqlContext: AppSQLContext, executionContext: ExecutionContext,
                                      gallerySaverDispatcher: ActorRef, scriptEngine: ScriptEngine,
-                                     actorSystem: ActorSystem, registry: LoaderRegistry) {
+                                     actorSystem: ActorSystem, registry: LoaderRegistry, crawlGraph: CrawlGraph,
+                                     hostLimits: HostLimiterRegistry, bandwidth: BandwidthLimiter, stats: StatsRegistry,
+                                     historyStore: FDHistoryStore, contentStore: ContentStore) {
 
   lazy val log = Logging(actorSystem, "GallerySaver")
   implicit val materializer: Materializer = ActorMaterializer()(actorSystem)
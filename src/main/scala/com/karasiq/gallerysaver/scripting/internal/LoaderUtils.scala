@@ -1,5 +1,6 @@
 package com.karasiq.gallerysaver.scripting.internal
 
+import java.nio.file.Paths
 import java.util.concurrent.TimeUnit
 
 import akka.actor.{ActorRef, ActorSystem}
@@ -10,15 +11,15 @@ import akka.stream.scaladsl.{Sink, Source}
 import akka.util.Timeout
 import com.karasiq.gallerysaver.builtin.utils.URLUtils
 import com.karasiq.gallerysaver.builtin.{ImageHostingResource, PreviewsResource}
-import com.karasiq.gallerysaver.dispatcher.LoadedResources
+import com.karasiq.gallerysaver.dispatcher.{FileDownloadQueue, LoadedResources}
 import com.karasiq.gallerysaver.imageconverter.FileDownloaderImageConverter
-import com.karasiq.gallerysaver.mapdb.{FileDownloaderHistory, H2FDHistoryStore}
-import com.karasiq.gallerysaver.scripting.resources.{InfiniteGallery, LoadableFile, LoadableResource}
+import com.karasiq.gallerysaver.limits.BandwidthSettings
+import com.karasiq.gallerysaver.mapdb.{ContentStore, FileDownloaderHistory, HistoryBootstrap, HistoryBootstrapSettings}
+import com.karasiq.gallerysaver.scripting.resources.{LoadableFile, LoadableResource}
+import com.karasiq.gallerysaver.stats.StatsSnapshot
 import com.typesafe.config.Config
 
 import scala.concurrent._
-import scala.concurrent.duration._
-import scala.language.postfixOps
 
 /**
   * Loader scripting helper
@@ -60,20 +61,7 @@ object LoaderUtils {
     * @return Iterator of all available files
     */
   def filesSource(resources: Source[LoadableResource, akka.NotUsed])(implicit ctx: GallerySaverContext): Source[LoadableFile, akka.NotUsed] = {
-    val sources = resources.collect {
-      case lf: LoadableFile ⇒
-        Source.single(lf)
-
-      case ig: InfiniteGallery ⇒
-        Source.fromFuture(get(ig))
-          .flatMapConcat(r ⇒ filesSource(r.resources))
-          .takeWithin(3 minutes)
-
-      case lr: LoadableResource ⇒
-        Source.fromFuture(get(lr))
-          .flatMapConcat(r ⇒ filesSource(r.resources))
-    }
-    sources.flatMapMerge(4, identity)
+    ctx.crawlGraph.files(resources)
   }
 
   /**
@@ -108,12 +96,74 @@ object LoaderUtils {
     * @note Infinite galleries not supported, use [[com.karasiq.gallerysaver.scripting.internal.LoaderUtils#extractAllFiles extractAllFiles]] instead
     */
   def loadAllUrls(urls: String*)(implicit ctx: GallerySaverContext): Unit = {
-    urls.foreach { url ⇒
-      get(url).foreach {
-        case LoadedResources(resources) ⇒
-          load(resources)
-      }
-    }
+    ctx.crawlGraph.downloadUrls(urls.toVector)
+  }
+
+  /**
+    * Provides download queue depth
+    * @return Future of queue stats
+    */
+  def downloadQueueStats(implicit ctx: GallerySaverContext): Future[FileDownloadQueue.QueueStats] = {
+    (ctx.gallerySaverDispatcher ? FileDownloadQueue.GetStats).mapTo[FileDownloadQueue.QueueStats]
+  }
+
+  /**
+    * Provides global statistics: fetched resources, cache hits, downloads, conversions, errors and latencies
+    * @return Statistics snapshot
+    */
+  def stats(implicit ctx: GallerySaverContext): StatsSnapshot = {
+    ctx.stats.global.snapshot()
+  }
+
+  /**
+    * Provides statistics of running download jobs
+    * @return Statistics snapshots by job ID
+    */
+  def jobStats(implicit ctx: GallerySaverContext): Map[Long, StatsSnapshot] = {
+    ctx.stats.jobs
+  }
+
+  /**
+    * Provides current byte rate limits
+    * @return Bandwidth settings
+    */
+  def bandwidth(implicit ctx: GallerySaverContext): BandwidthSettings = {
+    ctx.bandwidth.settings
+  }
+
+  /**
+    * Replaces byte rate limits, running downloads are affected
+    * @param settings Bandwidth settings, e.g. `bandwidth.copy(global = 4 * 1024 * 1024)`
+    */
+  def setBandwidth(settings: BandwidthSettings)(implicit ctx: GallerySaverContext): Unit = {
+    ctx.bandwidth.update(settings)
+  }
+
+  /**
+    * Sets download rate of the loader
+    * @param loader         Loader ID
+    * @param bytesPerSecond Byte rate, zero for unlimited
+    */
+  def setLoaderBandwidth(loader: String, bytesPerSecond: Long)(implicit ctx: GallerySaverContext): Unit = {
+    val settings = bandwidth
+    setBandwidth(settings.copy(loaders = settings.loaders + (loader → bytesPerSecond)))
+  }
+
+  /**
+    * Sets download rate of the host, subdomains included
+    * @param host           Host name
+    * @param bytesPerSecond Byte rate, zero for unlimited
+    */
+  def setHostBandwidth(host: String, bytesPerSecond: Long)(implicit ctx: GallerySaverContext): Unit = {
+    val settings = bandwidth
+    setBandwidth(settings.copy(hosts = settings.hosts + (host.toLowerCase → bytesPerSecond)))
+  }
+
+  /**
+    * Resumes download jobs interrupted by restart
+    */
+  def resumeJobs()(implicit ctx: GallerySaverContext): Unit = {
+    ctx.crawlGraph.resume()
   }
 
   /**
@@ -266,21 +316,41 @@ object LoaderUtils {
   def fixUrl(url: String): String = URLUtils.fixUrl(url)
 
   /**
-    * File downloader history provider
+    * File downloader history provider, uses the configured history store
     */
   def fdHistory(implicit ctx: GallerySaverContext): FileDownloaderHistory = {
-    new FileDownloaderHistory(new H2FDHistoryStore(ctx.sqlContext))
+    new FileDownloaderHistory(ctx.historyStore, ctx.stats.global, FileDownloaderHistory.Dedup(ctx.config.getConfig("gallery-saver.history-dedup")), contentStore)
+  }
+
+  /**
+    * Rebuilds download history from files in destination folder, e.g. after moving archive to another machine.
+    * Progress is logged
+    * @param incremental Skip files of folders not changed since previous bootstrap
+    * @return Future of bootstrap result
+    */
+  def bootstrapHistory(incremental: Boolean = true)(implicit ctx: GallerySaverContext): Future[HistoryBootstrap.Progress] = {
+    val settings = HistoryBootstrapSettings(ctx.config.getConfig("gallery-saver.history-bootstrap"))
+    val bootstrap = new HistoryBootstrap(ctx.sqlContext, ctx.historyStore, settings, ctx.log)
+    val root = Paths.get(ctx.config.getString("gallery-saver.destination"))
+    Future(bootstrap.run(root, incremental))(ctx.actorSystem.dispatchers.lookup("gallery-saver.blocking-dispatcher"))
   }
 
   /**
     * File downloader image converter provider
     */
   def fdConverter(implicit ctx: GallerySaverContext): FileDownloaderImageConverter = {
-    FileDownloaderImageConverter.fromConfig(ctx.config.getConfig("gallery-saver.image-converter"))
+    FileDownloaderImageConverter.fromConfig(ctx.config.getConfig("gallery-saver.image-converter"), ctx.stats.global, contentStore)
+  }
+
+  /**
+    * Content-addressed store, if enabled
+    */
+  def contentStore(implicit ctx: GallerySaverContext): Option[ContentStore] = {
+    Some(ctx.contentStore).filter(_.settings.enabled)
   }
 
   private def load(resources: Source[LoadableResource, akka.NotUsed])(implicit ctx: GallerySaverContext): Unit = {
-    filesSource(resources).runForeach(ctx.gallerySaverDispatcher ! _)
+    ctx.crawlGraph.download(resources)
   }
 
   class ContextBindings(implicit ctx: GallerySaverContext) {
@@ -1,5 +1,7 @@
 package com.karasiq.gallerysaver.scripting.loaders
 
+import scala.concurrent.duration._
+
 import akka.http.scaladsl._
 import akka.http.scaladsl.model.{HttpRequest, HttpResponse}
 import akka.http.scaladsl.model.headers.{Cookie, Referer}
@@ -14,12 +16,21 @@ class AkkaHttpLoader(implicit ctx: GallerySaverContext) {
   private[this] implicit val materializer: Materializer = ctx.materializer
 
   protected def withHttpResource[T <: LoadableResource](resource: LoadableResource): Source[HttpResponse, akka.NotUsed] = {
+    import materializer.executionContext
+
     val requestHeaders = List(
       Some(resource.cookies).filter(_.nonEmpty).map(cs ⇒ Cookie(cs.toList: _*)),
       resource.referrer.map(Referer(_))
     ).flatten
 
+    // Host permit is held until the body is read, so the connection is not taken by another request meanwhile.
+    // Bytes are charged to bandwidth budget as they are consumed, after the permit is released
     val request = HttpRequest(uri = resource.url, headers = requestHeaders)
-    Source.fromFuture(http.singleRequest(request))
+    val response = ctx.hostLimits.limit(resource.url) {
+      http.singleRequest(request).flatMap(_.toStrict(10.seconds))
+    }
+
+    Source.fromFuture(response)
+      .map(_.transformEntityDataBytes(ctx.bandwidth.page))
   }
 }
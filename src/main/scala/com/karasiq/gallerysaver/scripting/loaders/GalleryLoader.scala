@@ -22,6 +22,13 @@ trait GalleryLoader {
     */
   def canLoadUrl(url: String): Boolean
 
+  /**
+    * Hosts this loader is restricted to (subdomains included), used to index URL routing.
+    * [[canLoadUrl]] is not called for URLs of other hosts
+    * @note Empty set marks catch-all loader, which is checked for every URL
+    */
+  def hosts: Set[String] = Set.empty
+
   /**
     * Fetches resources from URL
     * @param url URL
@@ -72,11 +72,13 @@ trait HtmlUnitGalleryLoader extends GalleryLoader {
                                                    (implicit ctx: GallerySaverContext): Source[T, akka.NotUsed] = {
 
     implicit val ec: ExecutionContext = ctx.executionContext
-    val future = LoaderUtils.future {
-      val cookies = createCookieManager(resource, staticCookies)
-      concurrent.blocking {
-        val wc: WebClient = this.webClient
-        wc.withCookies(cookies)(wc.withGetPage(resource.url)(f.orElse[Page, Source[T, NotUsed]] { case _ ⇒ Source.empty[T] }))
+    val future = ctx.hostLimits.limit(resource.url) {
+      LoaderUtils.future {
+        val cookies = createCookieManager(resource, staticCookies)
+        concurrent.blocking {
+          val wc: WebClient = this.webClient
+          wc.withCookies(cookies)(wc.withGetPage(resource.url)(f.orElse[Page, Source[T, NotUsed]] { case _ ⇒ Source.empty[T] }))
+        }
       }
     }
     Source.fromFuture(future).flatMapConcat(identity)
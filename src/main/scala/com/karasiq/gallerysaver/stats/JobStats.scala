@@ -0,0 +1,85 @@
+package com.karasiq.gallerysaver.stats
+
+import java.time.{Duration, Instant}
+import java.util.concurrent.atomic.LongAdder
+
+import scala.collection.concurrent.TrieMap
+
+/**
+  * Statistics snapshot
+  * @param started              Counting start time
+  * @param resources            Fetched resources per loader ID
+  * @param cacheHits            Gallery cache hits
+  * @param cacheMisses          Gallery cache misses
+  * @param memoryCacheHits      In-memory gallery cache tier hits
+  * @param memoryCacheMisses    In-memory gallery cache tier misses
+  * @param memoryCacheEvictions In-memory gallery cache tier evictions
+  * @param filesQueued          Files accepted by download queue
+  * @param filesDownloaded      Downloaded files
+  * @param filesSkipped         Files skipped as already downloaded
+  * @param bytes                Downloaded bytes
+  * @param conversions          Converted images
+  * @param errors               Fetch, cache and download errors
+  * @param fetchLatency         Gallery fetch latency
+  * @param downloadLatency      File download latency (including downloader queue time)
+  */
+final case class StatsSnapshot(started: Instant, resources: Map[String, Long], cacheHits: Long, cacheMisses: Long,
+                               memoryCacheHits: Long, memoryCacheMisses: Long, memoryCacheEvictions: Long,
+                               filesQueued: Long, filesDownloaded: Long, filesSkipped: Long, bytes: Long,
+                               conversions: Long, errors: Long, fetchLatency: LatencyHistogram.Snapshot,
+                               downloadLatency: LatencyHistogram.Snapshot) {
+
+  def elapsed: Duration = Duration.between(started, Instant.now())
+
+  /**
+    * Files accepted by download queue and not completed yet
+    */
+  def filesPending: Long = (filesQueued - downloadLatency.count).max(0L)
+
+  override def toString: String = {
+    val loaders = resources.toVector.sortBy(-_._2).map { case (loader, count) ⇒ s"$loader: $count" }.mkString(", ")
+    s"Elapsed ${elapsed.getSeconds}s, resources [$loaders], cache $cacheHits/${cacheHits + cacheMisses} hits, " +
+      s"memory cache $memoryCacheHits/${memoryCacheHits + memoryCacheMisses} hits/$memoryCacheEvictions evictions, " +
+      s"files $filesQueued queued/$filesPending pending/$filesDownloaded downloaded/$filesSkipped skipped, " +
+      s"${bytes / 1024} KB, $conversions conversions, $errors errors, fetch [$fetchLatency], download [$downloadLatency]"
+  }
+}
+
+/**
+  * Lock-free job counters
+  */
+final class JobStats {
+  val started: Instant = Instant.now()
+
+  private[this] val resources = TrieMap.empty[String, LongAdder]
+
+  val cacheHits = new LongAdder
+  val cacheMisses = new LongAdder
+  val memoryCacheHits = new LongAdder
+  val memoryCacheMisses = new LongAdder
+  val memoryCacheEvictions = new LongAdder
+  val filesQueued = new LongAdder
+  val filesDownloaded = new LongAdder
+  val filesSkipped = new LongAdder
+  val bytes = new LongAdder
+  val conversions = new LongAdder
+  val errors = new LongAdder
+  val fetchLatency = new LatencyHistogram
+  val downloadLatency = new LatencyHistogram
+
+  /**
+    * Counts resources provided by loader
+    * @param loader Loader ID
+    * @param count  Resources count
+    */
+  def resourcesLoaded(loader: String, count: Long = 1): Unit = {
+    resources.getOrElseUpdate(loader, new LongAdder).add(count)
+  }
+
+  def snapshot(): StatsSnapshot = {
+    StatsSnapshot(started, resources.map { case (loader, counter) ⇒ loader → counter.sum() }.toMap,
+      cacheHits.sum(), cacheMisses.sum(), memoryCacheHits.sum(), memoryCacheMisses.sum(), memoryCacheEvictions.sum(),
+      filesQueued.sum(), filesDownloaded.sum(), filesSkipped.sum(),
+      bytes.sum(), conversions.sum(), errors.sum(), fetchLatency.snapshot(), downloadLatency.snapshot())
+  }
+}
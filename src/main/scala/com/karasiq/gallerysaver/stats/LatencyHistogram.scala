@@ -0,0 +1,75 @@
+package com.karasiq.gallerysaver.stats
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.{LongAccumulator, LongAdder}
+
+import scala.concurrent.duration._
+
+object LatencyHistogram {
+  // Bucket N holds latencies below 2^N microseconds, last bucket is unbounded
+  private val Buckets = 40
+
+  /**
+    * Latency distribution
+    * @param count Recorded events
+    * @param mean  Mean latency
+    * @param p50   Median latency
+    * @param p99   99th percentile latency
+    * @param max   Max latency
+    */
+  final case class Snapshot(count: Long, mean: FiniteDuration, p50: FiniteDuration, p99: FiniteDuration, max: FiniteDuration) {
+    override def toString: String = {
+      def format(d: FiniteDuration) = if (d < 1.second) s"${d.toMillis}ms" else f"${d.toMillis / 1000.0}%.1fs"
+      s"n=$count, mean=${format(mean)}, p50=${format(p50)}, p99=${format(p99)}, max=${format(max)}"
+    }
+  }
+}
+
+/**
+  * Lock-free latency histogram with power of two buckets.
+  * Percentiles are approximated by the bucket upper bound (capped by the max recorded value)
+  */
+final class LatencyHistogram {
+  import LatencyHistogram._
+
+  private[this] val buckets = Array.fill(Buckets)(new LongAdder)
+  private[this] val total = new LongAdder
+  private[this] val maxValue = new LongAccumulator((a: Long, b: Long) ⇒ math.max(a, b), 0L)
+
+  /**
+    * Records event latency
+    * @param nanos Latency in nanoseconds
+    */
+  def record(nanos: Long): Unit = {
+    val micros = (nanos / 1000).max(0L)
+    val bucket = (64 - java.lang.Long.numberOfLeadingZeros(micros)).min(Buckets - 1)
+    buckets(bucket).increment()
+    total.add(micros)
+    maxValue.accumulate(micros)
+  }
+
+  /**
+    * Records time elapsed since provided `System.nanoTime()` value
+    * @param startNanos Event start time
+    */
+  def recordSince(startNanos: Long): Unit = {
+    record(System.nanoTime() - startNanos)
+  }
+
+  def snapshot(): Snapshot = {
+    val counts = buckets.map(_.sum())
+    val count = counts.sum
+    val max = maxValue.get()
+
+    def percentile(p: Double): Long = {
+      val threshold = math.ceil(count * p).toLong.max(1L)
+      var cumulative = 0L
+      val bucket = counts.indexWhere { c ⇒ cumulative += c; cumulative >= threshold }
+      if (bucket < 0) max else (1L << bucket).min(max)
+    }
+
+    def duration(micros: Long) = FiniteDuration(micros, TimeUnit.MICROSECONDS)
+    val mean = if (count == 0) 0L else total.sum() / count
+    Snapshot(count, duration(mean), duration(percentile(0.5)), duration(percentile(0.99)), duration(max))
+  }
+}
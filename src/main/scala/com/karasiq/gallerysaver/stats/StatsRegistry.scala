@@ -0,0 +1,61 @@
+package com.karasiq.gallerysaver.stats
+
+import java.util.concurrent.atomic.{AtomicLong, AtomicReference}
+
+import scala.collection.concurrent.TrieMap
+
+/**
+  * Global and per-job statistics.
+  * Global counters are updated by dispatcher, download queue and file downloaders, job counters by crawl graph
+  */
+final class StatsRegistry {
+  private[this] final case class Sample(nanos: Long, bytes: Long, files: Long)
+
+  private[this] val jobIds = new AtomicLong()
+  private[this] val activeJobs = TrieMap.empty[Long, JobStats]
+  private[this] val lastSample = new AtomicReference(Sample(System.nanoTime(), 0L, 0L))
+  @volatile private[this] var throughput = "0.0 files/s, 0.00 MB/s"
+
+  val global = new JobStats
+
+  /**
+    * Registers new job counters
+    * @return Job ID and counters
+    */
+  def startJob(): (Long, JobStats) = {
+    val id = jobIds.incrementAndGet()
+    val stats = new JobStats
+    activeJobs += id → stats
+    (id, stats)
+  }
+
+  /**
+    * Unregisters job counters
+    * @param id Job ID
+    * @return Final job statistics
+    */
+  def finishJob(id: Long): Option[StatsSnapshot] = {
+    activeJobs.remove(id).map(_.snapshot())
+  }
+
+  def jobs: Map[Long, StatsSnapshot] = {
+    activeJobs.map { case (id, stats) ⇒ id → stats.snapshot() }.toMap
+  }
+
+  /**
+    * Short status line, throughput is sampled at most once per second
+    */
+  def statusLine(): String = {
+    val stats = global.snapshot()
+    val now = Sample(System.nanoTime(), stats.bytes, stats.filesDownloaded)
+    val previous = lastSample.get()
+    val seconds = (now.nanos - previous.nanos) / 1e9
+    if (seconds >= 1 && lastSample.compareAndSet(previous, now)) {
+      throughput = f"${(now.files - previous.files) / seconds}%.1f files/s, ${(now.bytes - previous.bytes) / seconds / 1048576}%.2f MB/s"
+    }
+
+    val hitRatio = if (stats.cacheHits + stats.cacheMisses == 0) 0L else stats.cacheHits * 100 / (stats.cacheHits + stats.cacheMisses)
+    s"Jobs: ${activeJobs.size} | Files: ${stats.filesPending} pending, ${stats.filesDownloaded} done, ${stats.filesSkipped} skipped | " +
+      s"$throughput | Cache: $hitRatio% | Errors: ${stats.errors}"
+  }
+}
@@ -0,0 +1,255 @@
+package com.karasiq.gallerysaver.test
+
+import java.io.IOException
+import java.nio.file.{Files, Path}
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+
+import scala.collection.mutable
+import scala.concurrent.{Await, Future, Promise}
+import scala.concurrent.duration._
+import scala.language.postfixOps
+
+import akka.actor.{ActorRef, ActorSystem, Props}
+import akka.http.scaladsl.Http
+import akka.http.scaladsl.model._
+import akka.http.scaladsl.model.headers._
+import akka.http.scaladsl.server.Directives._
+import akka.pattern.ask
+import akka.stream.{ActorMaterializer, ThrottleMode}
+import akka.stream.scaladsl.Source
+import akka.util.{ByteString, Timeout}
+import com.karasiq.gallerysaver.downloader.{AkkaHttpDownloaderSettings, AkkaHttpFileDownloader}
+import com.karasiq.gallerysaver.limits.{HostLimiterRegistry, HostLimitSettings}
+import com.karasiq.gallerysaver.mapdb.{FDHistoryEntry, FDHistoryStore, PartialDownload, PartialDownloadStore}
+import com.karasiq.networkutils.downloader.{DownloadedFileReport, FileToDownload}
+import org.apache.http.impl.cookie.BasicClientCookie
+import org.scalatest.{BeforeAndAfterAll, FlatSpec, Matchers}
+
+class AkkaHttpFileDownloaderTest extends FlatSpec with Matchers with BeforeAndAfterAll {
+  private implicit val actorSystem = ActorSystem("akka-http-downloader-test")
+  private implicit val materializer = ActorMaterializer()
+  private implicit val timeout = Timeout(30 seconds)
+  import actorSystem.dispatcher
+
+  private val directory = Files.createTempDirectory("akka-http-downloader-test")
+  private val requests = new AtomicInteger()
+  private def content(i: Int) = ByteString(Array.fill(10000 + i)(i.toByte))
+  private val largeContent = ByteString(Array.tabulate(3000000)(_.toByte))
+
+  private final class TestStore extends PartialDownloadStore {
+    val partials = mutable.Map.empty[String, PartialDownload]
+    def get(path: String): Option[PartialDownload] = synchronized(partials.get(path))
+    def update(partial: PartialDownload): Unit = synchronized(partials(partial.path) = partial)
+    def remove(path: String): Unit = synchronized(partials -= path)
+  }
+
+  private final class TestHistory extends FDHistoryStore {
+    val entries = mutable.Map.empty[String, FDHistoryEntry]
+    def get(key: String): Option[FDHistoryEntry] = synchronized(entries.get(key))
+    def iterator: Iterator[(String, FDHistoryEntry)] = synchronized(entries.toVector.iterator)
+    def byUrl(url: String): Seq[FDHistoryEntry] = synchronized(entries.values.filter(_.url == url).toVector)
+    def +=(kv: (String, FDHistoryEntry)): this.type = { synchronized(entries += kv); this }
+    def -=(key: String): this.type = { synchronized(entries -= key); this }
+  }
+
+  // First response is cut in the middle, ranges are served if ETag matches
+  private val ranges = mutable.ArrayBuffer.empty[Long]
+  private def flaky(data: ByteString, version: Int) = extractRequest { request ⇒
+    val etag = EntityTag(s"v$version")
+    val range = request.header[Range].collect { case Range(_, Seq(ByteRange.FromOffset(offset))) ⇒ offset }
+    val ifRange = request.headers.find(_.is("if-range")).map(_.value)
+    range match {
+      case Some(offset) if ifRange.contains(etag.toString) ⇒
+        ranges.synchronized(ranges += offset)
+        complete(HttpResponse(StatusCodes.PartialContent, List(ETag(etag), `Content-Range`(ContentRange(offset, data.length - 1, data.length))),
+          HttpEntity(ContentTypes.`application/octet-stream`, data.drop(offset.toInt))))
+
+      case Some(_) ⇒
+        complete(HttpResponse(StatusCodes.OK, List(ETag(etag)), HttpEntity(ContentTypes.`application/octet-stream`, data)))
+
+      case None ⇒
+        val failure = Source.single(()).delay(200 millis).flatMapConcat(_ ⇒ Source.failed(new IllegalStateException("Connection lost")))
+        val truncated = Source.single(data.take(data.length / 2)) ++ failure.map(_ ⇒ ByteString.empty)
+        complete(HttpResponse(StatusCodes.OK, List(ETag(etag)), HttpEntity(ContentTypes.`application/octet-stream`, data.length, truncated)))
+    }
+  }
+
+  private val notModified = new AtomicInteger()
+  private val foreignHeaders = mutable.ArrayBuffer.empty[String]
+  private val largeSent = new AtomicLong()
+  private val largeDone = Promise[Unit]()
+  private val binding = Await.result(Http().bindAndHandle({
+    path("file" / IntNumber) { i ⇒
+      requests.incrementAndGet()
+      complete(content(i))
+    } ~
+    path("redirect" / IntNumber) { i ⇒
+      complete(HttpResponse(StatusCodes.Found, List(Location(s"/file/$i"))))
+    } ~
+    path("foreign-redirect") {
+      // Same server, but another host name
+      extractUri(uri ⇒ complete(HttpResponse(StatusCodes.Found, List(Location(uri.withHost("localhost").withPath(Uri.Path("/foreign")))))))
+    } ~
+    path("foreign") {
+      extractRequest { request ⇒
+        foreignHeaders.synchronized(foreignHeaders ++= request.headers.map(_.lowercaseName()))
+        complete(content(50))
+      }
+    } ~
+    path("flaky" / IntNumber) { i ⇒
+      flaky(content(i), 1)
+    } ~
+    path("ranged") {
+      (headerValueByType[Range](()) & extractRequest) { (range, request) ⇒
+        ranges.synchronized(ranges += range.ranges.head.asInstanceOf[ByteRange.Slice].first)
+        conditional(EntityTag("ranged"))(withRangeSupport(complete(largeContent)))
+      } ~
+      conditional(EntityTag("ranged"))(withRangeSupport(complete(largeContent)))
+    } ~
+    path("tiny") {
+      conditional(EntityTag("tiny"))(withRangeSupport(complete(ByteString(1, 2))))
+    } ~
+    path("large") {
+      // Slow stream, so sent data is not buffered by TCP as a whole
+      val chunks = Source(1 to 600).throttle(100, 100 millis, 100, ThrottleMode.Shaping).map { _ ⇒
+        largeSent.addAndGet(10000)
+        ByteString(new Array[Byte](10000))
+      }.watchTermination()((_, done) ⇒ largeDone.completeWith(done.map(_ ⇒ ())))
+      complete(HttpEntity(ContentTypes.`application/octet-stream`, 6000000L, chunks))
+    } ~
+    path("validated") {
+      mapResponse { response ⇒ if (response.status == StatusCodes.NotModified) notModified.incrementAndGet(); response } {
+        conditional(EntityTag("validated"))(complete(content(40)))
+      }
+    } ~
+    path("unvalidated") {
+      complete(content(40))
+    } ~
+    path("changed" / IntNumber) { i ⇒
+      // Validator changes after the first response
+      val version = requests.incrementAndGet()
+      flaky(content(i), version)
+    }
+  }, "127.0.0.1", 0), 10 seconds)
+
+  private val partials = new TestStore
+  private val downloader = actorSystem.actorOf(Props(new AkkaHttpFileDownloader(AkkaHttpDownloaderSettings(4, 1024, 5, 3, 10 millis), None, Some(partials))))
+
+  private def url(p: String) = s"http://127.0.0.1:${binding.localAddress.getPort}/$p"
+  private def download(p: String, name: String, downloader: ActorRef = downloader) = downloader ? FileToDownload(url(p), directory.toString, name, Nil, Nil, sendReport = true)
+  private def read(name: String) = ByteString(Files.readAllBytes(directory.resolve(name)))
+
+  "Akka HTTP downloader" should "stream files to disk" in {
+    val reports = Await.result(Future.sequence((1 to 200).map(i ⇒ download(s"file/$i", s"$i.bin"))), 30 seconds)
+    reports.collect { case r: DownloadedFileReport ⇒ r.url } shouldBe (1 to 200).map(i ⇒ url(s"file/$i"))
+    all((1 to 200).map(i ⇒ read(s"$i.bin") == content(i))) shouldBe true
+    Files.list(directory).filter(_.toString.endsWith(".part")).count() shouldBe 0
+  }
+
+  it should "follow redirects" in {
+    Await.result(download("redirect/7", "redirected.bin"), 10 seconds) shouldBe a [DownloadedFileReport]
+    read("redirected.bin") shouldBe content(7)
+  }
+
+  it should "not send cookies and validators to another host after redirect" in {
+    val history = new TestHistory
+    val validated = actorSystem.actorOf(Props(new AkkaHttpFileDownloader(AkkaHttpDownloaderSettings(4, 1024, 5, 0, 10 millis), history = Some(history))))
+    val path = directory.resolve("foreign.bin")
+    Files.write(path, Array.fill(content(50).length)(0: Byte))
+    history += (path.toAbsolutePath.toString → FDHistoryEntry(path.toAbsolutePath.toString, url("foreign-redirect"), content(50).length, etag = Some("\"foreign\"")))
+
+    val file = FileToDownload(url("foreign-redirect"), directory.toString, "foreign.bin", Nil, List(new BasicClientCookie("session", "secret")), sendReport = true)
+    Await.result(validated ? file, 10 seconds) shouldBe a [DownloadedFileReport]
+    read("foreign.bin") shouldBe content(50)
+    foreignHeaders should not be empty
+    foreignHeaders should contain noneOf ("cookie", "if-none-match", "if-modified-since")
+  }
+
+  it should "not replace files of the same size" in {
+    val existing: Path = directory.resolve("existing.bin")
+    Files.write(existing, Array.fill(10005)(0: Byte))
+    Await.result(download("file/5", "existing.bin"), 10 seconds) shouldBe a [DownloadedFileReport]
+    read("existing.bin") shouldBe ByteString(Array.fill(10005)(0: Byte))
+  }
+
+  it should "not read entities of unchanged files" in {
+    Files.write(directory.resolve("large.bin"), new Array[Byte](6000000))
+    Await.result(download("large", "large.bin"), 10 seconds) shouldBe a [DownloadedFileReport]
+    Await.ready(largeDone.future, 10 seconds)
+    largeSent.get() should be < 6000000L
+  }
+
+  it should "continue interrupted downloads" in {
+    Await.result(download("flaky/20", "flaky.bin"), 10 seconds) shouldBe a [DownloadedFileReport]
+    read("flaky.bin") shouldBe content(20)
+    ranges shouldBe Seq(content(20).length / 2)
+    partials.partials shouldBe empty
+  }
+
+  it should "download changed files from the start" in {
+    Await.result(download("changed/30", "changed.bin"), 10 seconds) shouldBe a [DownloadedFileReport]
+    read("changed.bin") shouldBe content(30)
+    ranges should have length 1
+  }
+
+  it should "load large files in segments" in {
+    val limits = new HostLimiterRegistry(HostLimitSettings(2, 0, 1), Map.empty)(actorSystem.scheduler)
+    val settings = AkkaHttpDownloaderSettings(4, 1024, 5, 0, 10 millis, segments = 4, segmentMinSize = 1000000)
+    val segmented = actorSystem.actorOf(Props(new AkkaHttpFileDownloader(settings, None, None, Some(limits))))
+    ranges.clear()
+    Await.result(download("ranged", "ranged.bin", segmented), 10 seconds) shouldBe a [DownloadedFileReport]
+    read("ranged.bin") shouldBe largeContent
+    ranges.sorted shouldBe Seq(1000000, 2000000) // Segment per free host slot
+  }
+
+  it should "not request empty segments of short files" in {
+    AkkaHttpFileDownloader.segmentRanges(2, 4) shouldBe Vector(0L → 1L, 1L → 2L)
+    AkkaHttpFileDownloader.segmentRanges(9, 4) shouldBe Vector(0L → 3L, 3L → 6L, 6L → 9L)
+    AkkaHttpFileDownloader.segmentRanges(10, 4) shouldBe Vector(0L → 3L, 3L → 6L, 6L → 9L, 9L → 10L)
+    AkkaHttpFileDownloader.segmentRanges(0, 4) shouldBe Vector(0L → 0L)
+
+    val limits = new HostLimiterRegistry(HostLimitSettings(4, 0, 1), Map.empty)(actorSystem.scheduler)
+    val settings = AkkaHttpDownloaderSettings(4, 1024, 5, 0, 10 millis, segments = 4, segmentMinSize = 0)
+    val segmented = actorSystem.actorOf(Props(new AkkaHttpFileDownloader(settings, None, None, Some(limits))))
+    Await.result(download("tiny", "tiny.bin", segmented), 10 seconds) shouldBe a [DownloadedFileReport]
+    read("tiny.bin") shouldBe ByteString(1, 2)
+  }
+
+  it should "revalidate files with conditional requests" in {
+    val history = new TestHistory
+    val validated = actorSystem.actorOf(Props(new AkkaHttpFileDownloader(AkkaHttpDownloaderSettings(4, 1024, 5, 0, 10 millis), history = Some(history))))
+    val stale = ByteString(Array.fill(content(40).length)(0: Byte))
+    def recorded(name: String, etag: String, p: String = "validated") = {
+      val path = directory.resolve(name)
+      Files.write(path, stale.toArray)
+      history += (path.toAbsolutePath.toString → FDHistoryEntry(path.toAbsolutePath.toString, url(p), stale.length, etag = Some(etag)))
+    }
+
+    recorded("validated.bin", "\"validated\"")
+    Await.result(download("validated", "validated.bin", validated), 10 seconds) shouldBe a [DownloadedFileReport]
+    notModified.get() shouldBe 1
+    read("validated.bin") shouldBe stale
+
+    // Same length, but ETag is changed
+    recorded("outdated.bin", "\"outdated\"")
+    Await.result(download("validated", "outdated.bin", validated), 10 seconds) shouldBe a [DownloadedFileReport]
+    notModified.get() shouldBe 1
+    read("outdated.bin") shouldBe content(40)
+
+    // Same length, but server sent no validators
+    recorded("unvalidated.bin", "\"validated\"", "unvalidated")
+    Await.result(download("unvalidated", "unvalidated.bin", validated), 10 seconds) shouldBe a [DownloadedFileReport]
+    read("unvalidated.bin") shouldBe content(40)
+  }
+
+  it should "report failures" in {
+    an [IOException] should be thrownBy Await.result(download("missing", "missing.bin"), 10 seconds)
+    Files.exists(directory.resolve("missing.bin")) shouldBe false
+  }
+
+  override protected def afterAll(): Unit = {
+    binding.unbind()
+    actorSystem.terminate()
+    super.afterAll()
+  }
+}
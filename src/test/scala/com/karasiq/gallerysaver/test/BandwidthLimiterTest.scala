@@ -0,0 +1,53 @@
+package com.karasiq.gallerysaver.test
+
+import scala.concurrent.Await
+import scala.concurrent.duration._
+import scala.language.postfixOps
+
+import akka.actor.ActorSystem
+import akka.stream.ActorMaterializer
+import akka.stream.scaladsl.{Flow, Sink, Source}
+import akka.util.ByteString
+import com.karasiq.gallerysaver.limits.{BandwidthLimiter, BandwidthSettings}
+import org.scalatest.{BeforeAndAfterAll, FlatSpec, Matchers}
+
+class BandwidthLimiterTest extends FlatSpec with Matchers with BeforeAndAfterAll {
+  private implicit val actorSystem = ActorSystem("bandwidth-limiter-test")
+  private implicit val materializer = ActorMaterializer()
+
+  private def read(flow: Flow[ByteString, ByteString, _], bytes: Int): Long = {
+    val start = System.nanoTime()
+    val chunks = Source(Vector.fill(bytes / 4096)(ByteString(new Array[Byte](4096))))
+    Await.result(chunks.via(flow).runWith(Sink.ignore), 30 seconds)
+    (System.nanoTime() - start).nanos.toMillis
+  }
+
+  "Bandwidth limiter" should "reserve global share for page fetches" in {
+    val limiter = new BandwidthLimiter(BandwidthSettings(200000, 0.5))(actorSystem.scheduler)
+    read(limiter.download("https://example.com/file"), 61440) should be >= 400L // 100 KB/s for downloads
+    read(limiter.page, 61440) should be < 400L
+  }
+
+  it should "limit downloads by loader and host budgets" in {
+    val limiter = new BandwidthLimiter(BandwidthSettings(0, 0.2, hosts = Map("example.com" → 50000), loaders = Map("slow" → 50000)))(actorSystem.scheduler)
+    limiter.attribute("https://other.com/file", "slow")
+    read(limiter.download("https://other.com/file"), 30720) should be >= 400L
+    read(limiter.download("https://cdn.example.com/file"), 30720) should be >= 400L
+    read(limiter.download("https://other.com/unlimited"), 30720) should be < 400L
+  }
+
+  it should "change limits of running downloads" in {
+    val limiter = new BandwidthLimiter(BandwidthSettings(10000, 0))(actorSystem.scheduler)
+    val chunks = Source(Vector.fill(256)(ByteString(new Array[Byte](4096))))
+    val result = chunks.via(limiter.download("https://example.com/file")).runWith(Sink.ignore)
+    Thread.sleep(200)
+    result.isCompleted shouldBe false
+    limiter.update(limiter.settings.copy(global = 0))
+    Await.result(result, 5 seconds)
+  }
+
+  override protected def afterAll(): Unit = {
+    actorSystem.terminate()
+    super.afterAll()
+  }
+}
@@ -0,0 +1,30 @@
+package com.karasiq.gallerysaver.test
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, DataInputStream, DataOutputStream}
+
+import org.scalatest.{FlatSpec, Matchers}
+
+import com.karasiq.gallerysaver.mapdb.BloomFilter
+
+class BloomFilterTest extends FlatSpec with Matchers {
+  private val filter = BloomFilter(100000, 0.01)
+  (0 until 100000).foreach(i ⇒ filter.add(s"/galleries/$i.jpg"))
+
+  "Bloom filter" should "contain added keys" in {
+    all((0 until 100000).map(i ⇒ filter.mightContain(s"/galleries/$i.jpg"))) shouldBe true
+  }
+
+  it should "keep false positive rate" in {
+    val falsePositives = (100000 until 200000).count(i ⇒ filter.mightContain(s"/galleries/$i.jpg"))
+    falsePositives.toDouble / 100000 should be < 0.015
+  }
+
+  it should "be persisted" in {
+    val bytes = new ByteArrayOutputStream()
+    filter.writeTo(new DataOutputStream(bytes), 123L)
+    val (restored, metadata) = BloomFilter.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray)))
+    metadata shouldBe 123L
+    restored.bits shouldBe filter.bits
+    (0 until 200000).foreach(i ⇒ restored.mightContain(s"/galleries/$i.jpg") shouldBe filter.mightContain(s"/galleries/$i.jpg"))
+  }
+}
@@ -0,0 +1,116 @@
+package com.karasiq.gallerysaver.test
+
+import java.nio.file.Files
+import java.time.Instant
+
+import scala.concurrent.duration._
+
+import akka.event.NoLogging
+import com.typesafe.config.ConfigFactory
+import org.scalatest.{BeforeAndAfterAll, FlatSpec, Matchers}
+
+import com.karasiq.gallerysaver.mapdb._
+
+class BufferedFDHistoryStoreTest extends FlatSpec with Matchers with BeforeAndAfterAll {
+  private val sql = new AppSQLContext(ConfigFactory.parseString(
+    s"""
+      |path = "${Files.createTempDirectory("gallerysaver-test")}/gallerysaver-test"
+      |init-script = "classpath:gallerysaver-h2-init.sql"
+    """.stripMargin))
+
+  private def settings(batchSize: Int, flushInterval: String) = ConfigFactory.parseString(
+    s"""
+      |batch-size = $batchSize
+      |flush-interval = $flushInterval
+    """.stripMargin)
+
+  private def entry(i: Int, size: Long = 1000L) = {
+    val path = s"/galleries/$i.jpg"
+    path → FDHistoryEntry(path, s"https://example.com/$i.jpg", size, Instant.ofEpochMilli(1000L), etag = Some(s""""v$i""""))
+  }
+
+  private def query(query: String): Seq[(String, Long)] = {
+    val connection = sql.dataSource.getConnection
+    try {
+      val statement = connection.createStatement()
+      try {
+        val rs = statement.executeQuery(query)
+        Iterator.continually(rs).takeWhile(_.next()).map(rs ⇒ rs.getString(1) → rs.getLong(2)).toVector
+      } finally statement.close()
+    } finally connection.close()
+  }
+
+  private def rows(): Seq[(String, Long)] = query("SELECT PATH, SIZE FROM FD_HISTORY ORDER BY PATH")
+
+  // Reads written rows, removals are done by the underlying store
+  private final class TestHistory extends FDHistoryStore {
+    def get(key: String): Option[FDHistoryEntry] = rows().collectFirst { case (`key`, size) ⇒ FDHistoryEntry(key, "", size) }
+    def iterator: Iterator[(String, FDHistoryEntry)] = rows().iterator.map { case (path, size) ⇒ path → FDHistoryEntry(path, "", size) }
+    def byUrl(url: String): Seq[FDHistoryEntry] = Nil
+    def +=(kv: (String, FDHistoryEntry)): this.type = throw new IllegalStateException("Not written by buffered store")
+
+    def -=(key: String): this.type = {
+      val connection = sql.dataSource.getConnection
+      try {
+        val statement = connection.prepareStatement("DELETE FROM FD_HISTORY WHERE PATH = ?")
+        try {
+          statement.setString(1, key)
+          statement.executeUpdate()
+        } finally statement.close()
+      } finally connection.close()
+      this
+    }
+  }
+
+  private def clear(): Unit = {
+    val connection = sql.dataSource.getConnection
+    try {
+      val statement = connection.createStatement()
+      try statement.executeUpdate("DELETE FROM FD_HISTORY") finally statement.close()
+    } finally connection.close()
+  }
+
+  "Buffered history store" should "serve pending entries and write them in background" in {
+    clear()
+    val store = new BufferedFDHistoryStore(sql, new TestHistory, settings(1000, "200ms"), NoLogging)
+    (1 to 10).foreach(store += entry(_))
+    store.get("/galleries/1.jpg") shouldBe Some(entry(1)._2)
+    store.byUrl("https://example.com/2.jpg") shouldBe Seq(entry(2)._2)
+    awaitCond(rows().length == 10)
+    store.close()
+  }
+
+  it should "write pending entries on close" in {
+    clear()
+    val store = new BufferedFDHistoryStore(sql, new TestHistory, settings(1000, "1h"), NoLogging)
+    (1 to 10).foreach(i ⇒ store += entry(i))
+    store += entry(1, 2000L)
+    rows() shouldBe empty
+    store.close()
+    rows().toMap shouldBe (1 to 10).map(i ⇒ entry(i)._1 → (if (i == 1) 2000L else 1000L)).toMap
+    query("SELECT ETAG, SIZE FROM FD_HISTORY WHERE PATH = '/galleries/3.jpg'") shouldBe Seq("\"v3\"" → 1000L)
+  }
+
+  it should "flush queued entries before removal" in {
+    clear()
+    val store = new BufferedFDHistoryStore(sql, new TestHistory, settings(1000, "1h"), NoLogging)
+    store += entry(1)
+    store += entry(2)
+    store -= "/galleries/1.jpg"
+    rows() shouldBe Seq("/galleries/2.jpg" → 1000L)
+    store.get("/galleries/1.jpg") shouldBe None
+    store.close()
+    rows() shouldBe Seq("/galleries/2.jpg" → 1000L)
+  }
+
+  private def awaitCond(p: ⇒ Boolean): Unit = {
+    val deadline = 10.seconds.fromNow
+    while (!p && deadline.hasTimeLeft()) Thread.sleep(10)
+    assert(p, "Timed out")
+  }
+
+  override protected def afterAll(): Unit = {
+    sql.close()
+    super.afterAll()
+  }
+}
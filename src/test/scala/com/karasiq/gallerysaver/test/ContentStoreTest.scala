@@ -0,0 +1,109 @@
+package com.karasiq.gallerysaver.test
+
+import java.nio.file.{Files, Path}
+import java.util.concurrent.{ConcurrentLinkedQueue, CountDownLatch, Executors}
+
+import scala.collection.JavaConverters._
+import scala.concurrent.{Await, ExecutionContext, Future}
+import scala.concurrent.duration._
+import scala.language.postfixOps
+
+import akka.event.LoggingAdapter
+import com.typesafe.config.ConfigFactory
+import org.scalatest.{BeforeAndAfterAll, FlatSpec, Matchers}
+
+import com.karasiq.gallerysaver.downloader.AkkaHttpFileDownloader
+import com.karasiq.gallerysaver.mapdb.{AppSQLContext, ContentStore, ContentStoreSettings}
+
+class ContentStoreTest extends FlatSpec with Matchers with BeforeAndAfterAll {
+  private val root = Files.createTempDirectory("gallerysaver-test")
+  private val sql = new AppSQLContext(ConfigFactory.parseString(
+    s"""
+      |path = "$root/gallerysaver-test"
+      |init-script = "classpath:gallerysaver-h2-init.sql"
+    """.stripMargin))
+
+  private final class TestLog extends LoggingAdapter {
+    val warnings = new ConcurrentLinkedQueue[String]()
+
+    override def isErrorEnabled: Boolean = true
+    override def isWarningEnabled: Boolean = true
+    override def isInfoEnabled: Boolean = false
+    override def isDebugEnabled: Boolean = false
+    override protected def notifyError(message: String): Unit = warnings.add(message)
+    override protected def notifyError(cause: Throwable, message: String): Unit = warnings.add(message)
+    override protected def notifyWarning(message: String): Unit = warnings.add(message)
+    override protected def notifyInfo(message: String): Unit = ()
+    override protected def notifyDebug(message: String): Unit = ()
+  }
+
+  private def write(directory: Path, name: String, content: String): Path = {
+    Files.createDirectories(directory)
+    Files.write(directory.resolve(name), content.getBytes("UTF-8"))
+  }
+
+  private def contentRows(): Int = {
+    val connection = sql.dataSource.getConnection
+    try {
+      val rs = connection.createStatement().executeQuery("SELECT COUNT(*) FROM CONTENT")
+      rs.next()
+      rs.getInt(1)
+    } finally connection.close()
+  }
+
+  "Content store" should "link identical files added concurrently by different instances" in {
+    val settings = ContentStoreSettings(enabled = true, root.resolve("content"), "SHA-256")
+    val log = new TestLog
+    val stores = Vector.fill(4)(new ContentStore(sql, settings, log))
+    val downloads = root.resolve("downloads")
+    val executor = Executors.newFixedThreadPool(16)
+    implicit val ec = ExecutionContext.fromExecutor(executor)
+
+    try {
+      (1 to 20).foreach { round ⇒
+        val files = (1 to 16).map(i ⇒ write(downloads.resolve(round.toString), s"$i.jpg", s"duplicate $round"))
+        val start = new CountDownLatch(1)
+        val added = Future.traverse(files.zipWithIndex) { case (file, i) ⇒ Future { start.await(); stores(i % stores.length).add(file) } }
+        start.countDown()
+
+        Await.result(added, 30 seconds).flatten.map(_.digest).distinct should have length 1
+        files.foreach(file ⇒ Files.isSameFile(file, files.head) shouldBe true)
+        Files.list(downloads.resolve(round.toString)).iterator().asScala.map(_.getFileName.toString).filter(_.endsWith(".link")).toList shouldBe empty
+      }
+    } finally executor.shutdown()
+
+    log.warnings shouldBe empty
+    contentRows() shouldBe 20
+  }
+
+  it should "keep and report files that can't be linked" in {
+    val directory = write(root, "not-a-directory", "")
+    val log = new TestLog
+    val store = new ContentStore(sql, ContentStoreSettings(enabled = true, directory, "SHA-256"), log)
+    val file = write(root.resolve("unlinked"), "1.jpg", "unique")
+
+    store.add(file).map(_.size) shouldBe Some(6)
+    new String(Files.readAllBytes(file), "UTF-8") shouldBe "unique"
+    log.warnings.asScala.toList should have length 1
+  }
+
+  it should "use digest hashed while written only for the same file" in {
+    val store = new ContentStore(sql, ContentStoreSettings(enabled = true, root.resolve("hashed-store"), "SHA-256"), new TestLog)
+    val file = write(root.resolve("hashed"), "1.jpg", "hashed")
+    val digest = store.newDigest()
+    digest.update("hashed".getBytes("UTF-8"))
+    val content = ContentStore.contentOf(digest, 6)
+
+    val loaded = ContentStore.HashedFile(AkkaHttpFileDownloader.StreamedFile("http://example.com/1.jpg", file, None, None, None), file, content)
+    ContentStore.hashedContent(loaded, file) shouldBe Some(content)
+    ContentStore.hashedContent(loaded, file.resolveSibling("2.jpg")) shouldBe None
+
+    // Digest of another size is not trusted, file is read
+    store.add(file, Some(ContentStore.Content("0" * 64, 100))) shouldBe Some(content)
+  }
+
+  override protected def afterAll(): Unit = {
+    sql.close()
+    super.afterAll()
+  }
+}
@@ -0,0 +1,200 @@
+package com.karasiq.gallerysaver.test
+
+import java.nio.file.Files
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+
+import scala.collection.concurrent.TrieMap
+import scala.concurrent.Await
+import scala.concurrent.duration._
+import scala.language.postfixOps
+
+import akka.NotUsed
+import akka.actor.{Actor, ActorSystem, Props, Status}
+import akka.event.NoLogging
+import akka.stream.ActorMaterializer
+import akka.stream.scaladsl.{Sink, Source}
+import com.typesafe.config.ConfigFactory
+import com.karasiq.gallerysaver.dispatcher.{CrawlGraph, CrawlSettings, GallerySaverDispatcher, LoadedResources}
+import com.karasiq.gallerysaver.mapdb.{AppSQLContext, CrawlFrontier, FrontierEntry, H2CrawlFrontier}
+import com.karasiq.gallerysaver.scripting.resources.{FileResource, GalleryResource, LoadableResource}
+import com.karasiq.gallerysaver.stats.StatsRegistry
+import org.scalatest.{BeforeAndAfterAll, FlatSpec, Matchers}
+
+class CrawlGraphTest extends FlatSpec with Matchers with BeforeAndAfterAll {
+  private implicit val actorSystem = ActorSystem("crawl-graph-test")
+  private implicit val materializer = ActorMaterializer()
+  import actorSystem.dispatcher
+
+  private val active, maxActive, loaderActive, maxLoaderActive, folderFetches, dispatchedFiles = new AtomicInteger()
+
+  // Root gallery -> 10 folders -> 10 files each, folder fetch takes 50ms
+  private final class TestDispatcher extends Actor {
+    def receive: Receive = {
+      case GalleryResource("root", url, _, _, _) ⇒
+        sender() ! LoadedResources(Source((1 to 10).map(i ⇒ GalleryResource("folder", s"$url/$i"))))
+
+      case GalleryResource("flat", url, _, _, _) ⇒
+        sender() ! LoadedResources(Source(List(FileResource("flat", s"$url/1.jpg"), FileResource("flat", s"$url/2.jpg"))))
+
+      case GalleryResource("stalled", url, _, _, _) ⇒
+        sender() ! LoadedResources(Source(List(FileResource("stalled", s"$url/1.jpg"), FileResource("stalled", s"$url/2.jpg"))))
+
+      case GalleryResource("crosslinked", url, _, _, _) ⇒
+        sender() ! LoadedResources(Source(List("a", "b").map(dir ⇒ GalleryResource("folder", s"$url/1", hierarchy = Seq(dir)))))
+
+      case GalleryResource("folder", url, _, _, hierarchy) ⇒
+        val resources = Source.lazily { () ⇒
+          folderFetches.incrementAndGet()
+          track(active, maxActive)
+          track(loaderActive, maxLoaderActive)
+          Source((1 to 10).map(i ⇒ FileResource("folder", s"$url/$i.jpg", hierarchy = hierarchy)))
+            .delay(50 millis)
+            .map { file ⇒
+              if (file.url.endsWith("/10.jpg")) {
+                active.decrementAndGet()
+                loaderActive.decrementAndGet()
+              }
+              file
+            }
+        }
+        sender() ! LoadedResources(resources.mapMaterializedValue(_ ⇒ NotUsed))
+
+      // Stalled files are accepted, but never downloaded
+      case GallerySaverDispatcher.TrackedFile(file, recipient, message) ⇒
+        self.forward(file)
+        if (file.loader == "folder") recipient ! message
+
+      // Rejected, so files stay pending in frontier
+      case FileResource("flat", _, _, _, _, _) ⇒
+        dispatchedFiles.incrementAndGet()
+        sender() ! Status.Failure(new IllegalStateException("Queue is full"))
+
+      case _: FileResource ⇒
+        dispatchedFiles.incrementAndGet()
+        sender() ! LoadedResources.empty
+    }
+  }
+
+  private def track(counter: AtomicInteger, max: AtomicInteger): Unit = {
+    val current = counter.incrementAndGet()
+    max.accumulateAndGet(current, math.max)
+  }
+
+  private def crawlGraph(settings: CrawlSettings, frontier: Option[CrawlFrontier] = None) = {
+    new CrawlGraph(actorSystem.actorOf(Props(new TestDispatcher)), settings, frontier)
+  }
+
+  private class TestFrontier extends CrawlFrontier {
+    private val ids = new AtomicLong()
+    val entries = TrieMap.empty[Long, (Long, FrontierEntry)]
+    val completed, finished = TrieMap.empty[Long, Unit]
+
+    def startJob(): Long = 1
+    def finishJob(job: Long): Unit = finished += job → (())
+    def addUrls(job: Long, urls: Seq[String]): Seq[Long] = urls.map(url ⇒ put(job, FrontierEntry(ids.incrementAndGet(), 0, url, None)))
+    def add(job: Long, depth: Int, resources: Seq[LoadableResource]): Seq[Long] = resources.map(r ⇒ put(job, FrontierEntry(ids.incrementAndGet(), depth, r.url, Some(r))))
+    def complete(id: Long): Unit = completed += id → (())
+    def unfinishedJobs: Seq[Long] = entries.values.map(_._1).toSet.diff(finished.keySet).toVector
+    def pending(job: Long): Iterator[FrontierEntry] = entries.values.collect { case (`job`, e) if !completed.contains(e.id) ⇒ e }.toVector.sortBy(_.id).iterator
+    def close(): Unit = ()
+
+    private def put(job: Long, entry: FrontierEntry): Long = {
+      entries += entry.id → (job, entry)
+      entry.id
+    }
+  }
+
+  private val settings = CrawlSettings(4, Seq(1, 3), Map.empty, 8, 10 seconds, 10 seconds, 10 seconds)
+
+  "Crawl graph" should "extract all files" in {
+    val roots = Source(List[LoadableResource](GalleryResource("root", "a"), GalleryResource("root", "b")))
+    val files = Await.result(crawlGraph(settings).files(roots).runWith(Sink.seq), 30 seconds)
+    files.map(_.url).toSet.size shouldBe 200
+  }
+
+  it should "limit parallelism per depth and per loader" in {
+    maxActive.set(0)
+    val roots = Source(List[LoadableResource](GalleryResource("root", "a"), GalleryResource("root", "b")))
+    val graph = crawlGraph(settings)
+    Await.result(graph.files(roots).runWith(Sink.ignore), 30 seconds)
+    // Fetches may not overlap on a busy machine, so only the bound is exact
+    maxActive.get() should (be <= 3 and be > 1)
+
+    maxLoaderActive.set(0)
+    Await.result(crawlGraph(settings.copy(loaderParallelism = Map("folder" → 2))).download(roots), 30 seconds)
+    maxLoaderActive.get() should (be <= 2 and be > 0)
+  }
+
+  it should "fetch cross-linked gallery once" in {
+    folderFetches.set(0)
+    val files = Await.result(crawlGraph(settings).files(Source.single(GalleryResource("crosslinked", "c"))).runWith(Sink.seq), 30 seconds)
+    folderFetches.get() shouldBe 1
+    files.groupBy(_.hierarchy).mapValues(_.length) shouldBe Map(Seq("a") → 10, Seq("b") → 10)
+  }
+
+  it should "resume job from frontier" in {
+    val frontier = new TestFrontier
+    val job = frontier.startJob()
+    val Seq(root) = frontier.add(job, 0, List(GalleryResource("root", "r")))
+    frontier.add(job, 1, List(GalleryResource("folder", "r/1"), GalleryResource("folder", "r/2")))
+    frontier.complete(root)
+
+    dispatchedFiles.set(0)
+    Await.result(crawlGraph(settings, Some(frontier)).resume(), 30 seconds)
+    dispatchedFiles.get() shouldBe 20
+    frontier.finished.keySet shouldBe Set(job)
+    awaitCond(frontier.pending(job).isEmpty)
+  }
+
+  it should "finish failed traversal" in {
+    val frontier = new TestFrontier {
+      override def pending(job: Long): Iterator[FrontierEntry] = super.pending(job) ++ Iterator.fill(1)(throw new IllegalStateException("Read failed"))
+    }
+    frontier.add(frontier.startJob(), 1, List(FileResource("folder", "r/1.jpg")))
+
+    val stats = new StatsRegistry
+    val graph = new CrawlGraph(actorSystem.actorOf(Props(new TestDispatcher)), settings, Some(frontier), stats)
+    an[IllegalStateException] should be thrownBy Await.result(graph.resume(), 30 seconds)
+    stats.jobs shouldBe empty
+  }
+
+  it should "keep accepted files pending until they are downloaded" in {
+    val frontier = new TestFrontier
+    Await.result(crawlGraph(settings, Some(frontier)).download(Source.single(GalleryResource("stalled", "s"))), 30 seconds)
+    frontier.pending(frontier.startJob()).map(_.url).toSet shouldBe Set("s/1.jpg", "s/2.jpg")
+  }
+
+  it should "not expand entries added while resuming job from H2 frontier" in {
+    val sql = new AppSQLContext(ConfigFactory.parseString(
+      s"""
+        |path = "${Files.createTempDirectory("gallerysaver-test")}/gallerysaver-test"
+        |init-script = "classpath:gallerysaver-h2-init.sql"
+      """.stripMargin))
+    val frontierSettings = ConfigFactory.parseString("batch-size = 100, flush-interval = 10ms")
+    val frontier = new H2CrawlFrontier(sql, frontierSettings, NoLogging)
+    val job = frontier.startJob()
+    frontier.add(job, 1, (1 to 1500).map(i ⇒ GalleryResource("flat", s"f/$i")))
+
+    // More pending entries than a single page, files of resumed galleries are added to the same job and stay pending
+    dispatchedFiles.set(0)
+    Await.result(crawlGraph(settings, Some(frontier)).resume(), 60 seconds)
+    dispatchedFiles.get() shouldBe 3000
+    frontier.close()
+
+    val reopened = new H2CrawlFrontier(sql, frontierSettings, NoLogging)
+    reopened.pending(job).length shouldBe 3000
+    reopened.close()
+    sql.close()
+  }
+
+  private def awaitCond(p: ⇒ Boolean): Unit = {
+    val deadline = 10.seconds.fromNow
+    while (!p && deadline.hasTimeLeft()) Thread.sleep(10)
+    assert(p, "Timed out")
+  }
+
+  override protected def afterAll(): Unit = {
+    actorSystem.terminate()
+    super.afterAll()
+  }
+}
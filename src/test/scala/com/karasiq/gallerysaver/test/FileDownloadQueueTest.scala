@@ -0,0 +1,120 @@
+package com.karasiq.gallerysaver.test
+
+import scala.collection.mutable
+import scala.concurrent.{Await, Future}
+import scala.concurrent.duration._
+import scala.language.postfixOps
+
+import java.io.IOException
+
+import akka.actor.{Actor, ActorSystem, Props, Status}
+import akka.pattern.ask
+import akka.util.Timeout
+import com.karasiq.gallerysaver.dispatcher.{DownloadQueueSettings, FileDownloadQueue}
+import com.karasiq.gallerysaver.limits.{HostLimitedFileDownloader, HostLimiterRegistry, HostLimitSettings}
+import com.karasiq.gallerysaver.mapdb.DownloadQueueStore
+import com.karasiq.gallerysaver.stats.JobStats
+import com.karasiq.networkutils.downloader.{DownloadedFileReport, FileToDownload}
+import org.scalatest.{BeforeAndAfterAll, FlatSpec, Matchers}
+
+class FileDownloadQueueTest extends FlatSpec with Matchers with BeforeAndAfterAll {
+  private implicit val actorSystem = ActorSystem("download-queue-test")
+  private implicit val timeout = Timeout(10 seconds)
+  import actorSystem.dispatcher
+
+  private final class TestDownloader(downloaded: mutable.Buffer[String]) extends Actor {
+    def receive: Receive = {
+      case FileToDownload(url, _, name, _, _, true) ⇒
+        Thread.sleep(20)
+        downloaded.synchronized(downloaded += url)
+        sender() ! DownloadedFileReport(url, name)
+    }
+  }
+
+  private final class FailingDownloader extends Actor {
+    def receive: Receive = {
+      case file: FileToDownload ⇒
+        sender() ! Status.Failure(new IOException(s"Download failed: ${file.url}"))
+    }
+  }
+
+  private final class TestStore extends DownloadQueueStore {
+    private val files = mutable.Queue.empty[(String, FileToDownload)]
+    def append(downloader: String, file: FileToDownload): Unit = synchronized(files += downloader → file)
+    def take(count: Int): Seq[(String, FileToDownload)] = synchronized(Vector.fill(count.min(files.length))(files.dequeue()))
+    def size: Long = synchronized(files.length)
+  }
+
+  private def file(i: Int) = FileToDownload(s"http://example.com/$i.jpg", "test", "", Nil, Nil, sendReport = false)
+
+  private def testQueue(spillToDisk: Boolean) = {
+    val downloaded = mutable.ArrayBuffer.empty[String]
+    val downloader = actorSystem.actorOf(Props(new TestDownloader(downloaded)))
+    val stats = new JobStats
+    val queue = actorSystem.actorOf(Props(classOf[FileDownloadQueue], DownloadQueueSettings(2, 1, 10 seconds, spillToDisk, 3), new TestStore, stats))
+    val acks = (1 to 10).map(i ⇒ queue ? FileDownloadQueue.Enqueue(downloader, file(i)))
+    (queue, acks, downloaded, stats)
+  }
+
+  "Download queue" should "acknowledge files only when there is room" in {
+    val (queue, acks, downloaded, stats) = testQueue(spillToDisk = false)
+    Thread.sleep(50)
+    acks.count(_.isCompleted) should be < 10
+    Await.result(queue ? FileDownloadQueue.GetStats, 10 seconds).asInstanceOf[FileDownloadQueue.QueueStats].waiting should be > 0
+
+    Await.result(Future.sequence(acks), 10 seconds)
+    awaitCond(downloaded.synchronized(downloaded.length) == 10)
+    downloaded shouldBe (1 to 10).map(file(_).url)
+    awaitCond(stats.snapshot().filesPending == 0)
+    stats.snapshot().filesQueued shouldBe 10
+    stats.snapshot().downloadLatency.p50 should be >= 20.millis
+  }
+
+  it should "spill files above bound to disk" in {
+    val (queue, acks, downloaded, _) = testQueue(spillToDisk = true)
+    Await.result(Future.sequence(acks), 1 second)
+    Await.result(queue ? FileDownloadQueue.GetStats, 10 seconds).asInstanceOf[FileDownloadQueue.QueueStats].spilled should be > 0L
+
+    awaitCond(downloaded.synchronized(downloaded.length) == 10)
+    downloaded shouldBe (1 to 10).map(file(_).url)
+  }
+
+  it should "release in-flight slots of failed downloads" in {
+    val limits = new HostLimiterRegistry(HostLimitSettings(4, 0, 1), Map.empty)(actorSystem.scheduler)
+    val downloader = actorSystem.actorOf(Props(classOf[HostLimitedFileDownloader], actorSystem.actorOf(Props(new FailingDownloader)), limits, 10 seconds))
+    val stats = new JobStats
+    val queue = actorSystem.actorOf(Props(classOf[FileDownloadQueue], DownloadQueueSettings(2, 1, 10 minutes, false, 3), new TestStore, stats))
+    val acks = (1 to 5).map(i ⇒ queue ? FileDownloadQueue.Enqueue(downloader, file(i)))
+    Await.result(Future.sequence(acks), 5 seconds)
+    awaitCond(stats.snapshot().errors == 5)
+  }
+
+  it should "notify when files are downloaded or spilled to disk" in {
+    val downloaded = mutable.ArrayBuffer.empty[String]
+    val persisted = mutable.ArrayBuffer.empty[Int]
+    val listener = actorSystem.actorOf(Props(new Actor {
+      def receive: Receive = { case i: Int ⇒ persisted.synchronized(persisted += i) }
+    }))
+    val downloader = actorSystem.actorOf(Props(new TestDownloader(downloaded)))
+    val failing = actorSystem.actorOf(Props(new FailingDownloader))
+    val queue = actorSystem.actorOf(Props(classOf[FileDownloadQueue], DownloadQueueSettings(2, 1, 10 seconds, true, 3), new TestStore, new JobStats))
+    val acks = (1 to 10).map(i ⇒ queue ? FileDownloadQueue.Enqueue(if (i == 1) failing else downloader, file(i), Some(listener → i)))
+    Await.result(Future.sequence(acks), 5 seconds)
+
+    // Spilled files are notified on acceptance, failed download is not notified at all
+    awaitCond(downloaded.synchronized(downloaded.length) == 9)
+    awaitCond(persisted.synchronized(persisted.length) == 9)
+    persisted.toSet shouldBe (2 to 10).toSet
+  }
+
+  private def awaitCond(p: ⇒ Boolean): Unit = {
+    val deadline = 10.seconds.fromNow
+    while (!p && deadline.hasTimeLeft()) Thread.sleep(10)
+    assert(p, "Timed out")
+  }
+
+  override protected def afterAll(): Unit = {
+    actorSystem.terminate()
+    super.afterAll()
+  }
+}
@@ -0,0 +1,31 @@
+package com.karasiq.gallerysaver.test
+
+import java.io.IOException
+import java.nio.file.Files
+
+import org.scalatest.{FlatSpec, Matchers}
+
+import com.karasiq.gallerysaver.mapdb.FileDownloaderHistory
+import com.karasiq.gallerysaver.mapdb.FileDownloaderHistory.Dedup
+
+class FileDownloaderHistoryTest extends FlatSpec with Matchers {
+  private val directory = Files.createTempDirectory("gallerysaver-test")
+  private val source = Files.write(directory.resolve("source.jpg"), Array.fill[Byte](1000)(1))
+
+  "History dedup" should "link existing file" in {
+    val path = directory.resolve("linked").resolve("file.jpg")
+    FileDownloaderHistory.linkFile(source, path, Dedup.Link)
+    Files.readAllBytes(path) shouldBe Files.readAllBytes(source)
+    Files.exists(path.resolveSibling("file.jpg.link")) shouldBe false
+  }
+
+  it should "remove temporary file when link fails" in {
+    // Non-empty directory can't be replaced
+    val path = directory.resolve("occupied")
+    Files.createDirectories(path.resolve("child"))
+    Seq(Dedup.Link, Dedup.Copy).foreach { dedup ⇒
+      an[IOException] should be thrownBy FileDownloaderHistory.linkFile(source, path, dedup)
+      Files.exists(directory.resolve("occupied.link")) shouldBe false
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package com.karasiq.gallerysaver.test
+
+import java.nio.file.Files
+import java.sql.Timestamp
+import java.time.Instant
+import java.util.concurrent.atomic.AtomicInteger
+
+import scala.concurrent.duration._
+
+import akka.event.NoLogging
+import com.typesafe.config.ConfigFactory
+import org.scalatest.{BeforeAndAfterAll, FlatSpec, Matchers}
+
+import com.karasiq.gallerysaver.mapdb._
+
+class FilteredFDHistoryStoreTest extends FlatSpec with Matchers with BeforeAndAfterAll {
+  private val root = Files.createTempDirectory("gallerysaver-test")
+  private val sql = new AppSQLContext(ConfigFactory.parseString(
+    s"""
+      |path = "$root/gallerysaver-test"
+      |init-script = "classpath:gallerysaver-h2-init.sql"
+    """.stripMargin))
+
+  private def entry(path: String, date: Instant = Instant.now()) = path → FDHistoryEntry(path, s"https://example.com$path", 1000L, date)
+
+  private def execute(query: String, args: Any*): Unit = {
+    val connection = sql.dataSource.getConnection
+    try {
+      val statement = connection.prepareStatement(query)
+      try {
+        args.zipWithIndex.foreach { case (arg, i) ⇒ statement.setObject(i + 1, arg) }
+        statement.executeUpdate()
+      } finally statement.close()
+    } finally connection.close()
+  }
+
+  // Counts lookups which reach the database
+  private final class TestHistory extends FDHistoryStore {
+    val lookups = new AtomicInteger()
+
+    def get(key: String): Option[FDHistoryEntry] = {
+      lookups.incrementAndGet()
+      val connection = sql.dataSource.getConnection
+      try {
+        val statement = connection.prepareStatement("SELECT URL, SIZE, DATE FROM FD_HISTORY WHERE PATH = ?")
+        try {
+          statement.setString(1, key)
+          val rs = statement.executeQuery()
+          if (rs.next()) Some(FDHistoryEntry(key, rs.getString(1), rs.getLong(2), rs.getTimestamp(3).toInstant)) else None
+        } finally statement.close()
+      } finally connection.close()
+    }
+
+    def iterator: Iterator[(String, FDHistoryEntry)] = Iterator.empty
+    def byUrl(url: String): Seq[FDHistoryEntry] = Nil
+
+    def +=(kv: (String, FDHistoryEntry)): this.type = {
+      execute("MERGE INTO FD_HISTORY (PATH, URL, SIZE, DATE) KEY (PATH) VALUES (?, ?, ?, ?)", kv._1, kv._2.url, kv._2.size, Timestamp.from(kv._2.date))
+      this
+    }
+
+    def -=(key: String): this.type = {
+      execute("DELETE FROM FD_HISTORY WHERE PATH = ?", key)
+      this
+    }
+  }
+
+  "Filtered history store" should "rebuild filter when its capacity is exceeded" in {
+    execute("DELETE FROM FD_HISTORY")
+    val settings = HistoryFilterSettings(0.01, 100, root.resolve("filter-capacity.bin"))
+    val store = new TestHistory
+    val filtered = FilteredFDHistoryStore(sql, store, settings, NoLogging)
+    awaitCond(filtered.isReady)
+    (0 until 500).foreach(i ⇒ filtered += entry(s"/galleries/$i.jpg"))
+
+    awaitCond(filtered.capacity >= 1000)
+    all((0 until 500).map(i ⇒ filtered.get(s"/galleries/$i.jpg"))) should not be empty
+    store.lookups.set(0)
+    (500 until 1500).foreach(i ⇒ filtered.get(s"/galleries/$i.jpg") shouldBe empty)
+    store.lookups.get() should be < 50
+  }
+
+  it should "discard persisted filter if history was changed while it was closed" in {
+    execute("DELETE FROM FD_HISTORY")
+    val settings = HistoryFilterSettings(0.01, 100, root.resolve("filter-changed.bin"))
+    val initial = FilteredFDHistoryStore(sql, new TestHistory, settings, NoLogging)
+    awaitCond(initial.isReady)
+    initial += entry("/galleries/a.jpg", Instant.now().minusSeconds(60))
+    initial += entry("/galleries/b.jpg", Instant.now().minusSeconds(60))
+    initial.close()
+
+    val unchanged = FilteredFDHistoryStore(sql, new TestHistory, settings, NoLogging)
+    unchanged.isReady shouldBe true
+    Files.exists(settings.file) shouldBe false // Not valid until it is closed
+    unchanged.close()
+
+    // Same row count
+    execute("DELETE FROM FD_HISTORY WHERE PATH = ?", "/galleries/a.jpg")
+    new TestHistory += entry("/galleries/c.jpg")
+
+    val changed = FilteredFDHistoryStore(sql, new TestHistory, settings, NoLogging)
+    awaitCond(changed.isReady)
+    changed.get("/galleries/c.jpg") should not be empty
+    changed.close()
+  }
+
+  private def awaitCond(p: ⇒ Boolean): Unit = {
+    val deadline = 10.seconds.fromNow
+    while (!p && deadline.hasTimeLeft()) Thread.sleep(10)
+    assert(p, "Timed out")
+  }
+
+  override protected def afterAll(): Unit = {
+    sql.close()
+    super.afterAll()
+  }
+}
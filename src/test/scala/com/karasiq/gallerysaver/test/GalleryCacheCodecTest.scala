@@ -0,0 +1,49 @@
+package com.karasiq.gallerysaver.test
+
+import org.scalatest.{FlatSpec, Matchers}
+
+import com.karasiq.gallerysaver.mapdb.GalleryCacheCodec
+import com.karasiq.gallerysaver.scripting.resources._
+
+// Script defined resource type
+case class CustomGalleryResource(url: String, hierarchy: Seq[String], referrer: Option[String] = None,
+                                 cookies: Map[String, String] = Map.empty, loader: String = "custom") extends CacheableGallery
+
+class GalleryCacheCodecTest extends FlatSpec with Matchers {
+  private val resources: Seq[LoadableResource] = Vector(
+    FileResource("imagefap", "http://example.com/1.jpg", Some("http://example.com/gallery"), Map("sid" → "123", "lang" → "en"), Seq("imagefap", "user", "gallery"), Some("1.jpg")),
+    FileResource("imagefap", "http://example.com/2.jpg", Some("http://example.com/gallery"), Map("sid" → "123"), Seq("imagefap", "user", "gallery")),
+    GalleryResource("imagefap", "http://example.com/gallery/2", hierarchy = Seq("imagefap", "user")),
+    CachedGalleryResource("imagefap", "http://example.com/gallery/3", Some("http://пример.рф/"), hierarchy = Seq("imagefap", "юзер")),
+    InfiniteGalleryResource("tumblr", "http://example.tumblr.com/archive"),
+    CustomGalleryResource("http://imgur.com/abcdef", Seq("custom"))
+  )
+
+  "Gallery cache codec" should "encode and decode resources" in {
+    val decoded = GalleryCacheCodec.decode(GalleryCacheCodec.encode(resources))
+    decoded.legacy shouldBe false
+    decoded.resources shouldBe resources
+    GalleryCacheCodec.decode(GalleryCacheCodec.encode(Nil)).resources shouldBe empty
+  }
+
+  it should "compress large blobs" in {
+    val gallery = (1 to 1000).map(i ⇒ FileResource("tumblr", s"http://example.tumblr.com/post/${i * 7919}/photo.jpg", None, Map.empty, Seq("tumblr", "example"), Some(s"$i.jpg")))
+    val compression = GalleryCacheCodec.Compression(threshold = 1024, level = 1)
+    val raw = GalleryCacheCodec.encode(gallery)
+    val compressed = GalleryCacheCodec.encode(gallery, compression)
+    compressed.length should be < raw.length
+    GalleryCacheCodec.decode(compressed).resources shouldBe gallery
+    GalleryCacheCodec.encode(resources, compression) shouldBe GalleryCacheCodec.encode(resources)
+  }
+
+  it should "read Java serialized blobs" in {
+    val decoded = GalleryCacheCodec.decode(GalleryCacheCodec.javaSerialize(resources))
+    decoded.legacy shouldBe true
+    decoded.resources shouldBe resources
+  }
+
+  it should "be smaller than Java serialization" in {
+    val gallery = (1 to 100).map(i ⇒ FileResource("imagefap", s"http://example.com/$i.jpg", Some("http://example.com/gallery"), Map("sid" → "123"), Seq("imagefap", "user", "gallery")))
+    GalleryCacheCodec.encode(gallery).length should be < GalleryCacheCodec.javaSerialize(gallery).length / 2
+  }
+}
@@ -0,0 +1,91 @@
+package com.karasiq.gallerysaver.test
+
+import java.nio.file.Files
+
+import akka.event.NoLogging
+import com.typesafe.config.ConfigFactory
+import org.scalatest.{BeforeAndAfterAll, FlatSpec, Matchers}
+
+import com.karasiq.gallerysaver.mapdb.{AppSQLContext, H2CrawlFrontier}
+import com.karasiq.gallerysaver.scripting.resources.FileResource
+
+class H2CrawlFrontierTest extends FlatSpec with Matchers with BeforeAndAfterAll {
+  private val sql = new AppSQLContext(ConfigFactory.parseString(
+    s"""
+      |path = "${Files.createTempDirectory("gallerysaver-test")}/gallerysaver-test"
+      |init-script = "classpath:gallerysaver-h2-init.sql"
+    """.stripMargin))
+
+  private def frontier() = new H2CrawlFrontier(sql, ConfigFactory.parseString("batch-size = 1000, flush-interval = 1h"), NoLogging)
+
+  "H2 crawl frontier" should "not reuse IDs of finished jobs" in {
+    val first = frontier()
+    val job = first.startJob()
+    val ids = first.addUrls(job, Seq("a", "b"))
+    ids.foreach(first.complete)
+    first.finishJob(job)
+    first.close()
+
+    val second = frontier()
+    second.startJob() should be > job
+    second.addUrls(job + 1, Seq("c")).head should be > ids.max
+    second.close()
+  }
+
+  it should "keep operations of failed batch" in {
+    val frontier = this.frontier()
+    val job = frontier.startJob()
+    val Seq(a, b) = frontier.addUrls(job, Seq("a", "b"))
+    frontier.complete(a)
+    frontier.complete(a) // Status primary key conflict
+    frontier.pending(job).map(_.id).toList shouldBe List(b)
+    frontier.close()
+  }
+
+  it should "read pending entries in pages" in {
+    val frontier = this.frontier()
+    val job = frontier.startJob()
+    val ids = frontier.add(job, 1, (1 to 2500).map(i ⇒ FileResource("test", s"http://example.com/$i.jpg")))
+    ids.filter(_ % 3 == 0).foreach(frontier.complete)
+
+    val pending = frontier.pending(job).toVector
+    pending.map(_.id) shouldBe ids.filterNot(_ % 3 == 0)
+    pending.flatMap(_.resource).map(_.url) shouldBe ids.zipWithIndex.filterNot(_._1 % 3 == 0).map(i ⇒ s"http://example.com/${i._2 + 1}.jpg")
+    frontier.close()
+  }
+
+  it should "not return entries added after pending entries are requested" in {
+    val frontier = this.frontier()
+    val job = frontier.startJob()
+    val ids = frontier.add(job, 1, (1 to 1500).map(i ⇒ FileResource("test", s"http://example.com/$i.jpg")))
+
+    val pending = frontier.pending(job)
+    val first = pending.next()
+    frontier.add(job, 2, (1 to 1500).map(i ⇒ FileResource("test", s"http://example.com/child/$i.jpg")))
+    (first +: pending.toVector).map(_.id) shouldBe ids
+    frontier.close()
+  }
+
+  it should "keep not processed entries of finished job" in {
+    val first = frontier()
+    val job = first.startJob()
+    val Seq(a, b) = first.addUrls(job, Seq("a", "b"))
+    first.complete(a)
+    first.finishJob(job)
+    first.close()
+
+    val second = frontier()
+    second.unfinishedJobs should contain (job)
+    second.pending(job).map(_.url).toList shouldBe List("b")
+    second.complete(b)
+    second.finishJob(job)
+    second.pending(job) shouldBe empty
+    second.unfinishedJobs should not contain job
+    second.close()
+  }
+
+  override protected def afterAll(): Unit = {
+    sql.close()
+    super.afterAll()
+  }
+}
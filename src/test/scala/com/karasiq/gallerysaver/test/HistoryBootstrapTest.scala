@@ -0,0 +1,82 @@
+package com.karasiq.gallerysaver.test
+
+import java.nio.file.{Files, Path}
+import java.nio.file.attribute.FileTime
+
+import scala.collection.mutable
+import scala.concurrent.duration._
+
+import akka.event.NoLogging
+import com.typesafe.config.ConfigFactory
+import org.scalatest.{BeforeAndAfterAll, FlatSpec, Matchers}
+
+import com.karasiq.gallerysaver.mapdb._
+
+class HistoryBootstrapTest extends FlatSpec with Matchers with BeforeAndAfterAll {
+  private val sql = new AppSQLContext(ConfigFactory.parseString(
+    s"""
+      |path = "${Files.createTempDirectory("gallerysaver-test")}/gallerysaver-test"
+      |init-script = "classpath:gallerysaver-h2-init.sql"
+    """.stripMargin))
+
+  private val settings = HistoryBootstrapSettings(2, 10, 1.hour)
+
+  private final class TestHistory extends FDHistoryStore {
+    val entries = mutable.Map.empty[String, FDHistoryEntry]
+    def get(key: String): Option[FDHistoryEntry] = synchronized(entries.get(key))
+    def iterator: Iterator[(String, FDHistoryEntry)] = synchronized(entries.toVector.iterator)
+    def byUrl(url: String): Seq[FDHistoryEntry] = synchronized(entries.values.filter(_.url == url).toVector)
+    def +=(kv: (String, FDHistoryEntry)): this.type = { synchronized(entries += kv); this }
+    def -=(key: String): this.type = { synchronized(entries -= key); this }
+  }
+
+  // 3 folders with 10 files each, temporary and empty files are ignored
+  private def tree(): Path = {
+    val root = Files.createTempDirectory("gallerysaver-bootstrap")
+    for (folder ← Seq("a", "b", "b/c"); i ← 1 to 10) {
+      val directory = Files.createDirectories(root.resolve(folder))
+      Files.write(directory.resolve(s"$i.jpg"), new Array[Byte](i))
+    }
+    Files.write(root.resolve("a/11.jpg.part"), new Array[Byte](10))
+    Files.write(root.resolve("a/12.jpg.link"), new Array[Byte](10))
+    Files.createFile(root.resolve("a/empty.jpg"))
+    root
+  }
+
+  "History bootstrap" should "record files of destination folder" in {
+    val root = tree()
+    val store = new TestHistory
+    val existing = FDHistoryEntry(root.resolve("a/1.jpg").toAbsolutePath.toString, "https://example.com/1.jpg", 1L)
+    store += (existing.path → existing)
+
+    val result = new HistoryBootstrap(sql, store, settings, NoLogging).run(root)
+    result shouldBe HistoryBootstrap.Progress(directories = 4, unchanged = 0, files = 30, added = 29)
+    store.entries.size shouldBe 30
+    store.get(existing.path) shouldBe Some(existing) // Not replaced
+    val entry = store.get(root.resolve("b/c/5.jpg").toAbsolutePath.toString).get
+    entry.url shouldBe ""
+    entry.size shouldBe 5
+  }
+
+  it should "not list files of unchanged folders" in {
+    val root = tree()
+    val past = FileTime.fromMillis(System.currentTimeMillis() - 60000)
+    Seq("", "a", "b", "b/c").foreach(folder ⇒ Files.setLastModifiedTime(root.resolve(folder), past))
+    val store = new TestHistory
+    val bootstrap = new HistoryBootstrap(sql, store, settings, NoLogging)
+    bootstrap.run(root).added shouldBe 30
+
+    bootstrap.run(root) shouldBe HistoryBootstrap.Progress(directories = 4, unchanged = 4, files = 0, added = 0)
+
+    Files.write(root.resolve("b/c/new.jpg"), new Array[Byte](100))
+    bootstrap.run(root) shouldBe HistoryBootstrap.Progress(directories = 4, unchanged = 3, files = 11, added = 1)
+    store.get(root.resolve("b/c/new.jpg").toAbsolutePath.toString).map(_.size) shouldBe Some(100)
+
+    bootstrap.run(root, incremental = false) shouldBe HistoryBootstrap.Progress(directories = 4, unchanged = 0, files = 31, added = 0)
+  }
+
+  override protected def afterAll(): Unit = {
+    sql.close()
+    super.afterAll()
+  }
+}
@@ -0,0 +1,69 @@
+package com.karasiq.gallerysaver.test
+
+import scala.collection.mutable
+import scala.util.Random
+
+import org.scalatest.{FlatSpec, Matchers}
+
+import com.karasiq.gallerysaver.mapdb.HistoryIndex
+
+class HistoryIndexTest extends FlatSpec with Matchers {
+  private def path(i: Int) = s"/galleries/$i.jpg"
+  private def url(i: Int) = s"https://example.com/$i.jpg"
+
+  "History index" should "store sizes and URL hashes" in {
+    val index = HistoryIndex(16)
+    (0 until 100000).foreach(i ⇒ index.put(path(i), i * 1000L, url(i)))
+    index.size shouldBe 100000
+    all((0 until 100000).map { i ⇒
+      val value = index.get(path(i))
+      HistoryIndex.sizeOf(value) == i * 1000L && HistoryIndex.urlHashOf(value) == HistoryIndex.urlHash(url(i))
+    }) shouldBe true
+    all((100000 until 200000).map(i ⇒ index.get(path(i)) == HistoryIndex.NotFound)) shouldBe true
+  }
+
+  it should "keep entries after removals" in {
+    val index = HistoryIndex(1000)
+    val expected = mutable.Map.empty[Int, Long]
+    val random = new Random(0)
+    for (_ ← 0 until 200000) {
+      val i = random.nextInt(5000)
+      if (random.nextBoolean()) {
+        val size = random.nextInt(1000000).toLong
+        index.put(path(i), size, url(i))
+        expected(i) = size
+      } else {
+        index.remove(path(i))
+        expected -= i
+      }
+    }
+    index.size shouldBe expected.size
+    (0 until 5000).foreach { i ⇒
+      val value = index.get(path(i))
+      expected.get(i) match {
+        case Some(size) ⇒ HistoryIndex.sizeOf(value) shouldBe size
+        case None ⇒ value shouldBe HistoryIndex.NotFound
+      }
+    }
+  }
+
+  it should "not replace entries when bulk loading" in {
+    val index = HistoryIndex(16)
+    index.put(path(1), 100, url(1))
+    index.putIfAbsent(path(1), 50, url(1))
+    HistoryIndex.sizeOf(index.get(path(1))) shouldBe 100
+  }
+
+  it should "reject new paths when full" in {
+    val index = HistoryIndex(16, 16)
+    val added = (0 until 100).map(i ⇒ index.put(path(i), i, url(i)))
+    added.count(identity) shouldBe index.size
+    added.last shouldBe false
+    index.put(path(0), 500, url(0)) shouldBe true // Indexed paths are still updated
+    HistoryIndex.sizeOf(index.get(path(0))) shouldBe 500
+  }
+
+  it should "report memory use" in {
+    HistoryIndex.memoryFor(10000000) shouldBe 256L * 1024 * 1024
+  }
+}
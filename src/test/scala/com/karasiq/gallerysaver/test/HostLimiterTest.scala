@@ -0,0 +1,66 @@
+package com.karasiq.gallerysaver.test
+
+import java.util.concurrent.atomic.AtomicInteger
+
+import scala.concurrent.{Await, Future, Promise}
+import scala.concurrent.duration._
+import scala.language.postfixOps
+
+import akka.actor.ActorSystem
+import com.karasiq.gallerysaver.limits.{HostLimiterRegistry, HostLimitSettings}
+import org.scalatest.{BeforeAndAfterAll, FlatSpec, Matchers}
+
+class HostLimiterTest extends FlatSpec with Matchers with BeforeAndAfterAll {
+  private val actorSystem = ActorSystem("host-limiter-test")
+  import actorSystem.dispatcher
+
+  private val registry = new HostLimiterRegistry(HostLimitSettings(2, 0, 1), Map("flickr.com" → HostLimitSettings(4, 20, 1)))(actorSystem.scheduler)
+
+  "Host limiter" should "share limiter between subdomains of overridden host" in {
+    registry.forHost("live.flickr.com") shouldBe theSameInstanceAs(registry.forHost("flickr.com"))
+    registry.forHost("a.example.com") should not be theSameInstanceAs(registry.forHost("b.example.com"))
+  }
+
+  it should "limit in-flight requests" in {
+    val active, maxActive = new AtomicInteger()
+    val futures = (1 to 20).map { i ⇒
+      registry.limit(s"https://example.com/$i") {
+        Future {
+          maxActive.accumulateAndGet(active.incrementAndGet(), math.max)
+          Thread.sleep(20)
+          active.decrementAndGet()
+        }
+      }
+    }
+    Await.result(Future.sequence(futures), 10 seconds)
+    maxActive.get() should (be <= 2 and be > 0)
+  }
+
+  it should "limit request rate" in {
+    val start = System.nanoTime()
+    val futures = (1 to 21).map(i ⇒ registry.limit(s"https://www.flickr.com/$i")(Future.successful(i)))
+    Await.result(Future.sequence(futures), 10 seconds)
+    (System.nanoTime() - start).nanos.toMillis should be >= 900L
+  }
+
+  it should "not wait for free slot" in {
+    val limiter = registry.forHost("slots.example.com")
+    val held = Promise[Unit]()
+    limiter.tryApply(held.future) shouldBe defined
+    limiter.tryApply(held.future) shouldBe defined
+    limiter.tryApply(Future.unit) shouldBe empty
+    held.success(())
+    awaitCond(limiter.tryApply(Future.unit).nonEmpty)
+  }
+
+  private def awaitCond(p: ⇒ Boolean): Unit = {
+    val deadline = 10.seconds.fromNow
+    while (!p && deadline.hasTimeLeft()) Thread.sleep(10)
+    assert(p, "Timed out")
+  }
+
+  override protected def afterAll(): Unit = {
+    actorSystem.terminate()
+    super.afterAll()
+  }
+}
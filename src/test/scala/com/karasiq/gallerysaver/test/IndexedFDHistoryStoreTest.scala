@@ -0,0 +1,68 @@
+package com.karasiq.gallerysaver.test
+
+import java.util.concurrent.{CountDownLatch, TimeUnit}
+
+import scala.collection.mutable
+import scala.concurrent.duration._
+
+import akka.event.NoLogging
+import org.scalatest.{FlatSpec, Matchers}
+
+import com.karasiq.gallerysaver.mapdb.{FDHistoryEntry, FDHistoryStore, HistoryIndex, IndexedFDHistoryStore}
+
+class IndexedFDHistoryStoreTest extends FlatSpec with Matchers {
+  private def path(i: Int) = s"/galleries/$i.jpg"
+  private def url(i: Int) = s"https://example.com/$i.jpg"
+  private def entry(i: Int) = path(i) → FDHistoryEntry(path(i), url(i), 1000L + i)
+
+  private class TestHistory extends FDHistoryStore {
+    val entries = mutable.Map.empty[String, FDHistoryEntry]
+    def get(key: String): Option[FDHistoryEntry] = synchronized(entries.get(key))
+    def iterator: Iterator[(String, FDHistoryEntry)] = synchronized(entries.toVector.sortBy(_._1).iterator)
+    def byUrl(url: String): Seq[FDHistoryEntry] = synchronized(entries.values.filter(_.url == url).toVector)
+    def +=(kv: (String, FDHistoryEntry)): this.type = { synchronized(entries += kv); this }
+    def -=(key: String): this.type = { synchronized(entries -= key); this }
+  }
+
+  "Indexed history store" should "not load entries removed while loading" in {
+    val reached, resume = new CountDownLatch(1)
+    val store = new TestHistory {
+      // Page with the last entry is read before it is removed
+      override def iterator: Iterator[(String, FDHistoryEntry)] = super.iterator.map { kv ⇒
+        if (kv._1 == path(9)) {
+          reached.countDown()
+          resume.await(10, TimeUnit.SECONDS)
+        }
+        kv
+      }
+    }
+    (1 to 9).foreach(store += entry(_))
+
+    val indexed = IndexedFDHistoryStore(store, 16, NoLogging)
+    reached.await(10, TimeUnit.SECONDS) shouldBe true
+    indexed -= path(9)
+    resume.countDown()
+
+    awaitCond(indexed.isReady)
+    indexed.lookup(path(9), url(9)) shouldBe HistoryIndex.NotFound
+    indexed.lookup(path(1), url(1)) shouldBe 1001L
+  }
+
+  it should "turn index off when it is full" in {
+    val store = new TestHistory
+    val indexed = new IndexedFDHistoryStore(store, HistoryIndex(16, 16), ready = true, NoLogging)
+    (1 to 100).foreach(indexed += entry(_))
+
+    store.entries.size shouldBe 100
+    indexed.isFull shouldBe true
+    indexed.isReady shouldBe false
+    indexed.lookup(path(100), url(100)) shouldBe IndexedFDHistoryStore.Unknown
+    indexed.get(path(100)).map(_.url) shouldBe Some(url(100))
+  }
+
+  private def awaitCond(p: ⇒ Boolean): Unit = {
+    val deadline = 10.seconds.fromNow
+    while (!p && deadline.hasTimeLeft()) Thread.sleep(10)
+    assert(p, "Timed out")
+  }
+}
@@ -0,0 +1,88 @@
+package com.karasiq.gallerysaver.test
+
+import java.nio.file.Files
+import java.sql.Timestamp
+import java.time.Instant
+
+import akka.event.NoLogging
+import com.typesafe.config.ConfigFactory
+import org.scalatest.{BeforeAndAfterAll, FlatSpec, Matchers}
+
+import com.karasiq.gallerysaver.mapdb._
+import com.karasiq.gallerysaver.scripting.resources.{FileResource, GalleryResource, LoadableResource}
+
+class KVStoreMigrationTest extends FlatSpec with Matchers with BeforeAndAfterAll {
+  private val root = Files.createTempDirectory("gallerysaver-test")
+  private val sql = new AppSQLContext(ConfigFactory.parseString(
+    s"""
+      |path = "$root/gallerysaver-test"
+      |init-script = "classpath:gallerysaver-h2-init.sql"
+    """.stripMargin))
+  private val kv = new AppKVStore(ConfigFactory.parseString(
+    s"""
+      |path = "$root/gallerysaver-test.mv"
+      |cache-size-mb = 4
+    """.stripMargin))
+
+  private val date = Instant.ofEpochMilli(1500000000000L)
+  private val entries = Vector(
+    FDHistoryEntry("/galleries/1.jpg", "https://example.com/1.jpg", 1000L, date),
+    FDHistoryEntry("/galleries/2.jpg", "https://example.com/2.jpg", 2000L, date, Some("digest"), Some("\"v2\""), Some("Wed, 21 Oct 2015 07:28:00 GMT"),
+      Some(2000L), Some(date.plusSeconds(60))),
+    FDHistoryEntry("/galleries/3.jpg", "https://example.com/1.jpg", 1000L, date)
+  )
+
+  private val resources: Seq[LoadableResource] = Vector(
+    FileResource("imagefap", "https://example.com/1.jpg", Some("https://example.com/gallery"), Map("sid" → "123"), Seq("imagefap", "user"), Some("1.jpg")),
+    GalleryResource("imagefap", "https://example.com/gallery/2", hierarchy = Seq("imagefap", "user"))
+  )
+
+  private def execute(query: String, args: Any*): Unit = {
+    val connection = sql.dataSource.getConnection
+    try {
+      val statement = connection.prepareStatement(query)
+      try {
+        args.zipWithIndex.foreach { case (arg, i) ⇒ statement.setObject(i + 1, arg) }
+        statement.executeUpdate()
+      } finally statement.close()
+    } finally connection.close()
+  }
+
+  private def insert(entry: FDHistoryEntry): Unit = {
+    execute("INSERT INTO FD_HISTORY (PATH, URL, SIZE, DATE, CONTENT, ETAG, LAST_MODIFIED, LENGTH, CHECKED) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)",
+      entry.path, entry.url, entry.size, Timestamp.from(entry.date), entry.content.orNull, entry.etag.orNull, entry.lastModified.orNull,
+      entry.length.map(Long.box).orNull, entry.checked.map(Timestamp.from).orNull)
+  }
+
+  "Key-value store migration" should "copy history from H2 to MVStore" in {
+    entries.foreach(insert)
+    val target = new MVFDHistoryStore(kv)
+    new KVStoreMigration(sql, kv, NoLogging).history(target)
+
+    target.iterator.toVector shouldBe entries.map(e ⇒ e.path → e)
+    target.byUrl("https://example.com/1.jpg").map(_.path).sorted shouldBe Seq("/galleries/1.jpg", "/galleries/3.jpg")
+  }
+
+  it should "copy gallery cache blobs" in {
+    val created = Instant.ofEpochMilli(1600000000000L)
+    execute("INSERT INTO GALLERY_CACHE (URL, RESOURCES, CREATED) VALUES (?, ?, ?)", "https://example.com/gallery", GalleryCacheCodec.encode(resources), Timestamp.from(created))
+    val target = new MVGalleryCacheStore(kv)
+    new KVStoreMigration(sql, kv, NoLogging).galleryCache(target)
+
+    target.entry("https://example.com/gallery") shouldBe Some(GalleryCacheEntry(resources, created))
+  }
+
+  it should "not migrate twice" in {
+    insert(FDHistoryEntry("/galleries/4.jpg", "https://example.com/4.jpg", 4000L, date))
+    val target = new MVFDHistoryStore(kv)
+    new KVStoreMigration(sql, kv, NoLogging).history(target)
+    target.get("/galleries/4.jpg") shouldBe None
+    target.size shouldBe entries.length
+  }
+
+  override protected def afterAll(): Unit = {
+    kv.close()
+    sql.close()
+    super.afterAll()
+  }
+}
@@ -0,0 +1,62 @@
+package com.karasiq.gallerysaver.test
+
+import java.nio.file.Files
+import java.sql.Timestamp
+
+import com.typesafe.config.ConfigFactory
+import org.scalatest.{BeforeAndAfterAll, FlatSpec, Matchers}
+
+import com.karasiq.gallerysaver.mapdb.{AppSQLContext, KeysetIterator}
+
+class KeysetIteratorTest extends FlatSpec with Matchers with BeforeAndAfterAll {
+  private val sql = new AppSQLContext(ConfigFactory.parseString(
+    s"""
+      |path = "${Files.createTempDirectory("gallerysaver-test")}/gallerysaver-test"
+      |init-script = "classpath:gallerysaver-h2-init.sql"
+    """.stripMargin))
+
+  private def fill(count: Int): Unit = {
+    val connection = sql.dataSource.getConnection
+    try {
+      val statement = connection.createStatement()
+      try statement.executeUpdate("DELETE FROM FD_HISTORY") finally statement.close()
+      val insert = connection.prepareStatement("INSERT INTO FD_HISTORY (PATH, URL, SIZE, DATE) VALUES (?, ?, ?, ?)")
+      try {
+        (1 to count).foreach { i ⇒
+          insert.setString(1, f"/galleries/$i%04d.jpg")
+          insert.setString(2, s"https://example.com/$i.jpg")
+          insert.setLong(3, i)
+          insert.setTimestamp(4, new Timestamp(0L))
+          insert.executeUpdate()
+        }
+      } finally insert.close()
+    } finally connection.close()
+  }
+
+  private def sizes(pageSize: Int): Vector[Long] = {
+    new KeysetIterator(sql, "SELECT PATH, SIZE FROM FD_HISTORY WHERE PATH > ? ORDER BY PATH LIMIT ?", pageSize)(rs ⇒ rs.getString(1) → rs.getLong(2))
+      .map(_._2)
+      .toVector
+  }
+
+  "Keyset iterator" should "read every row once at page boundaries" in {
+    for (count ← Seq(0, 1, 9, 10, 11, 20, 25)) {
+      fill(count)
+      sizes(10) shouldBe (1L to count).toVector
+    }
+  }
+
+  it should "not read next page until current one is consumed" in {
+    fill(10)
+    val iterator = new KeysetIterator(sql, "SELECT PATH, SIZE FROM FD_HISTORY WHERE PATH > ? ORDER BY PATH LIMIT ?", 5)(rs ⇒ rs.getString(1) → rs.getLong(2))
+    iterator.take(5).map(_._2).toVector shouldBe (1L to 5L).toVector
+    fill(0)
+    iterator.hasNext shouldBe false
+    a[NoSuchElementException] should be thrownBy iterator.next()
+  }
+
+  override protected def afterAll(): Unit = {
+    sql.close()
+    super.afterAll()
+  }
+}
@@ -0,0 +1,53 @@
+package com.karasiq.gallerysaver.test
+
+import akka.stream.scaladsl.Source
+import com.karasiq.gallerysaver.dispatcher.LoaderRegistry
+import com.karasiq.gallerysaver.scripting.loaders.GalleryLoader
+import com.karasiq.gallerysaver.scripting.resources.LoadableResource
+import org.scalatest.{FlatSpec, Matchers}
+
+class LoaderRegistryTest extends FlatSpec with Matchers {
+  private final class TestLoader(val id: String, override val hosts: Set[String], predicate: String ⇒ Boolean) extends GalleryLoader {
+    override def canLoadUrl(url: String): Boolean = predicate(url)
+    override def load(url: String): GalleryResources = Source.empty
+    override def load(resource: LoadableResource): GalleryResources = Source.empty
+  }
+
+  private def registry(loaders: GalleryLoader*): LoaderRegistry = {
+    loaders.foldLeft(LoaderRegistry())(_ register _)
+  }
+
+  "Loader registry" should "route URLs by host" in {
+    val reg = registry(
+      new TestLoader("preview", Set.empty, _ ⇒ true),
+      new TestLoader("flickr", Set("flickr.com"), _.contains("/photos/")),
+      new TestLoader("tumblr", Set("tumblr.com"), _.contains("/post/"))
+    )
+
+    reg.forUrl("https://www.flickr.com/photos/user/123/").map(_.id) shouldBe Some("flickr")
+    reg.forUrl("https://blog.tumblr.com/post/123").map(_.id) shouldBe Some("tumblr")
+    reg.forUrl("https://blog.tumblr.com:443/post/123").map(_.id) shouldBe Some("tumblr")
+    reg.forUrl("https://user@FLICKR.com/photos/user/123/").map(_.id) shouldBe Some("flickr")
+    reg.forUrl("https://www.flickr.com/about").map(_.id) shouldBe Some("preview")
+    reg.forUrl("https://example.com/photos/post/").map(_.id) shouldBe Some("preview")
+    reg.forUrl("https://notflickr.com/photos/user/123/").map(_.id) shouldBe Some("preview")
+  }
+
+  it should "prefer last registered loader" in {
+    val reg = registry(
+      new TestLoader("preview", Set.empty, _ ⇒ true),
+      new TestLoader("generic", Set("example.com"), _ ⇒ true),
+      new TestLoader("catch-all", Set.empty, _.endsWith(".html")),
+      new TestLoader("specific", Set("www.example.com"), _ ⇒ true),
+      new TestLoader("generic", Set("example.com"), _.contains("/new/"))
+    )
+
+    reg.forUrl("https://www.example.com/page.html").map(_.id) shouldBe Some("specific")
+    reg.forUrl("https://cdn.example.com/new/page.html").map(_.id) shouldBe Some("generic")
+    reg.forUrl("https://cdn.example.com/page.html").map(_.id) shouldBe Some("catch-all")
+    reg.forUrl("https://cdn.example.com/page.htm").map(_.id) shouldBe Some("generic")
+    reg.forUrl("example.com/page.html").map(_.id) shouldBe Some("specific")
+    reg.forId("generic").map(_.hosts) shouldBe Some(Set("example.com"))
+    reg.idSet shouldBe Set("preview", "generic", "catch-all", "specific")
+  }
+}
@@ -0,0 +1,62 @@
+package com.karasiq.gallerysaver.test
+
+import java.io.{ByteArrayOutputStream, DataOutputStream}
+import java.nio.file.Files
+import java.time.Instant
+
+import com.typesafe.config.ConfigFactory
+import org.scalatest.{BeforeAndAfterAll, FlatSpec, Matchers}
+
+import com.karasiq.gallerysaver.mapdb.{AppKVStore, FDHistoryEntry, MVFDHistoryStore}
+
+class MVFDHistoryStoreTest extends FlatSpec with Matchers with BeforeAndAfterAll {
+  private val kv = new AppKVStore(ConfigFactory.parseString(
+    s"""
+      |path = "${Files.createTempDirectory("gallerysaver-test")}/gallerysaver-test.mv"
+      |cache-size-mb = 4
+    """.stripMargin))
+  private val store = new MVFDHistoryStore(kv)
+
+  "MVStore history" should "store URLs longer than 64 KB" in {
+    val url = "https://example.com/" + "ф" * 70000
+    val entry = FDHistoryEntry("/galleries/long.jpg", url, 1000L, Instant.ofEpochMilli(1000L), Some("digest"),
+      Some("\"v1\""), None, Some(1000L), Some(Instant.ofEpochMilli(2000L)))
+    store += (entry.path → entry)
+    store.get(entry.path) shouldBe Some(entry)
+    store.byUrl(url) shouldBe Seq(entry)
+  }
+
+  it should "read entries written before length-prefixed strings" in {
+    def legacy(validators: Boolean): Array[Byte] = {
+      val bytes = new ByteArrayOutputStream()
+      val output = new DataOutputStream(bytes)
+      output.writeLong(1000L)
+      output.writeLong(1000L)
+      output.writeUTF("https://example.com/old.jpg")
+      output.writeBoolean(true)
+      output.writeUTF("digest")
+      if (validators) {
+        output.writeBoolean(true)
+        output.writeUTF("\"v1\"")
+        output.writeBoolean(false)
+        output.writeBoolean(true)
+        output.writeLong(1000L)
+        output.writeBoolean(false)
+      }
+      bytes.toByteArray
+    }
+
+    val entries = kv.openMap[Array[Byte]]("fdHistory")
+    entries.put("/galleries/old.jpg", legacy(validators = false))
+    entries.put("/galleries/validated.jpg", legacy(validators = true))
+    store.get("/galleries/old.jpg") shouldBe Some(FDHistoryEntry("/galleries/old.jpg", "https://example.com/old.jpg", 1000L,
+      Instant.ofEpochMilli(1000L), Some("digest")))
+    store.get("/galleries/validated.jpg") shouldBe Some(FDHistoryEntry("/galleries/validated.jpg", "https://example.com/old.jpg", 1000L,
+      Instant.ofEpochMilli(1000L), Some("digest"), Some("\"v1\""), None, Some(1000L)))
+  }
+
+  override protected def afterAll(): Unit = {
+    kv.close()
+    super.afterAll()
+  }
+}
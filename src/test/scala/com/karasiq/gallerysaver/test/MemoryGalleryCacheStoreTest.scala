@@ -0,0 +1,104 @@
+package com.karasiq.gallerysaver.test
+
+import java.nio.file.Files
+
+import scala.collection.mutable
+import scala.concurrent.duration._
+
+import akka.event.NoLogging
+import com.typesafe.config.ConfigFactory
+import org.scalatest.{FlatSpec, Matchers}
+
+import com.karasiq.gallerysaver.mapdb._
+import com.karasiq.gallerysaver.scripting.resources.{FileResource, LoadableResource}
+import com.karasiq.gallerysaver.stats.JobStats
+
+class MemoryGalleryCacheStoreTest extends FlatSpec with Matchers {
+  private final class TestStore extends GalleryCacheStore {
+    val entries = mutable.Map.empty[String, Seq[LoadableResource]]
+    var reads = 0
+
+    override def get(key: String): Option[Seq[LoadableResource]] = { reads += 1; entries.get(key) }
+    override def iterator: Iterator[(String, Seq[LoadableResource])] = entries.iterator
+    override def +=(kv: (String, Seq[LoadableResource])): this.type = { entries += kv; this }
+    override def -=(key: String): this.type = { entries -= key; this }
+  }
+
+  private def gallery(i: Int) = s"http://example.com/gallery/$i" → (1 to 10).map(j ⇒ FileResource("test", s"http://example.com/$i/$j.jpg", hierarchy = Seq("test", i.toString)))
+
+  "Memory cache tier" should "write through and serve repeated reads from memory" in {
+    val store = new TestStore
+    val stats = new JobStats
+    val cache = new MemoryGalleryCacheStore(store, 1024 * 1024, stats)
+    cache += gallery(1)
+    store.entries.keySet shouldBe Set(gallery(1)._1)
+
+    (1 to 5).foreach(_ ⇒ cache.get(gallery(1)._1) shouldBe Some(gallery(1)._2))
+    store.reads shouldBe 0
+    stats.memoryCacheHits.sum() shouldBe 5
+
+    cache -= gallery(1)._1
+    cache.get(gallery(1)._1) shouldBe None
+    store.entries shouldBe empty
+  }
+
+  it should "evict least recently used entries above size limit" in {
+    val store = new TestStore
+    val stats = new JobStats
+    val entrySize = MemoryGalleryCacheStore.estimateSize(gallery(1)._1, gallery(1)._2)
+    val cache = new MemoryGalleryCacheStore(store, entrySize * 16 * 4, stats)
+    (1 to 1000).foreach(cache += gallery(_))
+
+    cache.sizeInBytes should be <= entrySize * 16 * 4
+    stats.memoryCacheEvictions.sum() should be > 0L
+    cache.get(gallery(1)._1) shouldBe Some(gallery(1)._2) // Loaded from underlying store
+    store.reads shouldBe 1
+    cache.get(gallery(1)._1)
+    store.reads shouldBe 1
+  }
+
+  it should "keep galleries read from memory at eviction" in {
+    val sql = new AppSQLContext(ConfigFactory.parseString(
+      s"""
+        |path = "${Files.createTempDirectory("gallerysaver-test")}/gallerysaver-test"
+        |init-script = "classpath:gallerysaver-h2-init.sql"
+      """.stripMargin))
+
+    def accessed(url: String): Long = {
+      val connection = sql.dataSource.getConnection
+      try {
+        val statement = connection.prepareStatement("SELECT ACCESSED FROM GALLERY_CACHE WHERE URL = ?")
+        statement.setString(1, url)
+        val rs = statement.executeQuery()
+        try { rs.next(); rs.getTimestamp(1).getTime } finally statement.close()
+      } finally connection.close()
+    }
+
+    try {
+      val store = new H2GalleryCacheStore(sql)
+      val cache = new MemoryGalleryCacheStore(store, 1024 * 1024)
+      (1 to 3).foreach { i ⇒
+        cache += gallery(i)
+        Thread.sleep(20)
+      }
+
+      val written = accessed(gallery(1)._1)
+      cache.get(gallery(1)._1) shouldBe Some(gallery(1)._2) // Served from memory
+      awaitCond(accessed(gallery(1)._1) > written)
+
+      val entrySize = GalleryCacheCodec.encode(gallery(1)._2).length
+      val settings = GalleryCacheEvictionSettings(1.minute, 100, entrySize * 2, Duration.Zero)
+      new GalleryCacheEvictor(sql, settings, NoLogging, cache.invalidate).run()
+
+      store.keysIterator.toSet shouldBe Set(gallery(1)._1, gallery(3)._1)
+      cache.get(gallery(2)._1) shouldBe None // Dropped from memory
+      cache.get(gallery(1)._1) shouldBe Some(gallery(1)._2)
+    } finally sql.close()
+  }
+
+  private def awaitCond(p: ⇒ Boolean): Unit = {
+    val deadline = 10.seconds.fromNow
+    while (!p && deadline.hasTimeLeft()) Thread.sleep(10)
+    assert(p, "Timed out")
+  }
+}